@@ -0,0 +1,214 @@
+package com.example.naturalbase.common;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Pool of ByteBuffers in size classes (256B, 1K, 4K, 16K, 64K). Allocate()
+ * hands out the smallest class that fits, release() of the last reference
+ * puts the buffer back. Bigger requests get an unpooled buffer.
+ * DIRECT is for socket reads and writes, HEAP for payloads that are handed to
+ * other threads and need array().
+ * With naturalbase.tcp.buffer.leak-detection every buffer remembers where it
+ * was allocated, a buffer that is garbage collected without release() is
+ * logged with that stack trace.
+ */
+public class BufferPool {
+
+	public static final String CONFIG_MAX_PER_CLASS = "naturalbase.tcp.buffer.max-per-class";
+	public static final String CONFIG_LEAK_DETECTION = "naturalbase.tcp.buffer.leak-detection";
+
+	private static final int[] SIZE_CLASSES = {256, 1024, 4096, 16 * 1024, 64 * 1024};
+
+	public static final BufferPool DIRECT = new BufferPool("direct", true, SIZE_CLASSES,
+			NBConfig.getInt(CONFIG_MAX_PER_CLASS, 256), NBConfig.getBoolean(CONFIG_LEAK_DETECTION, false));
+	public static final BufferPool HEAP = new BufferPool("heap", false, SIZE_CLASSES,
+			NBConfig.getInt(CONFIG_MAX_PER_CLASS, 256), NBConfig.getBoolean(CONFIG_LEAK_DETECTION, false));
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private String name;
+	private boolean isDirect;
+	private int[] sizeClasses;
+	private int maxPerClass;
+	private boolean isLeakDetection;
+	private Queue<ByteBuffer>[] freeBuffers;
+	private AtomicInteger[] freeCounts;
+
+	private AtomicLong allocatedCount = new AtomicLong(0);
+	private AtomicLong reusedCount = new AtomicLong(0);
+	private AtomicLong leakCount = new AtomicLong(0);
+	private ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<PooledBuffer>();
+	// keeps the trackers reachable until their buffer is released or collected
+	private Map<LeakTracker, Boolean> trackers = new ConcurrentHashMap<LeakTracker, Boolean>();
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(String inName, boolean inIsDirect, int[] inSizeClasses, int inMaxPerClass, boolean inIsLeakDetection) {
+		name = inName;
+		isDirect = inIsDirect;
+		sizeClasses = inSizeClasses;
+		maxPerClass = inMaxPerClass;
+		isLeakDetection = inIsLeakDetection;
+		freeBuffers = new Queue[sizeClasses.length];
+		freeCounts = new AtomicInteger[sizeClasses.length];
+		for (int i = 0; i < sizeClasses.length; i++) {
+			freeBuffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			freeCounts[i] = new AtomicInteger(0);
+		}
+	}
+
+	/*
+	 * position 0, limit capacity. The caller owns one reference
+	 */
+	public PooledBuffer Allocate(int capacity) {
+		if (isLeakDetection) {
+			ReportLeaks();
+		}
+		int sizeClass = SizeClass(capacity);
+		ByteBuffer buffer = null;
+		if (sizeClass >= 0) {
+			buffer = freeBuffers[sizeClass].poll();
+			if (buffer != null) {
+				freeCounts[sizeClass].decrementAndGet();
+				reusedCount.incrementAndGet();
+			}
+		}
+		if (buffer == null) {
+			int size = sizeClass >= 0 ? sizeClasses[sizeClass] : capacity;
+			buffer = isDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+			allocatedCount.incrementAndGet();
+		}
+		buffer.clear();
+		buffer.limit(capacity);
+		PooledBuffer pooled = new PooledBuffer(this, buffer, sizeClass);
+		if (isLeakDetection) {
+			pooled.tracker = new LeakTracker(pooled, leakQueue, new Throwable("allocated here"));
+			trackers.put(pooled.tracker, Boolean.TRUE);
+		}
+		return pooled;
+	}
+
+	public long getAllocatedCount() {
+		return allocatedCount.get();
+	}
+
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	public long getLeakCount() {
+		if (isLeakDetection) {
+			ReportLeaks();
+		}
+		return leakCount.get();
+	}
+
+	void Free(PooledBuffer pooled) {
+		if (pooled.tracker != null) {
+			trackers.remove(pooled.tracker);
+			pooled.tracker.clear();
+		}
+		int sizeClass = pooled.sizeClass;
+		if (sizeClass < 0) {
+			return;
+		}
+		// a full class lets the buffer go to the garbage collector
+		if (freeCounts[sizeClass].incrementAndGet() > maxPerClass) {
+			freeCounts[sizeClass].decrementAndGet();
+			return;
+		}
+		freeBuffers[sizeClass].offer(pooled.buffer);
+	}
+
+	private int SizeClass(int capacity) {
+		for (int i = 0; i < sizeClasses.length; i++) {
+			if (capacity <= sizeClasses[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void ReportLeaks() {
+		Reference<? extends PooledBuffer> ref;
+		while ((ref = leakQueue.poll()) != null) {
+			LeakTracker tracker = (LeakTracker)ref;
+			if (trackers.remove(tracker) != null) {
+				leakCount.incrementAndGet();
+				logger.error("BufferPool " + name + " buffer was garbage collected without release().", tracker.allocation);
+			}
+		}
+	}
+
+	private static class LeakTracker extends PhantomReference<PooledBuffer> {
+		private Throwable allocation;
+
+		LeakTracker(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue, Throwable inAllocation) {
+			super(referent, queue);
+			allocation = inAllocation;
+		}
+	}
+
+	/*
+	 * reference counted buffer of a BufferPool
+	 */
+	public static class PooledBuffer {
+		private BufferPool pool;
+		private ByteBuffer buffer;
+		private int sizeClass;
+		private AtomicInteger refCount = new AtomicInteger(1);
+		private LeakTracker tracker;
+
+		PooledBuffer(BufferPool inPool, ByteBuffer inBuffer, int inSizeClass) {
+			pool = inPool;
+			buffer = inBuffer;
+			sizeClass = inSizeClass;
+		}
+
+		/*
+		 * not to be used after release()
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		/*
+		 * heap buffers only
+		 */
+		public byte[] array() {
+			return buffer.array();
+		}
+
+		public PooledBuffer retain() {
+			if (refCount.getAndIncrement() <= 0) {
+				throw new IllegalStateException("PooledBuffer retained after release");
+			}
+			return this;
+		}
+
+		public void release() {
+			int count = refCount.decrementAndGet();
+			if (count == 0) {
+				pool.Free(this);
+			}
+			else if (count < 0) {
+				throw new IllegalStateException("PooledBuffer released too often");
+			}
+		}
+
+		public int refCount() {
+			return refCount.get();
+		}
+	}
+}
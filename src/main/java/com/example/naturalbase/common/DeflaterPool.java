@@ -0,0 +1,60 @@
+package com.example.naturalbase.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/*
+ * Deflaters of one level and format, reset and handed out again instead of
+ * allocating the native zlib state (~256KB) for every value or request.
+ * Deflaters beyond maxIdle are end()ed on release.
+ */
+public class DeflaterPool {
+
+	public static final String CONFIG_MAX_IDLE = "naturalbase.zlib.pool.max-idle";
+	public static final int MAX_IDLE = NBConfig.getInt(CONFIG_MAX_IDLE, 64);
+
+	private int level;
+	private boolean isNowrap;
+	private int maxIdle;
+	private Queue<Deflater> idle = new ConcurrentLinkedQueue<Deflater>();
+	private AtomicInteger idleCount = new AtomicInteger(0);
+	private AtomicInteger createdCount = new AtomicInteger(0);
+
+	/*
+	 * isNowrap: raw deflate (gzip bodies), otherwise zlib
+	 */
+	public DeflaterPool(int inLevel, boolean inIsNowrap, int inMaxIdle) {
+		level = inLevel;
+		isNowrap = inIsNowrap;
+		maxIdle = inMaxIdle;
+	}
+
+	public Deflater Acquire() {
+		Deflater deflater = idle.poll();
+		if (deflater != null) {
+			idleCount.decrementAndGet();
+			return deflater;
+		}
+		createdCount.incrementAndGet();
+		return new Deflater(level, isNowrap);
+	}
+
+	/*
+	 * the deflater must not be used afterwards
+	 */
+	public void Release(Deflater deflater) {
+		deflater.reset();
+		if (idleCount.incrementAndGet() > maxIdle) {
+			idleCount.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		idle.offer(deflater);
+	}
+
+	public int getCreatedCount() {
+		return createdCount.get();
+	}
+}
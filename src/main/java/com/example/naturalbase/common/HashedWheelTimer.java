@@ -0,0 +1,181 @@
+package com.example.naturalbase.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Timer for many short lived timeouts (heart beats, idle checks). Timeouts
+ * hash into a ring of buckets by deadline, so scheduling and cancelling are
+ * O(1) and one thread serves any number of them. A timeout fires up to one
+ * tick late.
+ * Tasks run on the timer thread and must not block; hand anything slow to
+ * another executor.
+ */
+public class HashedWheelTimer {
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Thread worker;
+	private final long startTime;
+	private volatile boolean isRunning = true;
+	private long tick = 0;
+
+	public HashedWheelTimer(String name, long tickMs, int wheelSize) {
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+		// power of two, so the bucket index is a mask
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		startTime = System.nanoTime();
+		worker = new Thread(this::Run, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public Timeout newTimeout(Runnable task, long delayMs) {
+		long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+		Timeout timeout = new Timeout(task, deadline);
+		pendingTimeouts.offer(timeout);
+		return timeout;
+	}
+
+	public void stop() {
+		isRunning = false;
+		worker.interrupt();
+	}
+
+	private void Run() {
+		while (isRunning) {
+			long deadline = tickNanos * (tick + 1);
+			long sleepNanos = deadline - (System.nanoTime() - startTime);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				}
+				catch (InterruptedException e) {
+					continue;
+				}
+			}
+			TransferPending();
+			wheel[(int)(tick & mask)].Expire();
+			tick++;
+		}
+	}
+
+	/*
+	 * worker thread only
+	 */
+	private void TransferPending() {
+		Timeout timeout;
+		while ((timeout = pendingTimeouts.poll()) != null) {
+			if (timeout.isCancelled) {
+				continue;
+			}
+			long calculated = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (calculated - tick) / wheel.length;
+			// a deadline that already passed goes into the current bucket
+			long ticks = Math.max(calculated, tick);
+			wheel[(int)(ticks & mask)].Add(timeout);
+		}
+	}
+
+	private void RunTask(Timeout timeout) {
+		try {
+			timeout.task.run();
+		}
+		catch (RuntimeException e) {
+			logger.error("HashedWheelTimer task catch exception. Cause:" + e.toString());
+		}
+	}
+
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private volatile boolean isCancelled = false;
+		private Timeout prev;
+		private Timeout next;
+
+		Timeout(Runnable inTask, long inDeadline) {
+			task = inTask;
+			deadline = inDeadline;
+		}
+
+		/*
+		 * the task does not run if it has not started yet, the wheel drops
+		 * the timeout when it passes its bucket
+		 */
+		public void cancel() {
+			isCancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return isCancelled;
+		}
+	}
+
+	/*
+	 * doubly linked list, only touched by the worker thread
+	 */
+	private class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void Add(Timeout timeout) {
+			if (head == null) {
+				head = tail = timeout;
+			}
+			else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void Expire() {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.isCancelled) {
+					Remove(timeout);
+				}
+				else if (timeout.remainingRounds <= 0) {
+					Remove(timeout);
+					RunTask(timeout);
+				}
+				else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		private void Remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				head = timeout.next;
+			}
+			if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package com.example.naturalbase.common;
+
+import java.io.IOException;
+
+/*
+ * Writes one message as a stream of events, the same calls produce JSON or
+ * the binary encoding depending on what the client negotiated.
+ * writeValue takes null, Boolean, Number, String and Map / List trees of them.
+ */
+public interface IMessageWriter {
+	public void startObject() throws IOException;
+	public void endObject() throws IOException;
+	public void startArray() throws IOException;
+	public void endArray() throws IOException;
+	public void writeKey(String key) throws IOException;
+	public void writeValue(Object value) throws IOException;
+	public void flush() throws IOException;
+}
@@ -0,0 +1,50 @@
+package com.example.naturalbase.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/*
+ * Inflaters of one format, reset and handed out again, see DeflaterPool
+ */
+public class InflaterPool {
+
+	private boolean isNowrap;
+	private int maxIdle;
+	private Queue<Inflater> idle = new ConcurrentLinkedQueue<Inflater>();
+	private AtomicInteger idleCount = new AtomicInteger(0);
+	private AtomicInteger createdCount = new AtomicInteger(0);
+
+	public InflaterPool(boolean inIsNowrap, int inMaxIdle) {
+		isNowrap = inIsNowrap;
+		maxIdle = inMaxIdle;
+	}
+
+	public Inflater Acquire() {
+		Inflater inflater = idle.poll();
+		if (inflater != null) {
+			idleCount.decrementAndGet();
+			return inflater;
+		}
+		createdCount.incrementAndGet();
+		return new Inflater(isNowrap);
+	}
+
+	/*
+	 * the inflater must not be used afterwards
+	 */
+	public void Release(Inflater inflater) {
+		inflater.reset();
+		if (idleCount.incrementAndGet() > maxIdle) {
+			idleCount.decrementAndGet();
+			inflater.end();
+			return;
+		}
+		idle.offer(inflater);
+	}
+
+	public int getCreatedCount() {
+		return createdCount.get();
+	}
+}
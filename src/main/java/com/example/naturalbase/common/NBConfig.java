@@ -0,0 +1,86 @@
+package com.example.naturalbase.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Modules are created in main() before spring starts, so they read their
+ * settings from application.properties here. -Dkey=value overrides the file.
+ */
+public class NBConfig {
+
+	private static final String CONFIG_FILE = "application.properties";
+
+	private static Logger logger = LoggerFactory.getLogger(NBConfig.class);
+	private static Properties properties;
+
+	private static synchronized Properties GetProperties() {
+		if (properties == null) {
+			properties = new Properties();
+			InputStream in = NBConfig.class.getClassLoader().getResourceAsStream(CONFIG_FILE);
+			if (in == null) {
+				logger.error("NBConfig can not find " + CONFIG_FILE);
+				return properties;
+			}
+			try {
+				properties.load(in);
+				in.close();
+			}
+			catch (IOException e) {
+				logger.error("NBConfig load " + CONFIG_FILE + " catch exception. cause:" + e.getMessage());
+			}
+		}
+		return properties;
+	}
+
+	public static String getString(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			value = GetProperties().getProperty(key);
+		}
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			logger.error("NBConfig " + key + "=" + value + " is not a number, use default " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public static long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+			logger.error("NBConfig " + key + "=" + value + " is not a number, use default " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value);
+	}
+}
@@ -0,0 +1,82 @@
+package com.example.naturalbase.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Executors for work that blocks for a long time per task (a device
+ * connection, an HTTP request).
+ * platform - a cached pool of daemon platform threads
+ * virtual  - one virtual thread per task (JDK 21+), a blocked read costs a
+ *            few KB instead of a platform thread stack
+ * auto     - virtual if the running JDK has them, else platform
+ * The source stays on Java 8, virtual threads are looked up by reflection.
+ */
+public class NBExecutors {
+
+	public static final String MODE_PLATFORM = "platform";
+	public static final String MODE_VIRTUAL = "virtual";
+	public static final String MODE_AUTO = "auto";
+
+	private static Logger logger = LoggerFactory.getLogger(NBExecutors.class);
+
+	public static ExecutorService NewThreadPerTaskExecutor(String name, String mode) {
+		if (MODE_VIRTUAL.equalsIgnoreCase(mode) || MODE_AUTO.equalsIgnoreCase(mode)) {
+			ExecutorService executor = NewVirtualThreadExecutor(name);
+			if (executor != null) {
+				logger.info("NBExecutors " + name + " runs on virtual threads.");
+				return executor;
+			}
+			if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+				logger.error("NBExecutors " + name + " virtual threads need JDK 21 or later, use platform threads.");
+			}
+		}
+		else if (!MODE_PLATFORM.equalsIgnoreCase(mode)) {
+			logger.error("NBExecutors " + name + " unknown executor mode " + mode + ", use platform threads.");
+		}
+		AtomicInteger threadIndex = new AtomicInteger(0);
+		return Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, name + "-" + threadIndex.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public static boolean IsVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory()),
+	 * null before JDK 21
+	 */
+	private static ExecutorService NewVirtualThreadExecutor(String name) {
+		if (!IsVirtualThreadSupported()) {
+			return null;
+		}
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+			ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService)newExecutor.invoke(null, factory);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			logger.error("NBExecutors create virtual thread executor catch exception. Cause:" + e.toString());
+			return null;
+		}
+	}
+}
@@ -1,13 +1,18 @@
 package com.example.naturalbase.common;
 
+import java.io.IOException;
+
 import org.springframework.http.HttpStatus;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+
+import com.alibaba.fastjson.JSONObject;
 
 public class NBHttpResponse {
 	private HttpStatus statusCode;
 	private String returnStr = new String();
-	private Logger logger = LoggerFactory.getLogger(NBUtils.class);
+	// set for bodies kept as objects, serialized only when they are written
+	private JSONObject body;
+	// set for bodies that are written straight into the response stream
+	private IBodyWriter bodyWriter;
 	
 	public NBHttpResponse() {
 		statusCode = HttpStatus.INTERNAL_SERVER_ERROR;
@@ -16,13 +21,27 @@ public class NBHttpResponse {
 	
 	public NBHttpResponse(HttpStatus status, String str) {
 		statusCode = status;
-		try {
-			returnStr = new String(str.getBytes(), "UTF-8");
-		}
-		catch (Exception e) {
-			returnStr = "";
-			logger.error("NBHttpResponse catch encode exception. cause:" + e.getCause());
-		}
+		returnStr = str;
+	}
+	
+	/*
+	 * the body is written in the encoding the client asked for without a
+	 * round trip through JSON text
+	 */
+	public NBHttpResponse(HttpStatus status, JSONObject obj) {
+		statusCode = status;
+		returnStr = null;
+		body = obj;
+	}
+	
+	/*
+	 * the body is produced by writer while the response is sent, nothing is
+	 * buffered. Once it started the status can not change any more
+	 */
+	public NBHttpResponse(HttpStatus status, IBodyWriter writer) {
+		statusCode = status;
+		returnStr = null;
+		bodyWriter = writer;
 	}
 	
 	public HttpStatus getStatusCode() {
@@ -34,16 +53,34 @@ public class NBHttpResponse {
 	}
 	
 	public String getReturnStr() {
+		if (returnStr == null && body != null) {
+			return body.toJSONString();
+		}
 		return returnStr;
 	}
 	
 	public void setReturnStr(String str) {
-		try {
-			returnStr = new String(str.getBytes(), "UTF-8");
-		}
-		catch (Exception e) {
-			returnStr = "";
-			logger.error("NBHttpResponse setReturnStr catch encode exception. cause:" + e.getCause());
-		}
+		returnStr = str;
+		body = null;
+	}
+	
+	public JSONObject getBody() {
+		return body;
+	}
+	
+	public boolean isStreaming() {
+		return bodyWriter != null;
+	}
+	
+	public IBodyWriter getBodyWriter() {
+		return bodyWriter;
+	}
+	
+	public interface IBodyWriter {
+		/*
+		 * writes the body in the encoding the client asked for. An exception
+		 * aborts the response halfway
+		 */
+		public void write(IMessageWriter writer) throws IOException;
 	}
 }
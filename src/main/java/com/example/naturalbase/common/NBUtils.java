@@ -1,4 +1,9 @@
 package com.example.naturalbase.common;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -6,21 +11,19 @@ import com.alibaba.fastjson.JSONObject;
 
 public class NBUtils {
 	
+	public static final String ERROR_INFO_REASON = "Reason";
+	
 	private static Logger logger = LoggerFactory.getLogger(NBUtils.class);
 	
 	public static String  generateErrorInfo(String s) {
+		return generateErrorBody(s).toJSONString();
+	}
+	
+	public static JSONObject generateErrorBody(String s) {
 		JSONObject responseBody = new JSONObject();
-		responseBody.put("Reason", s);
-		
-		String retStr = new String();
-		try {
-			retStr = new String(responseBody.toJSONString().getBytes(), "UTF-8");
-		}
-		catch (Exception e) {
-			logger.error("NBUtils generateErrorInfo encode catch exception. cause:" + e.getCause());
-		}
+		responseBody.put(ERROR_INFO_REASON, s);
 		
-		return retStr;
+		return responseBody;
 	}
 	
 	public static String ToUTF8String(byte[] b) {
@@ -34,6 +37,21 @@ public class NBUtils {
 		return retStr;
 	}
 	
+	/*
+	 * null if b is not valid UTF-8
+	 */
+	public static String DecodeUTF8OrNull(byte[] b) {
+		try {
+			return StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(ByteBuffer.wrap(b)).toString();
+		}
+		catch (CharacterCodingException e) {
+			return null;
+		}
+	}
+	
 	public static String ByteArrayToHexString(byte[] b) {
 		StringBuilder builder = new StringBuilder();
 		for (int i=0; i<b.length; i++) {
@@ -0,0 +1,45 @@
+package com.example.naturalbase.naturalbase;
+
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.example.naturalbase.common.NBConfig;
+import com.example.naturalbase.common.NBExecutors;
+
+/*
+ * Lets Tomcat run the HTTP requests on an NBExecutors executor, e.g. virtual
+ * threads, instead of its own thread pool. "tomcat" keeps the Tomcat pool.
+ */
+@Configuration
+public class HttpExecutorConfig {
+
+	public static final String CONFIG_HTTP_EXECUTOR = "naturalbase.http.executor";
+	public static final String MODE_TOMCAT = "tomcat";
+
+	private static Logger logger = LoggerFactory.getLogger(HttpExecutorConfig.class);
+
+	@Bean
+	public WebServerFactoryCustomizer<TomcatServletWebServerFactory> HttpExecutorCustomizer() {
+		String mode = NBConfig.getString(CONFIG_HTTP_EXECUTOR, MODE_TOMCAT);
+		return factory -> {
+			if (MODE_TOMCAT.equalsIgnoreCase(mode)) {
+				return;
+			}
+			factory.addConnectorCustomizers(connector -> {
+				ProtocolHandler handler = connector.getProtocolHandler();
+				if (handler instanceof AbstractProtocol) {
+					((AbstractProtocol<?>)handler).setExecutor(NBExecutors.NewThreadPerTaskExecutor("HttpRequest", mode));
+				}
+				else {
+					logger.error("HttpExecutorConfig can not set executor of " + handler.getClass().getName());
+				}
+			});
+		};
+	}
+}
@@ -6,9 +6,11 @@ import java.io.InputStream;
 import java.util.Date;
 import java.util.Enumeration;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -17,6 +19,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.example.naturalbase.common.NBConfig;
 import com.example.naturalbase.naturalcommunicater.*;
 import com.example.naturalbase.naturalp2psyncmodule.*;
 import com.example.naturalbase.naturalstorage.*;
@@ -24,6 +27,8 @@ import com.example.naturalbase.naturalstorage.*;
 @RestController
 @SpringBootApplication
 public class NaturalbaseApplication {
+	public static final String CONFIG_DEBUG_TCP_STATS_ENABLED = "naturalbase.debug.tcp-stats.enabled";
+	
 	private static NaturalCommunicater nCommunicater;
 	private static NaturalP2PSyncModule nP2pSync;
 	private static NaturalStorage nStorage;
@@ -73,10 +78,22 @@ public class NaturalbaseApplication {
 		return httpContent;
 	}
 	
-	@RequestMapping(value = "/naturalbase", method = RequestMethod.POST, produces="application/json")
+	/*
+	 * lists device ids and send queues, off unless naturalbase.debug.tcp-stats.enabled
+	 */
+	@RequestMapping(value = "/debug/tcp", produces="application/json")
+	@ResponseBody
+	public ResponseEntity<String> TcpStats() {
+		if (!NBConfig.getBoolean(CONFIG_DEBUG_TCP_STATS_ENABLED, false)) {
+			return new ResponseEntity<String>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<String>(nCommunicater.GetTcpStats().toJSONString(), HttpStatus.OK);
+	}
+	
+	@RequestMapping(value = "/naturalbase", method = RequestMethod.POST, produces={"application/json", BinaryMessageCodec.CONTENT_TYPE})
 	@ResponseBody
-	public ResponseEntity<Object> NaturalBaseRequestMain(HttpServletRequest request) {
-		return nCommunicater.IncommingRequestProc(request);
+	public ResponseEntity<Object> NaturalBaseRequestMain(HttpServletRequest request, HttpServletResponse response) {
+		return nCommunicater.IncommingRequestProc(request, response);
 	}
 	
 	public static void main(String[] args) {
@@ -84,6 +101,11 @@ public class NaturalbaseApplication {
 		nCommunicater = NaturalCommunicater.Instance();
 		nStorage = new NaturalStorage();
 		nP2pSync = new NaturalP2PSyncModule(nCommunicater, nStorage);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			logger.info("Application shutdown, close storage!");
+			nP2pSync.Close();
+			nStorage.Close();
+		}));
 		logger.info("Application finish Init!");
 		
 		Date d = new Date();
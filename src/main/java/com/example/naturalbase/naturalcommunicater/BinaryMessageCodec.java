@@ -0,0 +1,382 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+/*
+ * Binary encoding of the JSON messages, the same MessageHeader / Message tree
+ * without field names, quotes and digits as text. Selected by Content-Type
+ * CONTENT_TYPE on HTTP; on TCP a DATA payload that starts with MAGIC is binary.
+ *   message: MAGIC VERSION value
+ *   value:   tag(1) [body]
+ *     NULL, FALSE, TRUE
+ *     INT             zigzag varint
+ *     DECIMAL_STRING  zigzag varint of a string like "1544000000000" (time stamps, sequences)
+ *     STRING          varint length, UTF-8
+ *     BYTES           varint length, raw. A "Value" with ValueEncoding base64
+ *     DOUBLE          8 bytes big endian
+ *     OBJECT          (key value)* END, key is a varint: index + 2 into KEYS, 1 and a STRING body otherwise
+ *     ARRAY           value* END
+ * Decode() returns what the JSON parser would return for the same message,
+ * BYTES come back as the base64 string. Malformed input throws IllegalArgumentException.
+ */
+public class BinaryMessageCodec {
+
+	public static final String CONTENT_TYPE = "application/x-naturalbase-binary";
+	// 0xB1 is neither '{' nor white space nor a valid first byte of UTF-8
+	public static final int MAGIC = 0xB1;
+	public static final int VERSION = 1;
+
+	static final int TAG_END = 0x00;
+	static final int TAG_NULL = 0x01;
+	static final int TAG_FALSE = 0x02;
+	static final int TAG_TRUE = 0x03;
+	static final int TAG_INT = 0x04;
+	static final int TAG_DECIMAL_STRING = 0x05;
+	static final int TAG_STRING = 0x06;
+	static final int TAG_BYTES = 0x07;
+	static final int TAG_DOUBLE = 0x08;
+	static final int TAG_OBJECT = 0x09;
+	static final int TAG_ARRAY = 0x0A;
+
+	// key varints: TAG_END ends the object, KEY_INLINE is followed by the key's UTF-8
+	private static final int KEY_INLINE = 1;
+	private static final int KEY_FIRST_INDEX = 2;
+	// part of the protocol: only append, never reorder
+	private static final String[] KEYS = {
+		"MessageHeader", "Message", "MessageType", "RequestId", "DeviceId",
+		"DataItemSize", "DataItem", "Key", "Value", "ValueEncoding", "ValueCodec",
+		"TimeStamp", "DeleteBit", "Sequence", "PreviousSequence", "ContinuationToken",
+		"HasMore", "FullResync", "MaxItems", "AcceptCodec", "RejectedKey", "Return",
+		"Found", "Reason", "Messages", "Responses", "Status", "Body"
+	};
+	private static final Map<String, Integer> KEY_INDEX = new HashMap<String, Integer>();
+	static {
+		for (int i = 0; i < KEYS.length; i++) {
+			KEY_INDEX.put(KEYS[i], i + KEY_FIRST_INDEX);
+		}
+	}
+
+	private static final String KEY_VALUE = "Value";
+	private static final String KEY_VALUE_ENCODING = "ValueEncoding";
+	private static final String VALUE_ENCODING_BASE64 = "base64";
+	private static final int MAX_DEPTH = 64;
+
+	public static boolean IsBinaryContentType(String contentType) {
+		return contentType != null && contentType.contains(CONTENT_TYPE);
+	}
+
+	public static boolean IsBinary(byte[] message, int off, int len) {
+		return len > 0 && (message[off] & 0xFF) == MAGIC;
+	}
+
+	public static byte[] Encode(Map<String, Object> message) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		try {
+			out.write(MAGIC);
+			out.write(VERSION);
+			WriteObject(out, message, 0);
+		}
+		catch (IOException e) {
+			// not thrown by ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	public static JSONObject Decode(byte[] message, int off, int len) {
+		Reader reader = new Reader(message, off, len);
+		if (reader.ReadByte() != MAGIC) {
+			throw new IllegalArgumentException("not a binary message");
+		}
+		int version = reader.ReadByte();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("unsupported binary message version " + version);
+		}
+		Object root = reader.ReadValue(0);
+		if (!(root instanceof JSONObject)) {
+			throw new IllegalArgumentException("binary message is not an object");
+		}
+		if (reader.pos != reader.limit) {
+			throw new IllegalArgumentException("binary message has " + (reader.limit - reader.pos) + " trailing bytes");
+		}
+		return (JSONObject)root;
+	}
+
+	static void WriteKey(OutputStream out, String key) throws IOException {
+		Integer index = KEY_INDEX.get(key);
+		if (index != null) {
+			WriteVarLong(out, index);
+		}
+		else {
+			out.write(KEY_INLINE);
+			WriteBytes(out, key.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static void WriteValue(OutputStream out, Object value, int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IllegalArgumentException("message nested deeper than " + MAX_DEPTH);
+		}
+		if (value == null) {
+			out.write(TAG_NULL);
+		}
+		else if (value instanceof Boolean) {
+			out.write((Boolean)value ? TAG_TRUE : TAG_FALSE);
+		}
+		else if (value instanceof String) {
+			WriteString(out, (String)value);
+		}
+		else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			out.write(TAG_INT);
+			WriteVarLong(out, ZigZag(((Number)value).longValue()));
+		}
+		else if (value instanceof BigInteger && ((BigInteger)value).bitLength() < 64) {
+			out.write(TAG_INT);
+			WriteVarLong(out, ZigZag(((BigInteger)value).longValue()));
+		}
+		else if (value instanceof Number && !(value instanceof BigInteger)) {
+			out.write(TAG_DOUBLE);
+			long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int)(bits >>> shift));
+			}
+		}
+		else if (value instanceof byte[]) {
+			out.write(TAG_BYTES);
+			WriteBytes(out, (byte[])value);
+		}
+		else if (value instanceof Map) {
+			WriteObject(out, (Map<String, Object>)value, depth + 1);
+		}
+		else if (value instanceof Collection) {
+			out.write(TAG_ARRAY);
+			for (Object element : (Collection<Object>)value) {
+				WriteValue(out, element, depth + 1);
+			}
+			out.write(TAG_END);
+		}
+		else {
+			// big integers, enums, beans: whatever fastjson would make of them
+			Object json = JSON.toJSON(value);
+			WriteValue(out, json == value ? value.toString() : json, depth);
+		}
+	}
+
+	private static void WriteObject(OutputStream out, Map<String, Object> obj, int depth) throws IOException {
+		out.write(TAG_OBJECT);
+		boolean isBase64Value = VALUE_ENCODING_BASE64.equals(obj.get(KEY_VALUE_ENCODING));
+		for (Map.Entry<String, Object> e : obj.entrySet()) {
+			WriteKey(out, e.getKey());
+			if (isBase64Value && KEY_VALUE.equals(e.getKey()) && e.getValue() instanceof String) {
+				out.write(TAG_BYTES);
+				WriteBytes(out, Base64.getDecoder().decode((String)e.getValue()));
+			}
+			else {
+				WriteValue(out, e.getValue(), depth);
+			}
+		}
+		out.write(TAG_END);
+	}
+
+	private static void WriteString(OutputStream out, String value) throws IOException {
+		long number = ParseDecimal(value);
+		if (number != Long.MIN_VALUE) {
+			out.write(TAG_DECIMAL_STRING);
+			WriteVarLong(out, ZigZag(number));
+			return;
+		}
+		out.write(TAG_STRING);
+		WriteBytes(out, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * the value of a string that Long.toString() gives back unchanged,
+	 * Long.MIN_VALUE for any other string
+	 */
+	private static long ParseDecimal(String value) {
+		int length = value.length();
+		if (length == 0 || length > 19) {
+			return Long.MIN_VALUE;
+		}
+		int i = value.charAt(0) == '-' ? 1 : 0;
+		if (i == length || value.charAt(i) < '0' || value.charAt(i) > '9' ||
+			(value.charAt(i) == '0' && (length > i + 1 || i == 1))) {
+			return Long.MIN_VALUE;
+		}
+		long number = 0;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return Long.MIN_VALUE;
+			}
+			// 18 digits and a sign can not overflow, 19 digits can
+			number = number * 10 + (c - '0');
+			if (number < 0) {
+				return Long.MIN_VALUE;
+			}
+		}
+		return value.charAt(0) == '-' ? -number : number;
+	}
+
+	private static void WriteBytes(OutputStream out, byte[] value) throws IOException {
+		WriteVarLong(out, value.length);
+		out.write(value);
+	}
+
+	private static void WriteVarLong(OutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int)v);
+	}
+
+	private static long ZigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static class Reader {
+		private byte[] buffer;
+		private int pos;
+		private int limit;
+
+		Reader(byte[] inBuffer, int off, int len) {
+			buffer = inBuffer;
+			pos = off;
+			limit = off + len;
+		}
+
+		int ReadByte() {
+			if (pos >= limit) {
+				throw new IllegalArgumentException("binary message truncated");
+			}
+			return buffer[pos++] & 0xFF;
+		}
+
+		int PeekByte() {
+			if (pos >= limit) {
+				throw new IllegalArgumentException("binary message truncated");
+			}
+			return buffer[pos] & 0xFF;
+		}
+
+		long ReadVarLong() {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = ReadByte();
+				v |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IllegalArgumentException("binary message varint too long");
+		}
+
+		long ReadZigZag() {
+			long v = ReadVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		byte[] ReadBytes() {
+			long length = ReadVarLong();
+			if (length < 0 || length > limit - pos) {
+				throw new IllegalArgumentException("binary message length " + length + " exceeds message");
+			}
+			byte[] value = new byte[(int)length];
+			System.arraycopy(buffer, pos, value, 0, value.length);
+			pos += value.length;
+			return value;
+		}
+
+		String ReadString() {
+			long length = ReadVarLong();
+			if (length < 0 || length > limit - pos) {
+				throw new IllegalArgumentException("binary message length " + length + " exceeds message");
+			}
+			String value = new String(buffer, pos, (int)length, StandardCharsets.UTF_8);
+			pos += (int)length;
+			return value;
+		}
+
+		Object ReadValue(int depth) {
+			if (depth > MAX_DEPTH) {
+				throw new IllegalArgumentException("binary message nested deeper than " + MAX_DEPTH);
+			}
+			int tag = ReadByte();
+			switch (tag) {
+				case TAG_NULL:
+					return null;
+				case TAG_FALSE:
+					return Boolean.FALSE;
+				case TAG_TRUE:
+					return Boolean.TRUE;
+				case TAG_INT: {
+					long v = ReadZigZag();
+					if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+						return (int)v;
+					}
+					return v;
+				}
+				case TAG_DECIMAL_STRING:
+					return Long.toString(ReadZigZag());
+				case TAG_STRING:
+					return ReadString();
+				case TAG_BYTES:
+					return Base64.getEncoder().encodeToString(ReadBytes());
+				case TAG_DOUBLE: {
+					long bits = 0;
+					for (int i = 0; i < 8; i++) {
+						bits = (bits << 8) | ReadByte();
+					}
+					// fastjson parses decimals as BigDecimal
+					return BigDecimal.valueOf(Double.longBitsToDouble(bits));
+				}
+				case TAG_OBJECT: {
+					JSONObject obj = new JSONObject();
+					while (true) {
+						long keyIndex = ReadVarLong();
+						if (keyIndex == TAG_END) {
+							break;
+						}
+						String key;
+						if (keyIndex == KEY_INLINE) {
+							key = ReadString();
+						}
+						else if (keyIndex - KEY_FIRST_INDEX < KEYS.length) {
+							key = KEYS[(int)keyIndex - KEY_FIRST_INDEX];
+						}
+						else {
+							throw new IllegalArgumentException("binary message unknown key index " + keyIndex);
+						}
+						obj.put(key, ReadValue(depth + 1));
+					}
+					return obj;
+				}
+				case TAG_ARRAY: {
+					JSONArray array = new JSONArray();
+					while (PeekByte() != TAG_END) {
+						array.add(ReadValue(depth + 1));
+					}
+					pos++;
+					return array;
+				}
+				default:
+					throw new IllegalArgumentException("binary message unknown tag " + tag);
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.example.naturalbase.common.IMessageWriter;
+
+/*
+ * IMessageWriter in the encoding of BinaryMessageCodec, one message per writer
+ */
+public class BinaryMessageWriter implements IMessageWriter {
+
+	private OutputStream out;
+	private boolean isStarted;
+	private int depth;
+
+	public BinaryMessageWriter(OutputStream inOut) {
+		out = new BufferedOutputStream(inOut, 8 * 1024);
+	}
+
+	@Override
+	public void startObject() throws IOException {
+		if (!isStarted) {
+			out.write(BinaryMessageCodec.MAGIC);
+			out.write(BinaryMessageCodec.VERSION);
+			isStarted = true;
+		}
+		out.write(BinaryMessageCodec.TAG_OBJECT);
+		depth++;
+	}
+
+	@Override
+	public void endObject() throws IOException {
+		out.write(BinaryMessageCodec.TAG_END);
+		depth--;
+	}
+
+	@Override
+	public void startArray() throws IOException {
+		out.write(BinaryMessageCodec.TAG_ARRAY);
+		depth++;
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		out.write(BinaryMessageCodec.TAG_END);
+		depth--;
+	}
+
+	@Override
+	public void writeKey(String key) throws IOException {
+		BinaryMessageCodec.WriteKey(out, key);
+	}
+
+	@Override
+	public void writeValue(Object value) throws IOException {
+		BinaryMessageCodec.WriteValue(out, value, depth);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+}
@@ -0,0 +1,117 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Runs tasks on a worker pool, in submit order per device. Every device has
+ * its own bounded queue that is drained by at most one worker at a time, so a
+ * device with a slow socket only holds up its own tasks. Idle workers park on
+ * the pool queue.
+ */
+public class DeviceDispatcher {
+
+	// tasks run per turn before a busy device gives its worker to the others
+	private static final int MAX_TASKS_PER_TURN = 64;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private String name;
+	private int queueCapacity;
+	private ExecutorService workers;
+	private Map<Integer, DeviceQueue> deviceQueues = new ConcurrentHashMap<Integer, DeviceQueue>();
+	private AtomicLong rejectedCount = new AtomicLong(0);
+
+	public DeviceDispatcher(String inName, int workerCount, int inQueueCapacity) {
+		name = inName;
+		queueCapacity = inQueueCapacity;
+		AtomicInteger threadIndex = new AtomicInteger(0);
+		workers = Executors.newFixedThreadPool(Math.max(1, workerCount), r -> {
+			Thread thread = new Thread(r, name + "-" + threadIndex.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/*
+	 * returns false if the device queue is full or the dispatcher is closed
+	 */
+	public boolean Submit(int deviceId, Runnable task) {
+		DeviceQueue queue = deviceQueues.computeIfAbsent(deviceId, id -> new DeviceQueue(id));
+		if (!queue.tasks.offer(task)) {
+			rejectedCount.incrementAndGet();
+			logger.error(name + " queue of device " + deviceId + " is full, drop task.");
+			return false;
+		}
+		return queue.Schedule();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public int getQueuedCount(int deviceId) {
+		DeviceQueue queue = deviceQueues.get(deviceId);
+		return queue == null ? 0 : queue.tasks.size();
+	}
+
+	public void Close() {
+		workers.shutdownNow();
+	}
+
+	private class DeviceQueue implements Runnable {
+		private int deviceId;
+		private BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>(queueCapacity);
+		private AtomicBoolean isScheduled = new AtomicBoolean(false);
+
+		DeviceQueue(int inDeviceId) {
+			deviceId = inDeviceId;
+		}
+
+		boolean Schedule() {
+			if (!isScheduled.compareAndSet(false, true)) {
+				return true;
+			}
+			try {
+				workers.execute(this);
+				return true;
+			}
+			catch (RejectedExecutionException e) {
+				isScheduled.set(false);
+				tasks.clear();
+				return false;
+			}
+		}
+
+		@Override
+		public void run() {
+			Runnable task;
+			int n = 0;
+			while (n < MAX_TASKS_PER_TURN && (task = tasks.poll()) != null) {
+				n++;
+				try {
+					task.run();
+				}
+				catch (RuntimeException e) {
+					logger.error(name + " task of device " + deviceId + " catch exception. Cause:" + e.toString());
+				}
+			}
+			isScheduled.set(false);
+			// a task offered after the last poll saw isScheduled still set
+			if (!tasks.isEmpty()) {
+				Schedule();
+			}
+		}
+	}
+}
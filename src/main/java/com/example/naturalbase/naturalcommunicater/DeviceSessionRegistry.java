@@ -0,0 +1,93 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+ * Current session of every device. Every connection that comes online gets a
+ * new, higher generation; events of an older generation are stale and
+ * ignored, so the offline callback of a replaced channel can not end the
+ * session of the new one. A closed session stays as a marker until
+ * Expire() removes it, then a delayed offline can tell whether the device
+ * came back in between.
+ * Get() is a plain ConcurrentHashMap read, no lock on the send path.
+ */
+public class DeviceSessionRegistry {
+
+	private Map<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+	private AtomicLong nextGeneration = new AtomicLong(1);
+
+	/*
+	 * the channel of the current session, null if the device is not connected
+	 */
+	public ITcpChannel Get(int deviceId) {
+		Session session = sessions.get(deviceId);
+		return session == null ? null : session.channel;
+	}
+
+	public Session GetSession(int deviceId) {
+		return sessions.get(deviceId);
+	}
+
+	/*
+	 * returns the new session, or null if channel already is the current
+	 * session. A replaced channel is handed to onReplaced to be closed
+	 */
+	public Session Open(int deviceId, ITcpChannel channel, Consumer<ITcpChannel> onReplaced) {
+		Session[] replaced = new Session[1];
+		Session[] opened = new Session[1];
+		sessions.compute(deviceId, (id, old) -> {
+			replaced[0] = null;
+			opened[0] = null;
+			if (old != null && old.channel == channel) {
+				return old;
+			}
+			replaced[0] = old;
+			opened[0] = new Session(id, nextGeneration.getAndIncrement(), channel);
+			return opened[0];
+		});
+		if (replaced[0] != null && replaced[0].channel != null && onReplaced != null) {
+			onReplaced.accept(replaced[0].channel);
+		}
+		return opened[0];
+	}
+
+	/*
+	 * returns the closed session, or null if channel is not the current
+	 * session (stale event)
+	 */
+	public Session Close(int deviceId, ITcpChannel channel) {
+		Session current = sessions.get(deviceId);
+		if (current == null || current.channel == null || current.channel != channel) {
+			return null;
+		}
+		Session closed = new Session(deviceId, current.generation, null);
+		return sessions.replace(deviceId, current, closed) ? closed : null;
+	}
+
+	/*
+	 * true if the closed session is still the latest one, it is removed then
+	 */
+	public boolean Expire(Session closed) {
+		return sessions.remove(closed.deviceId, closed);
+	}
+
+	public Map<Integer, Session> getSessions() {
+		return sessions;
+	}
+
+	public static class Session {
+		public final int deviceId;
+		public final long generation;
+		// null once the session is closed
+		public final ITcpChannel channel;
+
+		Session(int inDeviceId, long inGeneration, ITcpChannel inChannel) {
+			deviceId = inDeviceId;
+			generation = inGeneration;
+			channel = inChannel;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.naturalbase.common.NBConfig;
+
+/*
+ * Frames on the device connection.
+ * legacy:   type(0x55|0x5A|0xAA) len(1) payload
+ * extended: 0xEF version(1) flags(1) type(1) len(varint) payload [crc32(4, big endian) if FLAG_CRC]
+ * One codec per connection. Decode() takes whatever bytes the socket
+ * delivered and keeps a partial frame until the rest arrives; the payload
+ * buffer is reused from frame to frame.
+ */
+public class FrameCodec {
+
+	public static final int FRAME_TYPE_EXTENDED = 0xEF;
+	public static final int FRAME_VERSION = 1;
+	public static final int FLAG_CRC = 0x01;
+	public static final int LEGACY_MAX_PAYLOAD = 0xFF;
+
+	public static final String CONFIG_MAX_FRAME_BYTES = "naturalbase.tcp.frame.max-bytes";
+	public static final int MAX_FRAME_BYTES = NBConfig.getInt(CONFIG_MAX_FRAME_BYTES, 1024 * 1024);
+
+	// a buffer grown beyond this by one big frame is given back afterwards
+	private static final int RETAINED_BUFFER_BYTES = 64 * 1024;
+	private static final int INITIAL_BUFFER_BYTES = 256;
+	private static final int MAX_VARINT_BYTES = 5;
+
+	private static final int STATE_TYPE = 0;
+	private static final int STATE_LEGACY_LENGTH = 1;
+	private static final int STATE_VERSION = 2;
+	private static final int STATE_FLAGS = 3;
+	private static final int STATE_EXTENDED_TYPE = 4;
+	private static final int STATE_EXTENDED_LENGTH = 5;
+	private static final int STATE_BODY = 6;
+	private static final int STATE_CRC = 7;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private int maxFrameBytes;
+	private int state = STATE_TYPE;
+	private int frameType;
+	private int flags;
+	private int length;
+	private int lengthShift;
+	private int offset;
+	private int crcValue;
+	private int crcBytes;
+	private byte[] body = new byte[INITIAL_BUFFER_BYTES];
+	private CRC32 crc = new CRC32();
+	private String error;
+
+	public FrameCodec() {
+		this(MAX_FRAME_BYTES);
+	}
+
+	public FrameCodec(int inMaxFrameBytes) {
+		maxFrameBytes = inMaxFrameBytes;
+	}
+
+	public static boolean IsLegacyType(int type) {
+		return type == TCPChannel.TCP_MESSAGE_TYPE_DEVICE_ONLINE ||
+			   type == TCPChannel.TCP_MESSAGE_TYPE_HEART_BEAT ||
+			   type == TCPChannel.TCP_MESSAGE_TYPE_DATA_CHANGE;
+	}
+
+	/*
+	 * consumes all of in, returns false on a protocol error (see getError()),
+	 * the connection can not be resynchronized after that
+	 */
+	public boolean Decode(ByteBuffer in, IFrameHandler handler) {
+		while (in.hasRemaining()) {
+			if (state == STATE_BODY) {
+				int n = Math.min(length - offset, in.remaining());
+				in.get(body, offset, n);
+				offset += n;
+				if (offset == length) {
+					FinishBody(handler);
+				}
+				continue;
+			}
+			int b = in.get() & 0xFF;
+			switch (state) {
+				case STATE_TYPE:
+					if (b == FRAME_TYPE_EXTENDED) {
+						state = STATE_VERSION;
+					}
+					else if (IsLegacyType(b)) {
+						frameType = b;
+						flags = 0;
+						state = STATE_LEGACY_LENGTH;
+					}
+					else {
+						logger.error("FrameCodec invalid message type. type = " + String.format("0x%x", b));
+					}
+					break;
+				case STATE_LEGACY_LENGTH:
+					StartBody(b, handler);
+					break;
+				case STATE_VERSION:
+					if (b != FRAME_VERSION) {
+						return Fail("unsupported frame version " + b);
+					}
+					state = STATE_FLAGS;
+					break;
+				case STATE_FLAGS:
+					if ((b & ~FLAG_CRC) != 0) {
+						return Fail("unknown frame flags " + String.format("0x%x", b));
+					}
+					flags = b;
+					state = STATE_EXTENDED_TYPE;
+					break;
+				case STATE_EXTENDED_TYPE:
+					frameType = b;
+					length = 0;
+					lengthShift = 0;
+					state = STATE_EXTENDED_LENGTH;
+					break;
+				case STATE_EXTENDED_LENGTH:
+					length |= (b & 0x7F) << lengthShift;
+					lengthShift += 7;
+					if ((b & 0x80) == 0) {
+						if (length < 0 || length > maxFrameBytes) {
+							return Fail("frame length " + length + " exceeds " + maxFrameBytes);
+						}
+						StartBody(length, handler);
+					}
+					else if (lengthShift >= 7 * MAX_VARINT_BYTES) {
+						return Fail("frame length varint too long");
+					}
+					break;
+				case STATE_CRC:
+					crcValue = (crcValue << 8) | b;
+					if (++crcBytes == 4) {
+						crc.reset();
+						crc.update(body, 0, length);
+						if ((int)crc.getValue() != crcValue) {
+							return Fail("frame crc mismatch, type " + String.format("0x%x", frameType));
+						}
+						Deliver(handler);
+					}
+					break;
+				default:
+					break;
+			}
+		}
+		return true;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	private void StartBody(int inLength, IFrameHandler handler) {
+		length = inLength;
+		offset = 0;
+		if (body.length < length) {
+			body = new byte[Math.max(length, Math.min(body.length * 2, maxFrameBytes))];
+		}
+		state = STATE_BODY;
+		if (length == 0) {
+			FinishBody(handler);
+		}
+	}
+
+	private void FinishBody(IFrameHandler handler) {
+		if ((flags & FLAG_CRC) != 0) {
+			crcValue = 0;
+			crcBytes = 0;
+			state = STATE_CRC;
+		}
+		else {
+			Deliver(handler);
+		}
+	}
+
+	private void Deliver(IFrameHandler handler) {
+		state = STATE_TYPE;
+		handler.onFrame(frameType, body, length);
+		if (body.length > RETAINED_BUFFER_BYTES) {
+			body = new byte[INITIAL_BUFFER_BYTES];
+		}
+	}
+
+	private boolean Fail(String cause) {
+		error = cause;
+		logger.error("FrameCodec decode fail. Cause:" + cause);
+		return false;
+	}
+
+	/*
+	 * payloads over 255 bytes or of non legacy types need Encode()
+	 */
+	public static byte[] EncodeLegacy(int type, byte[] payload) {
+		if (payload.length > LEGACY_MAX_PAYLOAD) {
+			throw new IllegalArgumentException("legacy frame payload too long: " + payload.length);
+		}
+		byte[] frame = new byte[2 + payload.length];
+		frame[0] = (byte)type;
+		frame[1] = (byte)payload.length;
+		System.arraycopy(payload, 0, frame, 2, payload.length);
+		return frame;
+	}
+
+	public static int EncodedLength(int payloadLength, boolean withCrc) {
+		return 4 + VarIntLength(payloadLength) + payloadLength + (withCrc ? 4 : 0);
+	}
+
+	public static byte[] Encode(int type, byte[] payload, int off, int len, boolean withCrc) {
+		ByteBuffer out = ByteBuffer.allocate(EncodedLength(len, withCrc));
+		Encode(type, payload, off, len, withCrc, out);
+		return out.array();
+	}
+
+	public static byte[] Encode(int type, byte[] payload, boolean withCrc) {
+		return Encode(type, payload, 0, payload.length, withCrc);
+	}
+
+	/*
+	 * writes the extended frame into out, which needs EncodedLength() bytes left
+	 */
+	public static void Encode(int type, byte[] payload, int off, int len, boolean withCrc, ByteBuffer out) {
+		out.put((byte)FRAME_TYPE_EXTENDED);
+		out.put((byte)FRAME_VERSION);
+		out.put((byte)(withCrc ? FLAG_CRC : 0));
+		out.put((byte)type);
+		int v = len;
+		while ((v & ~0x7F) != 0) {
+			out.put((byte)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte)v);
+		out.put(payload, off, len);
+		if (withCrc) {
+			CRC32 crc = new CRC32();
+			crc.update(payload, off, len);
+			out.putInt((int)crc.getValue());
+		}
+	}
+
+	private static int VarIntLength(int v) {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,383 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.example.naturalbase.common.DeflaterPool;
+import com.example.naturalbase.common.InflaterPool;
+
+/*
+ * gzip / deflate (zlib) Content-Encoding of the /naturalbase bodies.
+ * Requests are inflated while they are parsed; responses are compressed once
+ * they reach minBytes, smaller ones go out as they are. Deflaters and
+ * inflaters come from pools, java.util.zip.GZIP*Stream would allocate a new
+ * native one for every request.
+ */
+public class HttpCompression {
+
+	public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	public static final String ENCODING_GZIP = "gzip";
+	public static final String ENCODING_DEFLATE = "deflate";
+	public static final String ENCODING_IDENTITY = "identity";
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int GZIP_FLAG_HCRC = 0x02;
+	private static final int GZIP_FLAG_EXTRA = 0x04;
+	private static final int GZIP_FLAG_NAME = 0x08;
+	private static final int GZIP_FLAG_COMMENT = 0x10;
+	private static final byte[] GZIP_HEADER = {0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff};
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private boolean isEnabled;
+	private int minBytes;
+	private DeflaterPool gzipDeflaters;
+	private DeflaterPool zlibDeflaters;
+	private InflaterPool gzipInflaters;
+	private InflaterPool zlibInflaters;
+
+	public HttpCompression(boolean inIsEnabled, int inMinBytes, int level) {
+		isEnabled = inIsEnabled;
+		minBytes = inMinBytes;
+		gzipDeflaters = new DeflaterPool(level, true, DeflaterPool.MAX_IDLE);
+		zlibDeflaters = new DeflaterPool(level, false, DeflaterPool.MAX_IDLE);
+		gzipInflaters = new InflaterPool(true, DeflaterPool.MAX_IDLE);
+		zlibInflaters = new InflaterPool(false, DeflaterPool.MAX_IDLE);
+	}
+
+	/*
+	 * request Content-Encoding, null is the same as identity
+	 */
+	public static boolean IsSupported(String contentEncoding) {
+		return contentEncoding == null || contentEncoding.trim().isEmpty() ||
+			   ENCODING_IDENTITY.equalsIgnoreCase(contentEncoding.trim()) ||
+			   ENCODING_GZIP.equalsIgnoreCase(contentEncoding.trim()) ||
+			   ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding.trim());
+	}
+
+	/*
+	 * the request body as it was before compression, see IsSupported().
+	 * Closing the stream returns the inflater
+	 */
+	public InputStream DecodeRequest(InputStream in, String contentEncoding) throws IOException {
+		if (contentEncoding == null) {
+			return in;
+		}
+		if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding.trim())) {
+			return new PooledInflaterInputStream(in, gzipInflaters, true);
+		}
+		if (ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding.trim())) {
+			return new PooledInflaterInputStream(in, zlibInflaters, false);
+		}
+		return in;
+	}
+
+	/*
+	 * gzip, deflate or null (not compressed) for an Accept-Encoding header,
+	 * an encoding with q=0 is not accepted
+	 */
+	public String NegotiateResponse(String acceptEncoding) {
+		if (!isEnabled || acceptEncoding == null) {
+			return null;
+		}
+		boolean isDeflateAccepted = false;
+		for (String token : acceptEncoding.split(",")) {
+			String[] parts = token.split(";");
+			String coding = parts[0].trim();
+			boolean isRefused = false;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						isRefused = Double.parseDouble(param.substring(2)) <= 0;
+					}
+					catch (NumberFormatException e) {
+						isRefused = true;
+					}
+				}
+			}
+			if (isRefused) {
+				continue;
+			}
+			if (ENCODING_GZIP.equalsIgnoreCase(coding) || "*".equals(coding)) {
+				return ENCODING_GZIP;
+			}
+			if (ENCODING_DEFLATE.equalsIgnoreCase(coding)) {
+				isDeflateAccepted = true;
+			}
+		}
+		return isDeflateAccepted ? ENCODING_DEFLATE : null;
+	}
+
+	/*
+	 * the response body goes through the returned stream, close() finishes it.
+	 * Content-Encoding is only set once minBytes were written, until then
+	 * nothing reaches the client and the response can still be reset
+	 */
+	public ResponseOutputStream NewResponseStream(HttpServletResponse response, String encoding) {
+		return new ResponseOutputStream(response, encoding);
+	}
+
+	public class ResponseOutputStream extends OutputStream {
+		private HttpServletResponse response;
+		private String encoding;
+		private ByteArrayOutputStream pending = new ByteArrayOutputStream(BUFFER_SIZE);
+		private PooledDeflaterOutputStream compressor;
+		private boolean isClosed;
+
+		ResponseOutputStream(HttpServletResponse inResponse, String inEncoding) {
+			response = inResponse;
+			encoding = inEncoding;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (compressor != null) {
+				compressor.write(b, off, len);
+				return;
+			}
+			pending.write(b, off, len);
+			if (pending.size() >= minBytes) {
+				response.setHeader(HEADER_CONTENT_ENCODING, encoding);
+				compressor = ENCODING_GZIP.equals(encoding) ? new PooledDeflaterOutputStream(response.getOutputStream(), gzipDeflaters, true)
+						                                   : new PooledDeflaterOutputStream(response.getOutputStream(), zlibDeflaters, false);
+				pending.writeTo(compressor);
+				pending = null;
+			}
+		}
+
+		/*
+		 * a body below minBytes is held back until close()
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (compressor != null) {
+				compressor.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (isClosed) {
+				return;
+			}
+			isClosed = true;
+			if (compressor != null) {
+				compressor.close();
+			}
+			else {
+				response.getOutputStream().write(pending.toByteArray());
+				response.getOutputStream().flush();
+			}
+		}
+
+		/*
+		 * after a failure: returns the deflater without writing anything more
+		 */
+		public void Abandon() {
+			isClosed = true;
+			if (compressor != null) {
+				compressor.Abandon();
+			}
+		}
+	}
+
+	/*
+	 * zlib or gzip (header, raw deflate, crc32 and size trailer) on a pooled deflater
+	 */
+	private static class PooledDeflaterOutputStream extends DeflaterOutputStream {
+		private DeflaterPool pool;
+		private boolean isGzip;
+		private CRC32 crc = new CRC32();
+		private boolean isFinished;
+		private boolean isReleased;
+
+		PooledDeflaterOutputStream(OutputStream out, DeflaterPool inPool, boolean inIsGzip) throws IOException {
+			super(out, inPool.Acquire(), BUFFER_SIZE);
+			pool = inPool;
+			isGzip = inIsGzip;
+			if (isGzip) {
+				out.write(GZIP_HEADER);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			if (isGzip) {
+				crc.update(b, off, len);
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (isFinished) {
+				return;
+			}
+			super.finish();
+			isFinished = true;
+			if (isGzip) {
+				WriteIntLE(out, (int)crc.getValue());
+				WriteIntLE(out, (int)def.getBytesRead());
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (isReleased) {
+				return;
+			}
+			try {
+				super.close();
+			}
+			finally {
+				Abandon();
+			}
+		}
+
+		void Abandon() {
+			if (!isReleased) {
+				isReleased = true;
+				pool.Release(def);
+			}
+		}
+
+		private static void WriteIntLE(OutputStream out, int v) throws IOException {
+			out.write(v);
+			out.write(v >>> 8);
+			out.write(v >>> 16);
+			out.write(v >>> 24);
+		}
+	}
+
+	/*
+	 * zlib or gzip on a pooled inflater. A gzip body is checked against its
+	 * crc32 and size trailer; only the first gzip member is read
+	 */
+	private static class PooledInflaterInputStream extends InflaterInputStream {
+		private InflaterPool pool;
+		private boolean isGzip;
+		private CRC32 crc = new CRC32();
+		private boolean isEof;
+		private boolean isReleased;
+
+		PooledInflaterInputStream(InputStream in, InflaterPool inPool, boolean inIsGzip) throws IOException {
+			super(in, inPool.Acquire(), BUFFER_SIZE);
+			pool = inPool;
+			isGzip = inIsGzip;
+			if (isGzip) {
+				try {
+					ReadGzipHeader(in);
+				}
+				catch (IOException e) {
+					Release();
+					throw e;
+				}
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int n) throws IOException {
+			if (isEof) {
+				return -1;
+			}
+			int count = super.read(b, off, n);
+			if (count > 0 && isGzip) {
+				crc.update(b, off, count);
+			}
+			else if (count < 0) {
+				isEof = true;
+				if (isGzip) {
+					ReadGzipTrailer();
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				Release();
+			}
+		}
+
+		private void Release() {
+			if (!isReleased) {
+				isReleased = true;
+				pool.Release(inf);
+			}
+		}
+
+		private void ReadGzipTrailer() throws IOException {
+			// the inflater may hold the first trailer bytes already
+			int remaining = inf.getRemaining();
+			InputStream trailer = remaining > 0 ? new SequenceInputStream(new ByteArrayInputStream(buf, len - remaining, remaining), in) : in;
+			long crcValue = ReadIntLE(trailer) & 0xFFFFFFFFL;
+			long size = ReadIntLE(trailer) & 0xFFFFFFFFL;
+			if (crcValue != crc.getValue() || size != (inf.getBytesWritten() & 0xFFFFFFFFL)) {
+				throw new ZipException("gzip body crc or size mismatch");
+			}
+		}
+
+		private static void ReadGzipHeader(InputStream in) throws IOException {
+			if ((ReadByte(in) | (ReadByte(in) << 8)) != GZIP_MAGIC || ReadByte(in) != Deflater.DEFLATED) {
+				throw new ZipException("not a gzip body");
+			}
+			int flags = ReadByte(in);
+			// mtime, xfl, os
+			for (int i = 0; i < 6; i++) {
+				ReadByte(in);
+			}
+			if ((flags & GZIP_FLAG_EXTRA) != 0) {
+				int extraLength = ReadByte(in) | (ReadByte(in) << 8);
+				for (int i = 0; i < extraLength; i++) {
+					ReadByte(in);
+				}
+			}
+			if ((flags & GZIP_FLAG_NAME) != 0) {
+				while (ReadByte(in) != 0) {
+				}
+			}
+			if ((flags & GZIP_FLAG_COMMENT) != 0) {
+				while (ReadByte(in) != 0) {
+				}
+			}
+			if ((flags & GZIP_FLAG_HCRC) != 0) {
+				ReadByte(in);
+				ReadByte(in);
+			}
+		}
+
+		private static int ReadIntLE(InputStream in) throws IOException {
+			return ReadByte(in) | (ReadByte(in) << 8) | (ReadByte(in) << 16) | (ReadByte(in) << 24);
+		}
+
+		private static int ReadByte(InputStream in) throws IOException {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("gzip body truncated");
+			}
+			return b;
+		}
+	}
+}
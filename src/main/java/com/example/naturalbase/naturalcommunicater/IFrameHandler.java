@@ -0,0 +1,8 @@
+package com.example.naturalbase.naturalcommunicater;
+
+public interface IFrameHandler {
+	/*
+	 * payload[0, length) is only valid during the call, the codec reuses the buffer
+	 */
+	public void onFrame(int type, byte[] payload, int length);
+}
@@ -0,0 +1,17 @@
+package com.example.naturalbase.naturalcommunicater;
+
+/*
+ * One device connection, implemented by the blocking TCPChannel and by the
+ * selector based NioTcpChannel.
+ */
+public interface ITcpChannel {
+	public int getRemoteDeviceId();
+	public void send(byte[] buffer);
+	/*
+	 * queues the frame within the channel's SendBudget, false if it was dropped
+	 * or rejected. A channel that is evicted as slow consumer is closed
+	 */
+	public boolean send(byte[] buffer, boolean isCoalescible);
+	public SendBudget getSendBudget();
+	public void closeChannel();
+}
@@ -4,5 +4,5 @@ public interface ITcpHandlerProc {
 	public final static int STATUS_ONLINE = 0;
     public final static int STATUS_OFFLINE = 1;
 	public void onReceive(TcpMessage msg);
-	public void onChannelStatusChange(TCPChannel channel, int status);
+	public void onChannelStatusChange(ITcpChannel channel, int status);
 }
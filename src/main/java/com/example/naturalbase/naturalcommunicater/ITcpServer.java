@@ -0,0 +1,25 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.util.Map;
+
+/*
+ * Device facing TCP server. naturalbase.tcp.server selects the implementation:
+ * nio - NaturalNioTcpServer, a few selector threads serve every connection
+ * blocking - NaturalTCPServer, one thread per connection
+ */
+public interface ITcpServer {
+	public void setTcpServerHandlerCallback(ITcpServerHandlerProc handler);
+	public void startServer();
+	/*
+	 * false if the device is not connected or its send queue is full. Coalescible
+	 * frames are also dropped while the device's queue is over the high watermark
+	 */
+	public boolean send(int deviceId, String message);
+	public boolean send(int deviceId, byte[] message);
+	public boolean send(int deviceId, byte[] message, boolean isCoalescible);
+	/*
+	 * send queue state of every connected device
+	 */
+	public Map<Integer, SendBudget> getSendBudgets();
+	public void stopServer();
+}
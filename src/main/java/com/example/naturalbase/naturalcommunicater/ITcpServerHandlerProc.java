@@ -3,6 +3,13 @@ package com.example.naturalbase.naturalcommunicater;
 public interface ITcpServerHandlerProc {
     public final static int STATUS_ONLINE = 0;
     public final static int STATUS_OFFLINE = 1;
-    public void onReceiveTcpMessage(int deviceId, byte[] message);
-    public void onDeviceOnlineChange(int deviceId, int status);
+    /*
+     * message[0..length) is only valid during the call, the array goes back to a pool
+     */
+    public void onReceiveTcpMessage(int deviceId, byte[] message, int length);
+    /*
+     * generation grows with every connection of the device, see DeviceSessionRegistry.
+     * An OFFLINE can arrive after the ONLINE of a newer generation
+     */
+    public void onDeviceOnlineChange(int deviceId, int status, long generation);
 }
@@ -0,0 +1,96 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import com.alibaba.fastjson.JSONException;
+import com.alibaba.fastjson.JSONWriter;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.example.naturalbase.common.IMessageWriter;
+
+/*
+ * IMessageWriter on a fastjson JSONWriter, UTF-8. The IOException that
+ * fastjson wraps into a JSONException is unwrapped again.
+ */
+public class JsonMessageWriter implements IMessageWriter {
+
+	private JSONWriter writer;
+
+	public JsonMessageWriter(OutputStream out) {
+		writer = new JSONWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		// callers may write the same object more than once, it is no "$ref" to the first one
+		writer.config(SerializerFeature.DisableCircularReferenceDetect, true);
+	}
+
+	@Override
+	public void startObject() throws IOException {
+		try {
+			writer.startObject();
+		}
+		catch (JSONException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void endObject() throws IOException {
+		try {
+			writer.endObject();
+		}
+		catch (JSONException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void startArray() throws IOException {
+		try {
+			writer.startArray();
+		}
+		catch (JSONException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		try {
+			writer.endArray();
+		}
+		catch (JSONException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void writeKey(String key) throws IOException {
+		try {
+			writer.writeKey(key);
+		}
+		catch (JSONException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void writeValue(Object value) throws IOException {
+		try {
+			writer.writeValue(value);
+		}
+		catch (JSONException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		try {
+			writer.flush();
+		}
+		catch (JSONException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+}
@@ -1,12 +1,26 @@
 package com.example.naturalbase.naturalcommunicater;
 
+import com.alibaba.fastjson.JSONObject;
+
 public class MessageHeader {
 	public String messageType;
 	public String requestId;
 	public int deviceId;
 	
-	MessageHeader(){
+	public MessageHeader(){
 		messageType = new String();
 		requestId = new String();
 	}
+	
+	/*
+	 * the "MessageHeader" object of a request, or of a message inside a Batch
+	 */
+	public static MessageHeader FromJSONObject(JSONObject obj) {
+		MessageHeader messageHeader = new MessageHeader();
+		messageHeader.messageType = obj.getString(NaturalCommunicater.JSON_MESSAGE_HEADER_MESSAGE_TYPE);
+		messageHeader.requestId = obj.getString(NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID);
+		messageHeader.deviceId = obj.getIntValue(NaturalCommunicater.JSON_MESSAGE_HEADER_DEVICE_ID);
+		
+		return messageHeader;
+	}
 }
@@ -1,8 +1,15 @@
 package com.example.naturalbase.naturalcommunicater;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import com.alibaba.fastjson.*;
 import org.slf4j.Logger;
@@ -10,15 +17,19 @@ import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 
+import com.example.naturalbase.common.IMessageWriter;
+import com.example.naturalbase.common.NBConfig;
+import com.example.naturalbase.common.NBExecutors;
 import com.example.naturalbase.common.NBHttpResponse;
 import com.example.naturalbase.common.NBUtils;
-import com.example.naturalbase.naturalp2psyncmodule.NaturalP2PSyncModule;;
+import com.example.naturalbase.naturalp2psyncmodule.NaturalP2PSyncModule;
+import com.example.naturalbase.naturalp2psyncmodule.SyncMessage;
 
 public class NaturalCommunicater {
 	
 	private static NaturalCommunicater mInstance;
 	private NaturalP2PSyncModule p2pSyncModule;
-	private NaturalTCPServer tcpServer;
+	private ITcpServer tcpServer;
 	
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 	
@@ -36,15 +47,44 @@ public class NaturalCommunicater {
 	private final String RETURN_CODE_UNKNOW_MESSAGE_HEADER = "unknow message header";
 	private final String RETURN_CODE_SYSTEM_ERROR = "system error";
 	
+	public static final String CONFIG_HTTP_BINARY_MAX_BYTES = "naturalbase.http.binary.max-bytes";
+	private int maxBinaryBodyBytes = NBConfig.getInt(CONFIG_HTTP_BINARY_MAX_BYTES, 16 * 1024 * 1024);
+	public static final String CONFIG_HTTP_COMPRESSION_ENABLED = "naturalbase.http.compression.enabled";
+	public static final String CONFIG_HTTP_COMPRESSION_MIN_BYTES = "naturalbase.http.compression.min-bytes";
+	public static final String CONFIG_HTTP_COMPRESSION_LEVEL = "naturalbase.http.compression.level";
+	private HttpCompression httpCompression = new HttpCompression(NBConfig.getBoolean(CONFIG_HTTP_COMPRESSION_ENABLED, true),
+			                                                      NBConfig.getInt(CONFIG_HTTP_COMPRESSION_MIN_BYTES, 1024),
+			                                                      NBConfig.getInt(CONFIG_HTTP_COMPRESSION_LEVEL, 6));
+	
 	private final int TCP_PORT = 10086;
 	//private final int TCP_PORT = 10087;
 
+	public static final String CONFIG_TCP_SERVER = "naturalbase.tcp.server";
+	public static final String CONFIG_TCP_NIO_EVENT_LOOPS = "naturalbase.tcp.nio.event-loops";
+	public static final String CONFIG_TCP_DISPATCH_WORKERS = "naturalbase.tcp.dispatch.workers";
+	public static final String CONFIG_TCP_DISPATCH_QUEUE_CAPACITY = "naturalbase.tcp.dispatch.queue-capacity";
+	public static final String CONFIG_TCP_RECONNECT_GRACE = "naturalbase.tcp.reconnect-grace-ms";
+	public static final String CONFIG_TCP_BLOCKING_EXECUTOR = "naturalbase.tcp.blocking.executor";
+	public static final String TCP_SERVER_NIO = "nio";
+	public static final String TCP_SERVER_BLOCKING = "blocking";
+
 	/*
 	 * constructed function
 	 */
 	NaturalCommunicater(){
-		tcpServer = new NaturalTCPServer(TCP_PORT);
-		tcpServer.start();
+		String serverType = NBConfig.getString(CONFIG_TCP_SERVER, TCP_SERVER_NIO);
+		int workerCount = NBConfig.getInt(CONFIG_TCP_DISPATCH_WORKERS, 4);
+		int queueCapacity = NBConfig.getInt(CONFIG_TCP_DISPATCH_QUEUE_CAPACITY, 1024);
+		long reconnectGraceMs = NBConfig.getLong(CONFIG_TCP_RECONNECT_GRACE, 5000);
+		if (TCP_SERVER_BLOCKING.equalsIgnoreCase(serverType)) {
+			ExecutorService connectionExecutor = NBExecutors.NewThreadPerTaskExecutor("TcpConnection",
+					NBConfig.getString(CONFIG_TCP_BLOCKING_EXECUTOR, NBExecutors.MODE_AUTO));
+			tcpServer = new NaturalTCPServer(TCP_PORT, workerCount, queueCapacity, reconnectGraceMs, connectionExecutor);
+		}
+		else {
+			tcpServer = new NaturalNioTcpServer(TCP_PORT, NBConfig.getInt(CONFIG_TCP_NIO_EVENT_LOOPS, 2), workerCount, queueCapacity, reconnectGraceMs);
+		}
+		logger.info("NaturalCommunicater use " + serverType + " tcp server.");
 		tcpServer.startServer();
 	}
 	
@@ -55,7 +95,13 @@ public class NaturalCommunicater {
 		return mInstance;
 	}
 	
-	public ResponseEntity<Object> IncommingRequestProc(HttpServletRequest request) {
+	/*
+	 * returns null if the body was written into servletResponse already.
+	 * Binary clients (Content-Type BinaryMessageCodec.CONTENT_TYPE) get their
+	 * answer in the same encoding. Bodies may be gzip / deflate compressed, see
+	 * HttpCompression
+	 */
+	public ResponseEntity<Object> IncommingRequestProc(HttpServletRequest request, HttpServletResponse servletResponse) {
 		
 		if (!checkRequestHeader(request)) {
 			logger.debug("receive invalid request. Content-Type:" + request.getContentType() +
@@ -63,47 +109,204 @@ public class NaturalCommunicater {
 			return new ResponseEntity<>(NBUtils.generateErrorInfo(RETURN_CODE_INVALID_REQUEST), HttpStatus.BAD_REQUEST);
 		}
 		
-		int contentLength = request.getContentLength();
-		String requestBody = new String();
-		NBHttpResponse response = new NBHttpResponse();
-		try {
-			InputStream in = request.getInputStream();
-			byte[] inStreamBuffer = new byte[contentLength];
-			in.read(inStreamBuffer);
-			requestBody = NBUtils.ToUTF8String(inStreamBuffer);;
-			logger.info("body content:"+requestBody, this.getClass());
-			
-			JSONObject messageContent = JSONObject.parseObject(requestBody);
-			if (messageContent == null) {
-				logger.error("can not parse body content");
-				return new ResponseEntity<>(NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_CONTENT), HttpStatus.BAD_REQUEST);
+		String contentEncoding = request.getHeader(HttpCompression.HEADER_CONTENT_ENCODING);
+		if (!HttpCompression.IsSupported(contentEncoding)) {
+			logger.error("receive request with unsupported Content-Encoding:" + contentEncoding);
+			return new ResponseEntity<>(NBUtils.generateErrorInfo(RETURN_CODE_INVALID_REQUEST), HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+		}
+		boolean isBinary = BinaryMessageCodec.IsBinaryContentType(request.getContentType());
+		NBHttpResponse response;
+		try (InputStream body = httpCompression.DecodeRequest(request.getInputStream(), contentEncoding)) {
+			response = isBinary ? BinaryRequestProc(body) : JsonRequestProc(body);
+		}
+		catch (IOException e) {
+			// invalid gzip header or failure on close
+			logger.error("get request body catch exception. Cause:" + e.getMessage());
+			return new ResponseEntity<>(NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_CONTENT), HttpStatus.BAD_REQUEST);
+		}
+		String responseEncoding = httpCompression.NegotiateResponse(request.getHeader(HttpCompression.HEADER_ACCEPT_ENCODING));
+		if (isBinary || response.isStreaming() || responseEncoding != null) {
+			WriteResponse(response, servletResponse, isBinary, responseEncoding);
+			return null;
+		}
+		return new ResponseEntity<>(response.getReturnStr(), response.getStatusCode());
+	}
+	
+	private NBHttpResponse JsonRequestProc(InputStream body) {
+		NBHttpResponse response;
+		// the body is parsed while it is read, a Sync message goes item by item into a SyncMessage
+		try (JSONReader reader = new JSONReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+			MessageHeader messageHeader = null;
+			JSONObject message = null;
+			SyncMessage syncMessage = null;
+			boolean isStreamDecoded = false;
+			reader.startObject();
+			while (reader.hasNext()) {
+				String key = reader.readString();
+				if (JSON_OBJECT_MESSAGE_HEADER.equals(key)) {
+					JSONObject messageHeaderObj = reader.readObject(JSONObject.class);
+					if (messageHeaderObj == null) {
+						logger.error("can not parse MessageHeader content");
+						return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_MESSAGE_HEADER));
+					}
+					messageHeader = getMessageHeader(messageHeaderObj);
+				}
+				// clients send MessageHeader first, otherwise the message is parsed into a tree
+				else if (JSON_OBJECT_MESSAGE.equals(key) && messageHeader != null && p2pSyncModule != null &&
+						 p2pSyncModule.IsStreamDecoded(messageHeader.messageType)) {
+					syncMessage = p2pSyncModule.DecodeSyncMessage(reader);
+					isStreamDecoded = true;
+				}
+				else if (JSON_OBJECT_MESSAGE.equals(key)) {
+					message = reader.readObject(JSONObject.class);
+				}
+				else {
+					reader.readObject();
+				}
 			}
-			JSONObject messageHeaderObj = messageContent.getJSONObject(JSON_OBJECT_MESSAGE_HEADER);
-			if (messageHeaderObj == null) {
+			reader.endObject();
+			if (messageHeader == null) {
 				logger.error("can not parse MessageHeader content");
-				return new ResponseEntity<>(NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_MESSAGE_HEADER), HttpStatus.BAD_REQUEST);
+				return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_MESSAGE_HEADER));
 			}
-			MessageHeader messageHeader = getMessageHeader(messageHeaderObj);
-			JSONObject message = messageContent.getJSONObject(JSON_OBJECT_MESSAGE);
-			if (message == null) {
-				//some message do not have message content, so do not need to proc
-				logger.debug("can not parse Message content. MessageType:" + messageHeader.messageType);
+			if (isStreamDecoded) {
+				response = p2pSyncModule.IncommingSyncMessageProc(messageHeader, syncMessage);
+			}
+			else {
+				if (message == null) {
+					//some message do not have message content, so do not need to proc
+					logger.debug("can not parse Message content. MessageType:" + messageHeader.messageType);
+				}
+				response = MessageHandlerProc(messageHeader, message);
 			}
-			response = MessageHandlerProc(messageHeader, message);
 		}
-		catch(IOException e) {
-			System.out.println("get request body catch exception");
-			e.printStackTrace();
+		catch (JSONException e) {
+			// also a body that fails to read or inflate
+			logger.error("can not parse body content. Cause:" + e.getMessage());
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_CONTENT));
 		}
-		
-		return new ResponseEntity<>(response.getReturnStr(), response.getStatusCode());
+		return response;
+	}
+	
+	/*
+	 * the body is small without field names, it is read whole and decoded into
+	 * the same tree as a JSON body. Its length is checked after inflating,
+	 * a chunked or compressed body has no useful Content-Length
+	 */
+	private NBHttpResponse BinaryRequestProc(InputStream in) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+		byte[] buf = new byte[8192];
+		try {
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				body.write(buf, 0, n);
+				if (body.size() > maxBinaryBodyBytes) {
+					logger.error("binary body exceeds " + maxBinaryBodyBytes + " bytes");
+					return new NBHttpResponse(HttpStatus.PAYLOAD_TOO_LARGE, NBUtils.generateErrorInfo(RETURN_CODE_INVALID_REQUEST));
+				}
+			}
+		}
+		catch (IOException e) {
+			logger.error("get request body catch exception. Cause:" + e.getMessage());
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_CONTENT));
+		}
+		JSONObject messageHeaderObj;
+		JSONObject message;
+		try {
+			JSONObject messageContent = BinaryMessageCodec.Decode(body.toByteArray(), 0, body.size());
+			messageHeaderObj = messageContent.getJSONObject(JSON_OBJECT_MESSAGE_HEADER);
+			message = messageContent.getJSONObject(JSON_OBJECT_MESSAGE);
+		}
+		catch (IllegalArgumentException | JSONException e) {
+			logger.error("can not parse binary body content. Cause:" + e.getMessage());
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_CONTENT));
+		}
+		if (messageHeaderObj == null) {
+			logger.error("can not parse MessageHeader content");
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_MESSAGE_HEADER));
+		}
+		return MessageHandlerProc(getMessageHeader(messageHeaderObj), message);
+	}
+	
+	/*
+	 * a streamed body that fails before anything reached the client still
+	 * becomes a 500, later the client gets a truncated body that does not parse.
+	 * encoding is the negotiated Content-Encoding or null
+	 */
+	private void WriteResponse(NBHttpResponse response, HttpServletResponse servletResponse, boolean isBinary, String encoding) {
+		servletResponse.setStatus(response.getStatusCode().value());
+		servletResponse.setContentType(isBinary ? BinaryMessageCodec.CONTENT_TYPE : CONTENT_TYPE_JSON + ";charset=UTF-8");
+		if (encoding != null) {
+			servletResponse.setHeader("Vary", HttpCompression.HEADER_ACCEPT_ENCODING);
+		}
+		HttpCompression.ResponseOutputStream compressed = null;
+		try {
+			OutputStream out = servletResponse.getOutputStream();
+			if (encoding != null) {
+				compressed = httpCompression.NewResponseStream(servletResponse, encoding);
+				out = compressed;
+			}
+			if (response.isStreaming() || response.getBody() != null) {
+				IMessageWriter writer = isBinary ? new BinaryMessageWriter(out) : new JsonMessageWriter(out);
+				if (response.isStreaming()) {
+					response.getBodyWriter().write(writer);
+				}
+				else {
+					writer.writeValue(response.getBody());
+				}
+				writer.flush();
+			}
+			else {
+				out.write(isBinary ? ToBinary(response.getReturnStr()) : response.getReturnStr().getBytes(StandardCharsets.UTF_8));
+			}
+			out.close();
+		}
+		catch (IOException | RuntimeException e) {
+			logger.error("write response catch exception. Cause:" + e.getMessage());
+			if (compressed != null) {
+				compressed.Abandon();
+			}
+			if (!servletResponse.isCommitted()) {
+				// also drops a Content-Encoding that was set already
+				servletResponse.reset();
+				servletResponse.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+				servletResponse.setContentType(isBinary ? BinaryMessageCodec.CONTENT_TYPE : CONTENT_TYPE_JSON + ";charset=UTF-8");
+				String errorInfo = NBUtils.generateErrorInfo(RETURN_CODE_SYSTEM_ERROR);
+				try {
+					servletResponse.getOutputStream().write(isBinary ? ToBinary(errorInfo) : errorInfo.getBytes(StandardCharsets.UTF_8));
+				}
+				catch (IOException e2) {
+					logger.error("write error response catch exception. Cause:" + e2.getMessage());
+				}
+			}
+		}
+	}
+	
+	/*
+	 * the handlers answer in JSON text, binary clients get it converted
+	 */
+	private byte[] ToBinary(String json) {
+		JSONObject obj = null;
+		try {
+			obj = JSON.parseObject(json);
+		}
+		catch (JSONException e) {
+			// plain text like "server error"
+		}
+		if (obj == null) {
+			obj = new JSONObject();
+			obj.put(NBUtils.ERROR_INFO_REASON, json);
+		}
+		return BinaryMessageCodec.Encode(obj);
 	}
 	
 	private boolean checkRequestHeader(HttpServletRequest request) {
 		String contentType = request.getContentType();
 		int contentLength = request.getContentLength();
 		
-		if (contentLength > 0 && contentType.contains(CONTENT_TYPE_JSON)) {
+		// -1 for a chunked body
+		if (contentLength != 0 && contentType != null &&
+			(contentType.contains(CONTENT_TYPE_JSON) || BinaryMessageCodec.IsBinaryContentType(contentType))) {
 			return true;
 		}
 		else {
@@ -112,12 +315,7 @@ public class NaturalCommunicater {
 	}
 	
 	private MessageHeader getMessageHeader(JSONObject obj) {
-		MessageHeader messageHeader = new MessageHeader();
-		messageHeader.messageType = obj.getString(JSON_MESSAGE_HEADER_MESSAGE_TYPE);
-		messageHeader.requestId = obj.getString(JSON_MESSAGE_HEADER_REQUEST_ID);
-		messageHeader.deviceId = obj.getIntValue(JSON_MESSAGE_HEADER_DEVICE_ID);
-		
-		return messageHeader;
+		return MessageHeader.FromJSONObject(obj);
 	}
 	
 	private NBHttpResponse MessageHandlerProc(MessageHeader header, JSONObject message) {
@@ -136,11 +334,40 @@ public class NaturalCommunicater {
 		tcpServer.setTcpServerHandlerCallback(handler);
 	}
 
-	public void SendTcpMessage(int deviceId, String message){
-		tcpServer.send(deviceId, message);
+	public boolean SendTcpMessage(int deviceId, String message){
+		return tcpServer.send(deviceId, message);
+	}
+
+	public boolean SendTcpMessage(int deviceId, byte[] message){
+		return tcpServer.send(deviceId, message);
 	}
 
-	public void SendTcpMessage(int deviceId, byte[] message){
-		tcpServer.send(deviceId, message);
+	/*
+	 * coalescible messages can be made up for later (a pull), they are dropped
+	 * while the device's send queue is over the high watermark
+	 */
+	public boolean SendTcpMessage(int deviceId, byte[] message, boolean isCoalescible){
+		return tcpServer.send(deviceId, message, isCoalescible);
+	}
+
+	/*
+	 * send queue of every connected device, for /debug/tcp
+	 */
+	public JSONObject GetTcpStats(){
+		JSONObject devices = new JSONObject();
+		for (Map.Entry<Integer, SendBudget> e : tcpServer.getSendBudgets().entrySet()) {
+			SendBudget budget = e.getValue();
+			JSONObject device = new JSONObject();
+			device.put("QueuedBytes", budget.getQueuedBytes());
+			device.put("QueuedFrames", budget.getQueuedFrames());
+			device.put("PeakQueuedBytes", budget.getPeakQueuedBytes());
+			device.put("PausedMs", budget.getPausedMs());
+			device.put("Dropped", budget.getDroppedCount());
+			device.put("Rejected", budget.getRejectedCount());
+			devices.put(String.valueOf(e.getKey()), device);
+		}
+		JSONObject stats = new JSONObject();
+		stats.put("Devices", devices);
+		return stats;
 	}
 }
@@ -0,0 +1,233 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.naturalbase.common.HashedWheelTimer;
+
+/*
+ * Selector based TCP server. Event loop 0 also accepts, accepted connections
+ * are spread round robin over all loops. Devices see the same frames and
+ * heart beats as with NaturalTCPServer.
+ * Handler callbacks run on a DeviceDispatcher, never on an event loop.
+ */
+public class NaturalNioTcpServer implements ITcpServer, ITcpHandlerProc {
+
+	private final int BUFFER_SIZE = 4096;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private ServerSocketChannel serverChannel;
+	private NioEventLoop[] eventLoops;
+	private AtomicInteger nextLoop = new AtomicInteger(0);
+	private DeviceSessionRegistry sessions = new DeviceSessionRegistry();
+	private ITcpServerHandlerProc tcpServerHandlerProc;
+	private DeviceDispatcher receiveDispatcher;
+
+	private final long heartBeatTimeMs = TCPChannel.getHeartBeatTime();
+	private final long idleTimeoutMs = 6 * TCPChannel.getHeartBeatTime();
+	// heart beats, idle checks and reconnect grace of all channels
+	private HashedWheelTimer timer = new HashedWheelTimer("TcpTimer", 100, 512);
+	private long reconnectGraceMs;
+
+	public NaturalNioTcpServer(int port, int eventLoopCount, int workerCount, int queueCapacity, long inReconnectGraceMs) {
+		reconnectGraceMs = inReconnectGraceMs;
+		receiveDispatcher = new DeviceDispatcher("TcpReceive", workerCount, queueCapacity);
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.bind(new InetSocketAddress(port));
+			eventLoops = new NioEventLoop[Math.max(1, eventLoopCount)];
+			for (int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new NioEventLoop("NioEventLoop-" + i);
+			}
+		}
+		catch (IOException e) {
+			logger.error("NaturalNioTcpServer server socket create fail. Cause:" + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void setTcpServerHandlerCallback(ITcpServerHandlerProc handler) {
+		logger.info("NioTcpServer handler registed!");
+		tcpServerHandlerProc = handler;
+	}
+
+	@Override
+	public void startServer() {
+		if (eventLoops == null) {
+			return;
+		}
+		for (NioEventLoop loop : eventLoops) {
+			loop.start();
+		}
+		final NioEventLoop acceptLoop = eventLoops[0];
+		acceptLoop.execute(() -> {
+			try {
+				serverChannel.register(acceptLoop.getSelector(), SelectionKey.OP_ACCEPT, (NioEventLoop.INioHandler)this::Accept);
+				logger.info("NioTcpServer start accept with " + eventLoops.length + " event loops.");
+			}
+			catch (IOException e) {
+				logger.error("NioTcpServer register accept catch exception. Cause:" + e.getMessage());
+			}
+		});
+	}
+
+	private void Accept(SelectionKey key) throws IOException {
+		SocketChannel socketChannel;
+		while ((socketChannel = serverChannel.accept()) != null) {
+			try {
+				socketChannel.configureBlocking(false);
+				socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+				if (socketChannel.getOption(StandardSocketOptions.SO_RCVBUF) > BUFFER_SIZE) {
+					socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_SIZE);
+				}
+			}
+			catch (IOException e) {
+				logger.error("NioTcpServer configure client socket fail. Cause:" + e.getMessage());
+				socketChannel.close();
+				continue;
+			}
+			NioEventLoop loop = eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+			final NioTcpChannel channel = new NioTcpChannel(socketChannel, loop, timer, this, heartBeatTimeMs, idleTimeoutMs);
+			final SocketChannel accepted = socketChannel;
+			loop.execute(() -> {
+				try {
+					channel.register();
+				}
+				catch (IOException e) {
+					logger.error("NioTcpServer register client socket fail. Cause:" + e.getMessage());
+					try {
+						accepted.close();
+					}
+					catch (IOException closeException) {
+						logger.error("NioTcpServer close client socket fail. Cause:" + closeException.getMessage());
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	public boolean send(int deviceId, String message) {
+		return send(deviceId, new TcpMessage(deviceId, message).msg);
+	}
+
+	@Override
+	public boolean send(int deviceId, byte[] message) {
+		return send(deviceId, message, false);
+	}
+
+	@Override
+	public boolean send(int deviceId, byte[] message, boolean isCoalescible) {
+		ITcpChannel channel = sessions.Get(deviceId);
+		if (channel == null) {
+			return false;
+		}
+		return channel.send(message, isCoalescible);
+	}
+
+	@Override
+	public Map<Integer, SendBudget> getSendBudgets() {
+		Map<Integer, SendBudget> budgets = new HashMap<Integer, SendBudget>();
+		for (DeviceSessionRegistry.Session session : sessions.getSessions().values()) {
+			if (session.channel != null) {
+				budgets.put(session.deviceId, session.channel.getSendBudget());
+			}
+		}
+		return budgets;
+	}
+
+	@Override
+	public void onReceive(TcpMessage msg) {
+		boolean isQueued = receiveDispatcher.Submit(msg.deviceId, () -> {
+			try {
+				if (tcpServerHandlerProc != null) {
+					tcpServerHandlerProc.onReceiveTcpMessage(msg.deviceId, msg.msg, msg.length);
+				}
+			}
+			finally {
+				msg.release();
+			}
+		});
+		if (!isQueued) {
+			msg.release();
+		}
+	}
+
+	@Override
+	public void onChannelStatusChange(ITcpChannel channel, int status) {
+		int deviceId = channel.getRemoteDeviceId();
+		if (status == ITcpHandlerProc.STATUS_ONLINE) {
+			// an older connection of the device (half open, or not yet timed out) is closed, its events are stale
+			DeviceSessionRegistry.Session session = sessions.Open(deviceId, channel, ITcpChannel::closeChannel);
+			if (session != null) {
+				NotifyDeviceStatus(deviceId, ITcpHandlerProc.STATUS_ONLINE, session.generation);
+			}
+			return;
+		}
+		// null for the channel of a replaced session
+		DeviceSessionRegistry.Session closed = sessions.Close(deviceId, channel);
+		if (closed != null) {
+			NotifyOffline(closed);
+		}
+	}
+
+	/*
+	 * a device that reconnects within the grace period does not go offline
+	 */
+	private void NotifyOffline(DeviceSessionRegistry.Session closed) {
+		if (reconnectGraceMs <= 0) {
+			ExpireSession(closed);
+			return;
+		}
+		timer.newTimeout(() -> ExpireSession(closed), reconnectGraceMs);
+	}
+
+	private void ExpireSession(DeviceSessionRegistry.Session closed) {
+		if (sessions.Expire(closed)) {
+			NotifyDeviceStatus(closed.deviceId, ITcpHandlerProc.STATUS_OFFLINE, closed.generation);
+		}
+	}
+
+	/*
+	 * queued behind the messages the device sent before
+	 */
+	private void NotifyDeviceStatus(int deviceId, int status, long generation) {
+		receiveDispatcher.Submit(deviceId, () -> {
+			if (tcpServerHandlerProc != null) {
+				tcpServerHandlerProc.onDeviceOnlineChange(deviceId, status, generation);
+			}
+		});
+	}
+
+	@Override
+	public void stopServer() {
+		logger.info("NioTcpServer close.");
+		try {
+			serverChannel.close();
+		}
+		catch (IOException e) {
+			logger.error("NioTcpServer close server socket catch exception. Cause:" + e.getMessage());
+		}
+		if (eventLoops != null) {
+			for (NioEventLoop loop : eventLoops) {
+				loop.shutdown();
+			}
+		}
+		timer.stop();
+		receiveDispatcher.Close();
+	}
+}
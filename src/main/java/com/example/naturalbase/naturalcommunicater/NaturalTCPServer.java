@@ -5,47 +5,47 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Map;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.alibaba.fastjson.JSONObject;
+import com.example.naturalbase.common.HashedWheelTimer;
 import com.example.naturalbase.common.NBUtils;
 
-public class NaturalTCPServer extends Thread implements ITcpHandlerProc {
+public class NaturalTCPServer extends Thread implements ITcpHandlerProc, ITcpServer {
 
     private ServerSocket serverSocket;
     private Logger logger = LoggerFactory.getLogger(this.getClass());
-    private Map<Integer, TCPChannel> deviceTcpChannel;
+    private DeviceSessionRegistry sessions = new DeviceSessionRegistry();
     private final int BUFFER_SIZE = 4096;
     private boolean isRunning = false;
     private Object objLock = new Object();
     
-    private Thread sendThread;
-    private Thread receiveThread;
-    
-    private Object objLockSend = new Object();
-    private boolean isSendThreadRunning = false;
-    private Object objLockReceive = new Object();
-    private boolean isReceiveThreadRunning = false;
-    
-    private Object objLockSendQueue = new Object();
-    private Queue<TcpMessage> sendQueue = new LinkedList<TcpMessage>();
-    private Object objLockReceiveQueue = new Object();
-	private Queue<TcpMessage> receiveQueue = new LinkedList<TcpMessage>();
+    // socket writes and handler callbacks run on worker pools, serialized per device
+    private DeviceDispatcher sendDispatcher;
+    private DeviceDispatcher receiveDispatcher;
+    // runs the read loop of every connection
+    private ExecutorService connectionExecutor;
 	
 	private ITcpServerHandlerProc tcpServerHandlerProc;
 
-	private final int SOCKET_TIMEOUT_LIMIT = 6 * TCPChannel.getHeartBeatTime(); //socket timeout limit = 6 * HEART_BEAT_TIME ms
+	private final int SOCKET_TIMEOUT_LIMIT = 6 * TCPChannel.getHeartBeatTime(); //read idle limit = 6 * HEART_BEAT_TIME ms
+	// heart beats, idle checks and reconnect grace of all channels
+	private HashedWheelTimer timer = new HashedWheelTimer("TcpTimer", 100, 512);
+	private long reconnectGraceMs;
     
     private static final String MESSAGE_TYPE_DEVICE_ONLINE = "DeviceOnline";
 
-    public NaturalTCPServer(int port){
-        deviceTcpChannel = new HashMap<Integer, TCPChannel>();
+    public NaturalTCPServer(int port, int workerCount, int queueCapacity, long inReconnectGraceMs, ExecutorService inConnectionExecutor){
+        reconnectGraceMs = inReconnectGraceMs;
+        connectionExecutor = inConnectionExecutor;
+        sendDispatcher = new DeviceDispatcher("TcpSend", workerCount, queueCapacity);
+        receiveDispatcher = new DeviceDispatcher("TcpReceive", workerCount, queueCapacity);
 
         try{
             serverSocket = new ServerSocket(port);
@@ -56,93 +56,72 @@ public class NaturalTCPServer extends Thread implements ITcpHandlerProc {
         }
 	}
 
-	public NaturalTCPServer(int port, ITcpServerHandlerProc handler){
+	public NaturalTCPServer(int port, int workerCount, int queueCapacity, long inReconnectGraceMs, ExecutorService inConnectionExecutor,
+			                ITcpServerHandlerProc handler){
+		this(port, workerCount, queueCapacity, inReconnectGraceMs, inConnectionExecutor);
 		tcpServerHandlerProc = handler;
-        deviceTcpChannel = new HashMap<Integer, TCPChannel>();
-
-        try{
-            serverSocket = new ServerSocket(port);
-        }
-        catch(IOException e){
-            logger.error("server socket create fail.");
-            e.printStackTrace();
-        }
 	}
 	
+	@Override
 	public void setTcpServerHandlerCallback(ITcpServerHandlerProc handler){
 		logger.info("TcpServer handler registed!");
 		tcpServerHandlerProc = handler;
 	}
     
+    @Override
     public void startServer() {
-		logger.info("NaturalTCPServer start send/receive thread.");
-    	sendThread = new Thread (sendThreadProc);
-    	sendThread.start();
-    	receiveThread = new Thread(receiveThreadProc);
-    	receiveThread.start();
+    	start();
     }
     
-    public void send(int deviceId, String message) {
-    	TcpMessage tcpMessage = new TcpMessage(deviceId, message);
-    	synchronized(objLockSendQueue) {
-    		sendQueue.offer(tcpMessage);
-    	}
+    @Override
+    public boolean send(int deviceId, String message) {
+    	return send(deviceId, new TcpMessage(deviceId, message).msg);
 	}
 	
-	public void send(int deviceId, byte[] message){
-		TcpMessage tcpMessage = new TcpMessage(deviceId, message);
-    	synchronized(objLockSendQueue) {
-    		sendQueue.offer(tcpMessage);
-    	}
+	@Override
+	public boolean send(int deviceId, byte[] message){
+		return send(deviceId, message, false);
+	}
+
+	@Override
+	public boolean send(int deviceId, byte[] message, boolean isCoalescible){
+		ITcpChannel channel = sessions.Get(deviceId);
+		if (channel == null) {
+			return false;
+		}
+		return channel.send(message, isCoalescible);
+	}
+
+	@Override
+	public Map<Integer, SendBudget> getSendBudgets(){
+		Map<Integer, SendBudget> budgets = new HashMap<Integer, SendBudget>();
+		for (DeviceSessionRegistry.Session session : sessions.getSessions().values()) {
+			if (session.channel != null) {
+				budgets.put(session.deviceId, session.channel.getSendBudget());
+			}
+		}
+		return budgets;
 	}
-    
-    private Runnable sendThreadProc = ()->{
-    	synchronized(objLockSend) {
-			isSendThreadRunning = true;
-			logger.info("TCPServer send thread start.");
-    	}
-    	while(isSendThreadRunning) {
-    		synchronized(objLockSendQueue) {
-    			if (!sendQueue.isEmpty()) {
-    				TcpMessage msg = sendQueue.poll();
-    				if (deviceTcpChannel.containsKey(msg.deviceId)) {
-    					deviceTcpChannel.get(msg.deviceId).send(msg.msg);
-    				}
-    			}
-    		}
-    	}
-    };
     
     @Override
 	public void onReceive(TcpMessage msg) {
-		// TODO Auto-generated method stub
-    	synchronized(objLockReceiveQueue) {
-			logger.info("TCPServer msg push in queue!");
-    		receiveQueue.offer(msg);
-    	}
-	}
-    
-    private Runnable receiveThreadProc = ()->{
-    	synchronized(objLockReceive) {
-			isReceiveThreadRunning = true;
-			logger.info("TCPServer receive thread start.");
-    	}
-    	while(isReceiveThreadRunning){
-    		synchronized(objLockReceiveQueue){
-				if(!receiveQueue.isEmpty()){
-					//logger.info("TCPServer receive queue is not empty");
-					TcpMessage msg = receiveQueue.poll();
-					if(tcpServerHandlerProc != null){
-						tcpServerHandlerProc.onReceiveTcpMessage(msg.deviceId, msg.msg);
-					}
-					else{
-						logger.info("receive tcp message from [" + String.valueOf(msg.deviceId) + "]:" + msg.msg);
-					}
+    	boolean isQueued = receiveDispatcher.Submit(msg.deviceId, () -> {
+    		try{
+				if(tcpServerHandlerProc != null){
+					tcpServerHandlerProc.onReceiveTcpMessage(msg.deviceId, msg.msg, msg.length);
 				}
-			}
+				else{
+					logger.info("receive tcp message from [" + String.valueOf(msg.deviceId) + "], length:" + msg.length);
+				}
+    		}
+    		finally{
+    			msg.release();
+    		}
+    	});
+    	if (!isQueued){
+    		msg.release();
     	}
-    	
-    };
+	}
     
     @Override
     public void run() {
@@ -158,10 +137,15 @@ public class NaturalTCPServer extends Thread implements ITcpHandlerProc {
     			}
     			socket.setTcpNoDelay(true);
     			socket.setKeepAlive(true);
-    			socket.setSoTimeout(SOCKET_TIMEOUT_LIMIT);
     			
-    			TCPChannel channel = new TCPChannel(socket, this);
-    			channel.start();
+    			TCPChannel channel = new TCPChannel(socket, this, timer, sendDispatcher, SOCKET_TIMEOUT_LIMIT);
+    			try{
+    				connectionExecutor.execute(channel);
+    			}
+    			catch (RejectedExecutionException e){
+    				logger.error("TCPServer connection executor rejected client socket. Cause:" + e.getMessage());
+    				channel.closeChannel();
+    			}
     		}
     	}
     	catch(IOException e) {
@@ -183,30 +167,65 @@ public class NaturalTCPServer extends Thread implements ITcpHandlerProc {
 	}
 	
 	@Override
-	public void onChannelStatusChange(TCPChannel channel, int status){
+	public void onChannelStatusChange(ITcpChannel channel, int status){
+		int deviceId = channel.getRemoteDeviceId();
 		if(status == ITcpHandlerProc.STATUS_ONLINE){
-			deviceTcpChannel.put(channel.getRemoteDeviceId(), channel);
-			tcpServerHandlerProc.onDeviceOnlineChange(channel.getRemoteDeviceId(), ITcpHandlerProc.STATUS_ONLINE);
+			// an older connection of the device (half open, or not yet timed out) is closed, its events are stale
+			DeviceSessionRegistry.Session session = sessions.Open(deviceId, channel, ITcpChannel::closeChannel);
+			if(session != null){
+				NotifyDeviceStatus(deviceId, ITcpHandlerProc.STATUS_ONLINE, session.generation);
+			}
+			return;
+		}
+		// null for the channel of a replaced session
+		DeviceSessionRegistry.Session closed = sessions.Close(deviceId, channel);
+		if(closed != null){
+			NotifyOffline(closed);
 		}
-		else{
-			deviceTcpChannel.remove(channel.getRemoteDeviceId());
-			tcpServerHandlerProc.onDeviceOnlineChange(channel.getRemoteDeviceId(), ITcpHandlerProc.STATUS_OFFLINE);
+	}
+
+	/*
+	 * a device that reconnects within the grace period does not go offline
+	 */
+	private void NotifyOffline(DeviceSessionRegistry.Session closed){
+		if(reconnectGraceMs <= 0){
+			ExpireSession(closed);
+			return;
+		}
+		timer.newTimeout(() -> ExpireSession(closed), reconnectGraceMs);
+	}
+
+	private void ExpireSession(DeviceSessionRegistry.Session closed){
+		if(sessions.Expire(closed)){
+			NotifyDeviceStatus(closed.deviceId, ITcpHandlerProc.STATUS_OFFLINE, closed.generation);
 		}
 	}
+
+	/*
+	 * queued behind the messages the device sent before
+	 */
+	private void NotifyDeviceStatus(int deviceId, int status, long generation){
+		receiveDispatcher.Submit(deviceId, () -> {
+			if(tcpServerHandlerProc != null){
+				tcpServerHandlerProc.onDeviceOnlineChange(deviceId, status, generation);
+			}
+		});
+	}
     
+    @Override
     public void stopServer() {
     	synchronized(objLock) {
 			isRunning = false;
 		}
-		synchronized(objLockSend) {
-    		isSendThreadRunning = false;
-		}
-		for (Integer id : deviceTcpChannel.keySet()){
-			deviceTcpChannel.get(id).closeChannel();
-		}
-		synchronized(objLockReceive){
-			isReceiveThreadRunning = false;
+		for (DeviceSessionRegistry.Session session : sessions.getSessions().values()){
+			if (session.channel != null){
+				session.channel.closeChannel();
+			}
 		}
+		timer.stop();
+		connectionExecutor.shutdownNow();
+		sendDispatcher.Close();
+		receiveDispatcher.Close();
     }
 }
 
@@ -0,0 +1,124 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * One selector thread. Channels are only touched from their loop thread,
+ * other threads (including the HashedWheelTimer) hand work over with execute().
+ */
+public class NioEventLoop implements Runnable {
+
+	private static final long SELECT_TIMEOUT_MS = 1000;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean isRunning = false;
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	// closed on shutdown
+	private List<NioTcpChannel> channels = new ArrayList<NioTcpChannel>();
+
+	public NioEventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+	}
+
+	public void start() {
+		isRunning = true;
+		thread.start();
+	}
+
+	public Selector getSelector() {
+		return selector;
+	}
+
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/*
+	 * runs task on the loop thread
+	 */
+	public void execute(Runnable task) {
+		tasks.offer(task);
+		if (!inLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	void addChannel(NioTcpChannel channel) {
+		channels.add(channel);
+	}
+
+	void removeChannel(NioTcpChannel channel) {
+		channels.remove(channel);
+	}
+
+	public void shutdown() {
+		isRunning = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		logger.info("NioEventLoop " + thread.getName() + " start run!");
+		while (isRunning) {
+			try {
+				selector.select(SELECT_TIMEOUT_MS);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					((INioHandler)key.attachment()).onReady(key);
+				}
+				RunTasks();
+			}
+			catch (IOException e) {
+				logger.error("NioEventLoop select catch exception. Cause:" + e.getMessage());
+			}
+			catch (RuntimeException e) {
+				// a bad channel must not stop the other connections of the loop
+				logger.error("NioEventLoop catch exception. Cause:" + e.toString());
+				e.printStackTrace();
+			}
+		}
+		for (NioTcpChannel channel : new ArrayList<NioTcpChannel>(channels)) {
+			channel.closeChannel();
+		}
+		RunTasks();
+		try {
+			selector.close();
+		}
+		catch (IOException e) {
+			logger.error("NioEventLoop close selector catch exception. Cause:" + e.getMessage());
+		}
+	}
+
+	private void RunTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	/*
+	 * attachment of every registered SelectionKey
+	 */
+	interface INioHandler {
+		void onReady(SelectionKey key) throws IOException;
+	}
+}
@@ -0,0 +1,354 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.naturalbase.common.BufferPool;
+import com.example.naturalbase.common.BufferPool.PooledBuffer;
+import com.example.naturalbase.common.HashedWheelTimer;
+import com.example.naturalbase.common.NBUtils;
+
+/*
+ * Non-blocking device connection with the same frames as TCPChannel (see FrameCodec):
+ * device -> server: DEVICE_ONLINE(0x55) id, HEART_BEAT(0x5A) [payload], DATA(0xDA) payload
+ * server -> device: whatever is passed to send(), plus a HEART_BEAT every heart beat time
+ * Reading, writing and closing happen on the owning event loop, send() and
+ * closeChannel() may be called from any thread. Heart beat and idle timeouts
+ * come from the shared HashedWheelTimer and are handed to the loop; a heart
+ * beat is skipped while other frames went out within the heart beat time.
+ * Queued bytes are limited by a SendBudget, a slow consumer is closed.
+ * Socket reads and writes go through pooled direct buffers: the read buffer
+ * is held while the channel is open, the write buffer only while frames are
+ * waiting, queued frames are gathered into it and written with one call.
+ */
+public class NioTcpChannel implements ITcpChannel, NioEventLoop.INioHandler, IFrameHandler {
+
+	private static final int BUFFER_SIZE = 4096;
+	private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private SocketChannel socketChannel;
+	private NioEventLoop loop;
+	private HashedWheelTimer timer;
+	private SelectionKey key;
+	private ITcpHandlerProc tcpHandlerProc;
+	private volatile int remoteDeviceId = -1;
+	private volatile boolean isClosed = false;
+
+	private long heartBeatTimeMs;
+	private long idleTimeoutMs;
+	private long lastReadTime;
+	private long lastWriteTime;
+	private HashedWheelTimer.Timeout heartBeatTimeout;
+	private HashedWheelTimer.Timeout idleTimeout;
+
+	private PooledBuffer readBuffer;
+	// a frame handler may close the channel while the read buffer is being decoded
+	private boolean isDecoding = false;
+	private FrameCodec frameCodec = new FrameCodec();
+
+	private Queue<byte[]> writeQueue = new ConcurrentLinkedQueue<byte[]>();
+	// bytes of the head frame already copied into writeBuffer, loop thread only
+	private int headOffset = 0;
+	// read mode between flushes: position..limit is still to be written
+	private PooledBuffer writeBuffer;
+	private SendBudget sendBudget = new SendBudget();
+	private AtomicBoolean isFlushScheduled = new AtomicBoolean(false);
+
+	public NioTcpChannel(SocketChannel inSocketChannel, NioEventLoop inLoop, HashedWheelTimer inTimer, ITcpHandlerProc handler,
+			             long inHeartBeatTimeMs, long inIdleTimeoutMs) {
+		socketChannel = inSocketChannel;
+		loop = inLoop;
+		timer = inTimer;
+		tcpHandlerProc = handler;
+		heartBeatTimeMs = inHeartBeatTimeMs;
+		idleTimeoutMs = inIdleTimeoutMs;
+	}
+
+	/*
+	 * loop thread only
+	 */
+	void register() throws IOException {
+		key = socketChannel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+		readBuffer = BufferPool.DIRECT.Allocate(BUFFER_SIZE);
+		loop.addChannel(this);
+		lastReadTime = System.currentTimeMillis();
+		// like TCPChannel, the first heart beat goes out right away
+		SendHeartBeat(lastReadTime);
+		idleTimeout = timer.newTimeout(() -> loop.execute(this::OnIdleTimeout), idleTimeoutMs);
+	}
+
+	@Override
+	public int getRemoteDeviceId() {
+		return remoteDeviceId;
+	}
+
+	@Override
+	public void send(byte[] buffer) {
+		send(buffer, false);
+	}
+
+	@Override
+	public boolean send(byte[] buffer, boolean isCoalescible) {
+		if (isClosed) {
+			return false;
+		}
+		int result = sendBudget.Reserve(buffer.length, isCoalescible);
+		if (result == SendBudget.RESULT_EVICT) {
+			logger.error("NioTcpChannel slow consumer, " + sendBudget.getQueuedBytes() + " bytes queued for " +
+					     sendBudget.getPausedMs() + "ms. DeviceId:" + String.valueOf(remoteDeviceId));
+			closeChannel();
+			return false;
+		}
+		if (result != SendBudget.RESULT_ACCEPTED) {
+			return false;
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("NioTcpChannel send message:" + NBUtils.ByteArrayToHexString(buffer));
+		}
+		writeQueue.offer(buffer);
+		if (isFlushScheduled.compareAndSet(false, true)) {
+			loop.execute(() -> {
+				isFlushScheduled.set(false);
+				Flush();
+			});
+		}
+		return true;
+	}
+
+	@Override
+	public SendBudget getSendBudget() {
+		return sendBudget;
+	}
+
+	@Override
+	public void closeChannel() {
+		if (loop.inLoop()) {
+			Close();
+		}
+		else {
+			loop.execute(this::Close);
+		}
+	}
+
+	@Override
+	public void onReady(SelectionKey readyKey) throws IOException {
+		if (readyKey.isReadable()) {
+			Read();
+		}
+		if (readyKey.isValid() && readyKey.isWritable()) {
+			Flush();
+		}
+	}
+
+	private void SendHeartBeat(long now) {
+		// nothing lost if it is dropped, the queued frames are going out anyway
+		send(TCPChannel.HEART_BEAT_FRAME, true);
+		lastWriteTime = now;
+		heartBeatTimeout = timer.newTimeout(() -> loop.execute(this::OnHeartBeatTimeout), heartBeatTimeMs);
+	}
+
+	private void OnHeartBeatTimeout() {
+		if (isClosed) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long sinceWrite = now - lastWriteTime;
+		if (sinceWrite >= heartBeatTimeMs) {
+			SendHeartBeat(now);
+		}
+		else {
+			heartBeatTimeout = timer.newTimeout(() -> loop.execute(this::OnHeartBeatTimeout), heartBeatTimeMs - sinceWrite);
+		}
+	}
+
+	private void OnIdleTimeout() {
+		if (isClosed) {
+			return;
+		}
+		long idle = System.currentTimeMillis() - lastReadTime;
+		if (idle >= idleTimeoutMs) {
+			logger.error("NioTcpChannel read timeout. DeviceId:" + String.valueOf(remoteDeviceId));
+			Close();
+			return;
+		}
+		idleTimeout = timer.newTimeout(() -> loop.execute(this::OnIdleTimeout), idleTimeoutMs - idle);
+	}
+
+	private void Read() {
+		int n;
+		ByteBuffer in = readBuffer.buffer();
+		try {
+			n = socketChannel.read(in);
+		}
+		catch (IOException e) {
+			logger.error("NioTcpChannel can not receive tcp message. DeviceId:" + String.valueOf(remoteDeviceId) + " Cause:" + e.getMessage());
+			Close();
+			return;
+		}
+		if (n < 0) {
+			logger.debug("NioTcpChannel receive EOF. DeviceId:" + String.valueOf(remoteDeviceId));
+			Close();
+			return;
+		}
+		lastReadTime = System.currentTimeMillis();
+		in.flip();
+		isDecoding = true;
+		boolean isValid = frameCodec.Decode(in, this);
+		isDecoding = false;
+		if (!isValid) {
+			Close();
+		}
+		if (isClosed) {
+			ReleaseReadBuffer();
+		}
+		else {
+			in.clear();
+		}
+	}
+
+	@Override
+	public void onFrame(int type, byte[] payload, int length) {
+		if (isClosed) {
+			return;
+		}
+		if (type == TCPChannel.TCP_MESSAGE_TYPE_DEVICE_ONLINE) {
+			String id = NBUtils.ToUTF8String(Arrays.copyOf(payload, length));
+			try {
+				remoteDeviceId = Integer.valueOf(id);
+			}
+			catch (NumberFormatException e) {
+				logger.error("NioTcpChannel invalid device id:" + id);
+				Close();
+				return;
+			}
+			logger.info("[Device:" + String.valueOf(remoteDeviceId) + "] get online.");
+			if (tcpHandlerProc != null) {
+				tcpHandlerProc.onChannelStatusChange(this, ITcpHandlerProc.STATUS_ONLINE);
+			}
+		}
+		else if (type == TCPChannel.TCP_MESSAGE_TYPE_HEART_BEAT) {
+			logger.debug("DeviceId:" + String.valueOf(remoteDeviceId) + " get HEART_BEAT message! MessageLength=" + length);
+		}
+		else if (type == TCPChannel.TCP_MESSAGE_TYPE_DATA && remoteDeviceId != -1) {
+			if (tcpHandlerProc != null) {
+				// handled on another thread, the codec buffer is reused. Released by the server after handling
+				PooledBuffer message = BufferPool.HEAP.Allocate(length);
+				System.arraycopy(payload, 0, message.array(), 0, length);
+				tcpHandlerProc.onReceive(new TcpMessage(remoteDeviceId, message, length));
+			}
+		}
+		else {
+			logger.error("NioTcpChannel DeviceId:" + String.valueOf(remoteDeviceId) +
+					     " unexpected message type. type = " + String.format("0x%x", type));
+		}
+	}
+
+	private void Flush() {
+		if (isClosed) {
+			return;
+		}
+		try {
+			while (true) {
+				if (writeBuffer == null) {
+					if (writeQueue.isEmpty()) {
+						break;
+					}
+					writeBuffer = BufferPool.DIRECT.Allocate(WRITE_BUFFER_SIZE);
+					writeBuffer.buffer().flip();
+				}
+				ByteBuffer out = writeBuffer.buffer();
+				Gather(out);
+				socketChannel.write(out);
+				lastWriteTime = System.currentTimeMillis();
+				if (out.hasRemaining()) {
+					// socket buffer is full, continue when it is writable again
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				if (writeQueue.isEmpty()) {
+					writeBuffer.release();
+					writeBuffer = null;
+				}
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		catch (IOException e) {
+			logger.error("NioTcpChannel send catch exception. DeviceId:" + String.valueOf(remoteDeviceId) + " Cause:" + e.getMessage());
+			Close();
+		}
+	}
+
+	/*
+	 * appends queued frames to the unwritten bytes of out, a frame that does
+	 * not fit goes in part and continues next time
+	 */
+	private void Gather(ByteBuffer out) {
+		out.compact();
+		byte[] head;
+		while (out.hasRemaining() && (head = writeQueue.peek()) != null) {
+			int n = Math.min(out.remaining(), head.length - headOffset);
+			out.put(head, headOffset, n);
+			headOffset += n;
+			if (headOffset == head.length) {
+				writeQueue.poll();
+				headOffset = 0;
+				sendBudget.Release(head.length);
+			}
+		}
+		out.flip();
+	}
+
+	private void ReleaseReadBuffer() {
+		if (readBuffer != null) {
+			readBuffer.release();
+			readBuffer = null;
+		}
+	}
+
+	private void Close() {
+		if (isClosed) {
+			return;
+		}
+		isClosed = true;
+		logger.info("[Device:" + String.valueOf(remoteDeviceId) + "] NioTcpChannel close.");
+		if (heartBeatTimeout != null) {
+			heartBeatTimeout.cancel();
+		}
+		if (idleTimeout != null) {
+			idleTimeout.cancel();
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			socketChannel.close();
+		}
+		catch (IOException e) {
+			logger.error("NioTcpChannel close socket catch exception. Cause:" + e.getMessage());
+		}
+		loop.removeChannel(this);
+		writeQueue.clear();
+		sendBudget.Clear();
+		if (writeBuffer != null) {
+			writeBuffer.release();
+			writeBuffer = null;
+		}
+		if (!isDecoding) {
+			ReleaseReadBuffer();
+		}
+		if (remoteDeviceId != -1 && tcpHandlerProc != null) {
+			tcpHandlerProc.onChannelStatusChange(this, ITcpHandlerProc.STATUS_OFFLINE);
+		}
+	}
+}
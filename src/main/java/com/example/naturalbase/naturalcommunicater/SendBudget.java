@@ -0,0 +1,133 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import com.example.naturalbase.common.NBConfig;
+
+/*
+ * Outbound byte budget of one channel. Bytes are reserved when a frame is
+ * queued and released when it is written to the socket.
+ * Above the high watermark the channel is paused until it drains below the
+ * low watermark: coalescible frames (heart beats, DataChange, Push, which the
+ * device can make up for with a pull) are dropped, other frames are queued up
+ * to the hard limit. A channel that stays paused for the slow consumer time
+ * is evicted, the owner closes it.
+ */
+public class SendBudget {
+
+	public static final String CONFIG_MAX_BYTES = "naturalbase.tcp.send.max-bytes";
+	public static final String CONFIG_HIGH_WATERMARK = "naturalbase.tcp.send.high-watermark";
+	public static final String CONFIG_LOW_WATERMARK = "naturalbase.tcp.send.low-watermark";
+	public static final String CONFIG_SLOW_CONSUMER_MS = "naturalbase.tcp.send.slow-consumer-ms";
+
+	public static final long MAX_BYTES = NBConfig.getLong(CONFIG_MAX_BYTES, 4 * 1024 * 1024);
+	public static final long HIGH_WATERMARK = NBConfig.getLong(CONFIG_HIGH_WATERMARK, 1024 * 1024);
+	public static final long LOW_WATERMARK = NBConfig.getLong(CONFIG_LOW_WATERMARK, 256 * 1024);
+	public static final long SLOW_CONSUMER_MS = NBConfig.getLong(CONFIG_SLOW_CONSUMER_MS, 30 * 1000);
+
+	public static final int RESULT_ACCEPTED = 0;
+	public static final int RESULT_DROPPED = 1;
+	public static final int RESULT_REJECTED = 2;
+	public static final int RESULT_EVICT = 3;
+
+	private long maxBytes;
+	private long highWatermark;
+	private long lowWatermark;
+	private long slowConsumerMs;
+
+	private long queuedBytes = 0;
+	private long queuedFrames = 0;
+	private long peakQueuedBytes = 0;
+	private boolean isPaused = false;
+	private long pausedSince;
+	private long droppedCount = 0;
+	private long rejectedCount = 0;
+	private boolean isClosed = false;
+
+	public SendBudget() {
+		this(MAX_BYTES, HIGH_WATERMARK, LOW_WATERMARK, SLOW_CONSUMER_MS);
+	}
+
+	public SendBudget(long inMaxBytes, long inHighWatermark, long inLowWatermark, long inSlowConsumerMs) {
+		maxBytes = inMaxBytes;
+		highWatermark = Math.min(inHighWatermark, inMaxBytes);
+		lowWatermark = Math.min(inLowWatermark, highWatermark);
+		slowConsumerMs = inSlowConsumerMs;
+	}
+
+	/*
+	 * the frame may only be queued on RESULT_ACCEPTED, then Release() its
+	 * length once it is written
+	 */
+	public synchronized int Reserve(int length, boolean isCoalescible) {
+		if (isClosed) {
+			return RESULT_REJECTED;
+		}
+		if (isPaused && System.currentTimeMillis() - pausedSince >= slowConsumerMs) {
+			return RESULT_EVICT;
+		}
+		if (isPaused && isCoalescible) {
+			droppedCount++;
+			return RESULT_DROPPED;
+		}
+		if (queuedBytes + length > maxBytes) {
+			rejectedCount++;
+			return RESULT_REJECTED;
+		}
+		queuedBytes += length;
+		queuedFrames++;
+		peakQueuedBytes = Math.max(peakQueuedBytes, queuedBytes);
+		if (!isPaused && queuedBytes > highWatermark) {
+			isPaused = true;
+			pausedSince = System.currentTimeMillis();
+		}
+		return RESULT_ACCEPTED;
+	}
+
+	public synchronized void Release(int length) {
+		if (isClosed) {
+			return;
+		}
+		queuedBytes -= length;
+		queuedFrames--;
+		if (isPaused && queuedBytes <= lowWatermark) {
+			isPaused = false;
+		}
+	}
+
+	/*
+	 * the channel is closed, its queue is thrown away
+	 */
+	public synchronized void Clear() {
+		isClosed = true;
+		queuedBytes = 0;
+		queuedFrames = 0;
+		isPaused = false;
+	}
+
+	public synchronized boolean isPaused() {
+		return isPaused;
+	}
+
+	public synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	public synchronized long getQueuedFrames() {
+		return queuedFrames;
+	}
+
+	public synchronized long getPeakQueuedBytes() {
+		return peakQueuedBytes;
+	}
+
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	public synchronized long getPausedMs() {
+		return isPaused ? System.currentTimeMillis() - pausedSince : 0;
+	}
+}
@@ -6,15 +6,22 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.example.naturalbase.common.BufferPool;
+import com.example.naturalbase.common.BufferPool.PooledBuffer;
+import com.example.naturalbase.common.HashedWheelTimer;
 import com.example.naturalbase.common.NBUtils;
 
-public class TCPChannel extends Thread{
+/*
+ * Blocking device connection, run() reads until the connection ends. It is
+ * run by the connection executor of NaturalTCPServer (see NBExecutors).
+ */
+public class TCPChannel implements Runnable, ITcpChannel, IFrameHandler {
     private Socket socket;
     private InputStream in;
     private OutputStream out;
@@ -27,22 +34,29 @@ public class TCPChannel extends Thread{
     private final int BUFFER_SIZE = 4096;
 
     private byte[] inBuffer = new byte[BUFFER_SIZE];
+    private ByteBuffer inByteBuffer = ByteBuffer.wrap(inBuffer);
+    private FrameCodec frameCodec = new FrameCodec();
 
     public static final int TCP_MESSAGE_TYPE_DEVICE_ONLINE = 0x55;
 	public static final int TCP_MESSAGE_TYPE_DATA_CHANGE = 0xAA;
     public static final int TCP_MESSAGE_TYPE_HEART_BEAT = 0x5A;
+    // extended frames only, see FrameCodec
+    public static final int TCP_MESSAGE_TYPE_DATA = 0xDA;
+    // shared by every channel, never modified
+    static final byte[] HEART_BEAT_FRAME = new byte[]{(byte)TCP_MESSAGE_TYPE_HEART_BEAT, 0x0};
     
     private static final long HEART_BEAT_TIME = 10 * 1000; //Ms
-    private Timer heartBeatTimer = new Timer("HeartBeat");
-    private TimerTask heartBeatTimerProc = new TimerTask(){
-    
-        @Override
-        public void run() {
-            byte[] heartbeatMessage = new byte[]{(byte)TCP_MESSAGE_TYPE_HEART_BEAT, 0x0};
-            logger.debug("Device:" + String.valueOf(remoteDeviceId) + " send heart beat message:" + NBUtils.ByteArrayToHexString(heartbeatMessage));
-            send(heartbeatMessage);
-        }
-    };
+    // heart beats and idle checks run on the shared timer, socket writes on the write dispatcher
+    private HashedWheelTimer timer;
+    private DeviceDispatcher writeDispatcher;
+    private HashedWheelTimer.Timeout heartBeatTimeout;
+    private HashedWheelTimer.Timeout idleTimeout;
+    private long idleTimeoutMs;
+    private volatile long lastReadTime;
+    private volatile long lastWriteTime;
+    private volatile boolean isClosed = false;
+    // bytes queued on the write dispatcher
+    private SendBudget sendBudget = new SendBudget();
 
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -64,9 +78,12 @@ public class TCPChannel extends Thread{
         }
     }
 
-    public TCPChannel(Socket s, ITcpHandlerProc handler){
+    public TCPChannel(Socket s, ITcpHandlerProc handler, HashedWheelTimer inTimer, DeviceDispatcher inWriteDispatcher, long inIdleTimeoutMs){
         socket = s;
         tcpHandlerProc = handler;
+        timer = inTimer;
+        writeDispatcher = inWriteDispatcher;
+        idleTimeoutMs = inIdleTimeoutMs;
         try{
             in = socket.getInputStream();
             out = socket.getOutputStream();
@@ -76,22 +93,76 @@ public class TCPChannel extends Thread{
             e.printStackTrace();
         }
         logger.debug("Thread:" + String.valueOf(Thread.currentThread().getId()) + " start heart beat timer.");
-        heartBeatTimer.schedule(heartBeatTimerProc, 0, HEART_BEAT_TIME);
+        lastReadTime = System.currentTimeMillis();
+        // the first heart beat goes out right away
+        OnHeartBeatTimeout();
+        idleTimeout = timer.newTimeout(this::OnIdleTimeout, idleTimeoutMs);
+    }
+
+    /*
+     * skipped while other frames went out within HEART_BEAT_TIME
+     */
+    private void OnHeartBeatTimeout(){
+        if (isClosed){
+            return;
+        }
+        long sinceWrite = System.currentTimeMillis() - lastWriteTime;
+        if (sinceWrite >= HEART_BEAT_TIME){
+            // the write may block, never on the timer thread. Dropped while the queue is over the high watermark
+            logger.debug("Device:" + String.valueOf(remoteDeviceId) + " send heart beat message");
+            send(HEART_BEAT_FRAME, true);
+            heartBeatTimeout = timer.newTimeout(this::OnHeartBeatTimeout, HEART_BEAT_TIME);
+        }
+        else{
+            heartBeatTimeout = timer.newTimeout(this::OnHeartBeatTimeout, HEART_BEAT_TIME - sinceWrite);
+        }
+    }
+
+    private void OnIdleTimeout(){
+        if (isClosed){
+            return;
+        }
+        long idle = System.currentTimeMillis() - lastReadTime;
+        if (idle >= idleTimeoutMs){
+            logger.error("TCPChannel read timeout. DeviceId:" + String.valueOf(remoteDeviceId));
+            closeChannel();
+            return;
+        }
+        idleTimeout = timer.newTimeout(this::OnIdleTimeout, idleTimeoutMs - idle);
+    }
+
+    private void CancelTimeouts(){
+        isClosed = true;
+        sendBudget.Clear();
+        if (heartBeatTimeout != null){
+            heartBeatTimeout.cancel();
+        }
+        if (idleTimeout != null){
+            idleTimeout.cancel();
+        }
     }
     
+    @Override
     public int getRemoteDeviceId(){
         return remoteDeviceId;
     }
 
-    public void send(byte[] buffer){
+    /*
+     * synchronized, a heart beat queued before the device id was known can run next to a data write
+     */
+    @Override
+    public synchronized void send(byte[] buffer){
         try{
             if (out == null){
                 logger.error("TCPChannel OutputStream is null.");
                 return;
             }
-			logger.info("TCPChannel send message:" + NBUtils.ByteArrayToHexString(buffer));
+            if (logger.isDebugEnabled()){
+                logger.debug("TCPChannel send message:" + NBUtils.ByteArrayToHexString(buffer));
+            }
             out.write(buffer);
             out.flush();
+            lastWriteTime = System.currentTimeMillis();
         }
         catch (IOException e){
             logger.error("TCPChannel send catch exception:" + e.getCause());
@@ -99,23 +170,72 @@ public class TCPChannel extends Thread{
         }
     }
     
-    private void TcpMessageDeviceOnline() throws IOException {
-        int messageLength = in.read();
-        byte[] buf = new byte[messageLength];
-        in.read(buf, 0, messageLength);
-        remoteDeviceId = Integer.valueOf(NBUtils.ToUTF8String(buf));
-        logger.info("[Device:" + String.valueOf(remoteDeviceId) + " Thread:" + Thread.currentThread().getId() + "] get online.");
-        if (tcpHandlerProc != null){
-            tcpHandlerProc.onChannelStatusChange(this, ITcpHandlerProc.STATUS_ONLINE);
+    /*
+     * queued on the write dispatcher, send(byte[]) writes right away
+     */
+    @Override
+    public boolean send(byte[] buffer, boolean isCoalescible){
+        if (isClosed){
+            return false;
+        }
+        int result = sendBudget.Reserve(buffer.length, isCoalescible);
+        if (result == SendBudget.RESULT_EVICT){
+            logger.error("TCPChannel slow consumer, " + sendBudget.getQueuedBytes() + " bytes queued for " +
+                         sendBudget.getPausedMs() + "ms. DeviceId:" + String.valueOf(remoteDeviceId));
+            closeChannel();
+            return false;
+        }
+        if (result != SendBudget.RESULT_ACCEPTED){
+            return false;
         }
+        boolean isQueued = writeDispatcher.Submit(remoteDeviceId, () -> {
+            if (!isClosed){
+                send(buffer);
+            }
+            sendBudget.Release(buffer.length);
+        });
+        if (!isQueued){
+            sendBudget.Release(buffer.length);
+        }
+        return isQueued;
     }
 
-    private void TcpMessageHeartBeat() throws IOException {
-        int messageLength = in.read();
-        logger.debug("TimeStamp:" + String.valueOf(NBUtils.GetCurrentTimeStamp()) + 
-                     " Thread:" + Thread.currentThread().getId() + 
-                     " DeviceId:" + String.valueOf(remoteDeviceId) + 
-                     " get HEART_BEAT message! MessageLength=" + String.valueOf(messageLength));
+    @Override
+    public SendBudget getSendBudget(){
+        return sendBudget;
+    }
+
+    @Override
+    public void onFrame(int type, byte[] payload, int length) {
+        switch(type){
+            case TCP_MESSAGE_TYPE_DEVICE_ONLINE:
+                logger.debug("TCPChannel get DEVICE_ONLINE message!");
+                remoteDeviceId = Integer.valueOf(NBUtils.ToUTF8String(Arrays.copyOf(payload, length)));
+                logger.info("[Device:" + String.valueOf(remoteDeviceId) + " Thread:" + Thread.currentThread().getId() + "] get online.");
+                if (tcpHandlerProc != null){
+                    tcpHandlerProc.onChannelStatusChange(this, ITcpHandlerProc.STATUS_ONLINE);
+                }
+                break;
+            case TCP_MESSAGE_TYPE_HEART_BEAT:
+                logger.debug("TimeStamp:" + String.valueOf(NBUtils.GetCurrentTimeStamp()) + 
+                             " Thread:" + Thread.currentThread().getId() + 
+                             " DeviceId:" + String.valueOf(remoteDeviceId) + 
+                             " get HEART_BEAT message! MessageLength=" + String.valueOf(length));
+                break;
+            case TCP_MESSAGE_TYPE_DATA:
+                if (remoteDeviceId != -1 && tcpHandlerProc != null){
+                    // handled on another thread, the codec buffer is reused. Released by the server after handling
+                    PooledBuffer message = BufferPool.HEAP.Allocate(length);
+                    System.arraycopy(payload, 0, message.array(), 0, length);
+                    tcpHandlerProc.onReceive(new TcpMessage(remoteDeviceId, message, length));
+                }
+                break;
+            default:
+                logger.error("Thread:" + Thread.currentThread().getId() + 
+                             " DeviceId:" + String.valueOf(remoteDeviceId) + 
+                             " unexpected message type. type = " + String.format("0x%x", type));
+                break;
+        }
     }
 
     @Override
@@ -126,28 +246,25 @@ public class TCPChannel extends Thread{
         }
         try {
             while(isRunning){
-                int messageType = in.read();
-                if (messageType == -1){
+                // frames may arrive split over several reads, the codec keeps the partial one
+                int n = in.read(inBuffer);
+                if (n == -1){
                     isRunning = false;
                     logger.debug("[Thread:" + Thread.currentThread().getId() + "] TCPChannel receive EOF, and break loop!");
                     break;
                 }
-                switch(messageType){
-                    case TCP_MESSAGE_TYPE_DEVICE_ONLINE:
-                        logger.debug("TCPChannel get DEVICE_ONLINE message!");
-                        TcpMessageDeviceOnline();
-                        break;
-                    case TCP_MESSAGE_TYPE_HEART_BEAT:
-                        TcpMessageHeartBeat();
-                        break;
-                    default:
-                        logger.error("Thread:" + Thread.currentThread().getId() + 
-                                     " DeviceId:" + String.valueOf(remoteDeviceId) + 
-                                     " invalid message type. type = " + String.format("0x%x", messageType));
+                lastReadTime = System.currentTimeMillis();
+                inByteBuffer.clear();
+                inByteBuffer.limit(n);
+                if (!frameCodec.Decode(inByteBuffer, this)){
+                    isRunning = false;
                     break;
                 }
             }
         }
+        catch (NumberFormatException e){
+            logger.error("TCPChannel invalid device id. Cause:" + e.getMessage());
+        }
         catch (SocketTimeoutException e){
             logger.error("TCPChannel catch SocketTimeoutException. DeviceId:" + String.valueOf(remoteDeviceId));
             e.printStackTrace();
@@ -159,7 +276,7 @@ public class TCPChannel extends Thread{
         finally{
             try{
                 logger.info("[Device:" + String.valueOf(remoteDeviceId) + " Thread:" + Thread.currentThread().getId() + "] TCPChannel close.");
-                heartBeatTimer.cancel();
+                CancelTimeouts();
                 in.close();
                 out.close();
                 socket.close();
@@ -174,12 +291,13 @@ public class TCPChannel extends Thread{
         }
     }
     
+    @Override
     public void closeChannel(){
         synchronized(objLockRunning){
             isRunning = false;
         }
+        CancelTimeouts();
         try{
-        	heartBeatTimer.cancel();
             in.close();
             out.close();
             socket.close();
@@ -2,14 +2,20 @@ package com.example.naturalbase.naturalcommunicater;
 
 import java.io.UnsupportedEncodingException;
 
+import com.example.naturalbase.common.BufferPool.PooledBuffer;
+
 public class TcpMessage {
 	public int deviceId;
 	public byte[] msg;
+	// msg[0..length) is the message, msg may be a longer pooled array
+	public int length;
+	private PooledBuffer buffer;
 	
 	public TcpMessage(int id, String message) {
 		deviceId = id;
 		try{
 			msg = message.getBytes("UTF-8");
+			length = msg.length;
 		}
 		catch (UnsupportedEncodingException e){
 			e.printStackTrace();
@@ -19,5 +25,27 @@ public class TcpMessage {
 	public TcpMessage(int id, byte[] message){
 		deviceId = id;
 		msg = message;
+		length = message.length;
+	}
+
+	/*
+	 * takes over the reference of a BufferPool.HEAP buffer
+	 */
+	public TcpMessage(int id, PooledBuffer inBuffer, int inLength){
+		deviceId = id;
+		buffer = inBuffer;
+		msg = inBuffer.array();
+		length = inLength;
+	}
+
+	/*
+	 * gives a pooled msg back, msg must not be used afterwards
+	 */
+	public void release(){
+		if (buffer != null){
+			buffer.release();
+			buffer = null;
+			msg = null;
+		}
 	}
 }
@@ -0,0 +1,182 @@
+package com.example.naturalbase.naturalp2psyncmodule;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.fastjson.JSONObject;
+import com.example.naturalbase.naturalcommunicater.BinaryMessageCodec;
+import com.example.naturalbase.naturalcommunicater.FrameCodec;
+import com.example.naturalbase.naturalcommunicater.NaturalCommunicater;
+import com.example.naturalbase.naturalcommunicater.TCPChannel;
+import com.example.naturalbase.naturalstorage.DataItem;
+import com.example.naturalbase.naturalstorage.ValueCodec;
+
+/*
+ * Sends committed changes straight to subscribed devices as a Push message in
+ * a DATA frame, the device acks it with PushAck over the same channel.
+ * Sequences are handed out without gaps, so a push is only sent when it starts
+ * right after device.pushSequence; then the device has every change up to the
+ * pushed sequence once it has the push. Every other device (not subscribed,
+ * a gap, too many unacked changes, queue full) is handed to the
+ * NotifyScheduler and pulls with RequestSync as before.
+ */
+public class ChangePusher {
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private NaturalCommunicater communicater;
+	private NotifyScheduler notifyScheduler;
+	private Map<Integer, DeviceInfo> deviceMap;
+	private boolean isEnabled;
+	private long maxUnacked;
+	private int maxItems;
+	// highest sequence published so far, everything up to it is committed
+	private AtomicLong lastSequence = new AtomicLong(0);
+
+	public ChangePusher(NaturalCommunicater inCommunicater, NotifyScheduler inNotifyScheduler, Map<Integer, DeviceInfo> inDeviceMap,
+			            boolean inIsEnabled, long inMaxUnacked, int inMaxItems) {
+		communicater = inCommunicater;
+		notifyScheduler = inNotifyScheduler;
+		deviceMap = inDeviceMap;
+		isEnabled = inIsEnabled;
+		maxUnacked = inMaxUnacked;
+		maxItems = inMaxItems;
+	}
+
+	public boolean isEnabled() {
+		return isEnabled;
+	}
+
+	public long getLastSequence() {
+		return lastSequence.get();
+	}
+
+	/*
+	 * items are the accepted items of one committed write of originDeviceId,
+	 * with the sequences firstSequence..lastSequence in order
+	 */
+	public void Publish(int originDeviceId, List<DataItem> items, long firstSequence, long inLastSequence) {
+		lastSequence.accumulateAndGet(inLastSequence, Math::max);
+		PushFrames frames = new PushFrames(items, firstSequence, inLastSequence);
+		for (Map.Entry<Integer, DeviceInfo> e : deviceMap.entrySet()) {
+			int deviceId = e.getKey();
+			DeviceInfo device = e.getValue();
+			boolean isPushed = false;
+			synchronized (device) {
+				boolean isContiguous = device.pushSequence == firstSequence - 1;
+				if (deviceId == originDeviceId) {
+					// the device has its own changes
+					if (isContiguous) {
+						device.pushSequence = inLastSequence;
+					}
+					continue;
+				}
+				if (isEnabled && device.isSubscribed && isContiguous &&
+					inLastSequence - device.waterMark <= maxUnacked && items.size() <= maxItems) {
+					byte[] frame = frames.Get(device.acceptDeflate, device.isBinary);
+					// queued under the lock, so pushes reach the device in sequence order.
+					// Dropped by a busy channel, the device pulls the change instead
+					if (frame != null && communicater.SendTcpMessage(deviceId, frame, true)) {
+						device.pushSequence = inLastSequence;
+						isPushed = true;
+					}
+				}
+			}
+			if (!isPushed) {
+				notifyScheduler.Request(deviceId);
+			}
+		}
+	}
+
+	/*
+	 * the device pulled everything up to sequence
+	 */
+	public void CaughtUp(DeviceInfo device, long sequence) {
+		synchronized (device) {
+			if (sequence > device.pushSequence) {
+				device.pushSequence = sequence;
+			}
+		}
+	}
+
+	/*
+	 * DATA frame carrying a message in the same envelope as the HTTP messages,
+	 * JSON or BinaryMessageCodec
+	 */
+	static byte[] MakeupFrame(String messageType, JSONObject messageObj, boolean isBinary) {
+		JSONObject message = new JSONObject();
+		JSONObject messageHeader = new JSONObject();
+		messageHeader.put(NaturalCommunicater.JSON_MESSAGE_HEADER_MESSAGE_TYPE, messageType);
+		messageHeader.put(NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID, NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID_DEFAULT);
+		messageHeader.put(NaturalCommunicater.JSON_MESSAGE_HEADER_DEVICE_ID, NaturalCommunicater.LOCAL_DEVICE_ID);
+		message.put(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER, messageHeader);
+		message.put(NaturalCommunicater.JSON_OBJECT_MESSAGE, messageObj);
+		byte[] payload = isBinary ? BinaryMessageCodec.Encode(message) : message.toJSONString().getBytes(StandardCharsets.UTF_8);
+		if (payload.length > FrameCodec.MAX_FRAME_BYTES) {
+			return null;
+		}
+		return FrameCodec.Encode(TCPChannel.TCP_MESSAGE_TYPE_DATA, payload, false);
+	}
+
+	/*
+	 * the Push frame of one write, built at most once per value codec and encoding
+	 */
+	private class PushFrames {
+		private List<DataItem> items;
+		private long firstSequence;
+		private long lastSequence;
+		private byte[][] frames = new byte[4][];
+		private boolean[] isBuilt = new boolean[4];
+
+		PushFrames(List<DataItem> inItems, long inFirstSequence, long inLastSequence) {
+			items = inItems;
+			firstSequence = inFirstSequence;
+			lastSequence = inLastSequence;
+		}
+
+		byte[] Get(boolean acceptDeflate, boolean isBinary) {
+			int index = (acceptDeflate ? 1 : 0) + (isBinary ? 2 : 0);
+			if (!isBuilt[index]) {
+				isBuilt[index] = true;
+				frames[index] = Build(acceptDeflate, isBinary);
+			}
+			return frames[index];
+		}
+
+		private byte[] Build(boolean acceptDeflate, boolean isBinary) {
+			List<DataItem> pushItems = items;
+			if (!acceptDeflate) {
+				pushItems = new ArrayList<DataItem>(items.size());
+				for (DataItem dataItem : items) {
+					DataItem copy = new DataItem();
+					copy.Key = dataItem.Key;
+					copy.Value = dataItem.Value;
+					copy.Codec = dataItem.Codec;
+					copy.TimeStamp = dataItem.TimeStamp;
+					copy.DeleteBit = dataItem.DeleteBit;
+					copy.Sequence = dataItem.Sequence;
+					try {
+						ValueCodec.Decompress(copy);
+					}
+					catch (IOException e) {
+						logger.error("ChangePusher decompress value of key " + copy.Key + " failed. Cause:" + e.getMessage());
+						return null;
+					}
+					pushItems.add(copy);
+				}
+			}
+			JSONObject messageObj = new JSONObject();
+			NaturalP2PSyncModule.PutDataItems(messageObj, pushItems);
+			messageObj.put(NaturalP2PSyncModule.MESSAGE_PREVIOUS_SEQUENCE, String.valueOf(firstSequence - 1));
+			messageObj.put(NaturalP2PSyncModule.MESSAGE_SEQUENCE, String.valueOf(lastSequence));
+			return MakeupFrame(NaturalP2PSyncModule.MESSAGE_TYPE_PUSH, messageObj, isBinary);
+		}
+	}
+}
@@ -1,7 +1,26 @@
 package com.example.naturalbase.naturalp2psyncmodule;
 
 public class DeviceInfo {
+	// sequence of the last change the device has acked
 	public long waterMark;
 	public long onlineTimeStamp;
 	public long lastRequestTimeStamp;
+	// generation of the connection the device is online with, see DeviceSessionRegistry
+	public long sessionGeneration;
+	// sequence of the last item sent in a ResponseSync, becomes waterMark on ack
+	public long pendingSequence;
+	// push mode, see ChangePusher. Guarded by the DeviceInfo lock
+	public boolean isSubscribed;
+	public boolean acceptDeflate;
+	// Subscribe came in the binary encoding, see BinaryMessageCodec
+	public boolean isBinary;
+	// every change up to this sequence was sent to the device, by push or by a complete pull
+	public long pushSequence;
+	// set by RequestSync, the device asks for the next page while isPulling
+	public volatile boolean isPulling;
+	public volatile long lastRequestSyncTime;
+	// horizon of the full resync the device is in, 0 if none. The watermark never moves
+	// back, resyncSequence is where the resync got to by acks. See MessageRequestSync
+	public volatile long resyncHorizon;
+	public volatile long resyncSequence;
 }
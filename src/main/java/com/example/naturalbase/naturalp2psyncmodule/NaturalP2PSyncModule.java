@@ -1,8 +1,11 @@
 package com.example.naturalbase.naturalp2psyncmodule;
 
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Map;
 
@@ -10,17 +13,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import com.alibaba.fastjson.*;
+import com.example.naturalbase.common.IMessageWriter;
+import com.example.naturalbase.common.NBConfig;
 import com.example.naturalbase.common.NBHttpResponse;
 import com.example.naturalbase.common.NBUtils;
 import com.example.naturalbase.naturalbase.HttpTask;
+import com.example.naturalbase.naturalcommunicater.BinaryMessageCodec;
 import com.example.naturalbase.naturalcommunicater.ITcpServerHandlerProc;
 import com.example.naturalbase.naturalcommunicater.MessageHeader;
 import com.example.naturalbase.naturalcommunicater.NaturalCommunicater;
-import com.example.naturalbase.naturalcommunicater.TCPChannel;
 import com.example.naturalbase.naturalstorage.DataItem;
+import com.example.naturalbase.naturalstorage.IDataItemVisitor;
 import com.example.naturalbase.naturalstorage.NaturalStorage;
+import com.example.naturalbase.naturalstorage.SyncPage;
+import com.example.naturalbase.naturalstorage.SyncWriteResult;
+import com.example.naturalbase.naturalstorage.ValueCodec;
 
 public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 
@@ -37,6 +46,23 @@ public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 	public static final String MESSAGE_TYPE_RESPONSE_SYNC_ACK = "ResponseSyncAck";
 
 	public static final String MESSAGE_TYPE_DATA_CHANGE = "DataChange";
+
+	public static final String MESSAGE_TYPE_GET_DATA = "GetData";
+	public static final String MESSAGE_TYPE_GET_DATA_RESPONSE = "GetDataResponse";
+	public static final String MESSAGE_TYPE_SAVE_DATA = "SaveData";
+	public static final String MESSAGE_TYPE_SAVE_DATA_ACK = "SaveDataAck";
+	public static final String MESSAGE_TYPE_REMOVE_DATA = "RemoveData";
+	public static final String MESSAGE_TYPE_REMOVE_DATA_ACK = "RemoveDataAck";
+	
+	// over the TCP channel, see ChangePusher
+	public static final String MESSAGE_TYPE_SUBSCRIBE = "Subscribe";
+	public static final String MESSAGE_TYPE_SUBSCRIBE_ACK = "SubscribeAck";
+	public static final String MESSAGE_TYPE_PUSH = "Push";
+	public static final String MESSAGE_TYPE_PUSH_ACK = "PushAck";
+	
+	// several of the messages above in one request, see MessageBatchProc
+	public static final String MESSAGE_TYPE_BATCH = "Batch";
+	public static final String MESSAGE_TYPE_BATCH_RESPONSE = "BatchResponse";
 	
 	public static final String MESSAGE_TYPE_SIGN = "Sign_Test";
 	public static final String MESSAGE_TYPE_SIGN_ACK = "SignAck";
@@ -47,14 +73,52 @@ public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 	public static final String MESSAGE_DATAITEM = "DataItem";
 	public static final String MESSAGE_KEY = "Key";
 	public static final String MESSAGE_VALUE = "Value";
+	public static final String MESSAGE_VALUE_ENCODING = "ValueEncoding";
+	public static final String VALUE_ENCODING_BASE64 = "base64";
+	public static final String MESSAGE_VALUE_CODEC = "ValueCodec";
+	public static final String MESSAGE_ACCEPT_CODEC = "AcceptCodec";
+	public static final String MESSAGE_FULL_RESYNC = "FullResync";
 	public static final String MESSAGE_DELETE_BIT = "DeleteBit";
 	public static final String MESSAGE_RETURN = "Return";
+	public static final String MESSAGE_REJECTED_KEY = "RejectedKey";
+	public static final String MESSAGE_CONTINUATION_TOKEN = "ContinuationToken";
+	public static final String MESSAGE_HAS_MORE = "HasMore";
+	public static final String MESSAGE_MAX_ITEMS = "MaxItems";
+	public static final String MESSAGE_SEQUENCE = "Sequence";
+	public static final String MESSAGE_FOUND = "Found";
+	public static final String MESSAGE_PREVIOUS_SEQUENCE = "PreviousSequence";
+	public static final String MESSAGE_MESSAGES = "Messages";
+	public static final String MESSAGE_RESPONSES = "Responses";
+	public static final String MESSAGE_STATUS = "Status";
+	public static final String MESSAGE_BODY = "Body";
+
+	// device watermarks used to be METADATA rows under this prefix, they are
+	// read once as a fallback for devices missing from the watermark store
+	public static final String WATERMARK_KEY_PREFIX = "SyncSequence@";
+	public static final String CONTINUATION_TOKEN_SEPARATOR = "@";
+
+	public static final String CONFIG_PAGE_MAX_ITEMS = "naturalbase.sync.page.max-items";
+	public static final String CONFIG_PAGE_MAX_BYTES = "naturalbase.sync.page.max-bytes";
+	public static final String CONFIG_WATERMARK_FLUSH_INTERVAL = "naturalbase.sync.watermark.flush-interval-ms";
+	public static final String CONFIG_TOMBSTONE_GC_INTERVAL = "naturalbase.sync.tombstone-gc.interval-ms";
+	public static final String CONFIG_TOMBSTONE_GC_BATCH_SIZE = "naturalbase.sync.tombstone-gc.batch-size";
+	public static final String CONFIG_TOMBSTONE_GC_BATCH_PAUSE = "naturalbase.sync.tombstone-gc.batch-pause-ms";
+	public static final String CONFIG_TOMBSTONE_GC_DORMANT_GRACE = "naturalbase.sync.tombstone-gc.dormant-grace-ms";
+	public static final String CONFIG_NOTIFY_WINDOW = "naturalbase.sync.notify.window-ms";
+	public static final String CONFIG_PUSH_ENABLED = "naturalbase.sync.push.enabled";
+	public static final String CONFIG_PUSH_MAX_UNACKED = "naturalbase.sync.push.max-unacked";
+	public static final String CONFIG_BATCH_MAX_MESSAGES = "naturalbase.sync.batch.max-messages";
 	
 	private final String RETURN_CODE_UNKNOW_MESSAGE_TYPE = "unknow message type";
 	private final String RETURN_CODE_INVALID_DATAITEM_SIZE = "invalid dataitemsize";
 	private final String RETURN_CODE_INVALID_DATAITEM = "invalid dataitem";
 	private final String RETURN_CODE_UNKNOW_DEVICE = "unknow device";
 	private final String RETURN_CODE_INVALID_TIMESTAMP = "invalid timestamp";
+	private final String RETURN_CODE_STORAGE_ERROR = "storage error";
+	private final String RETURN_CODE_INVALID_CONTINUATION_TOKEN = "invalid continuation token";
+	private final String RETURN_CODE_INVALID_KEY = "invalid key";
+	private final String RETURN_CODE_INVALID_SEQUENCE = "invalid sequence";
+	private final String RETURN_CODE_INVALID_BATCH = "invalid batch";
 	
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 	
@@ -62,13 +126,44 @@ public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 	private NaturalStorage storage;
 	
 	private Map<Integer, DeviceInfo> deviceMap;
+	private WaterMarkStore waterMarkStore;
+	private TombstoneCollector tombstoneCollector;
+	private NotifyScheduler notifyScheduler;
+	private ChangePusher changePusher;
+
+	private int pageMaxItems;
+	private long pageMaxBytes;
+	private int batchMaxMessages;
 	
 	public NaturalP2PSyncModule(NaturalCommunicater inCommunicater, NaturalStorage inStorage){
 		communicater = inCommunicater;
 		communicater.RegisterIncommingMessageHandler(this);
 		communicater.RegisterTCPServerHandler(this);
 		storage = inStorage;
-		deviceMap = new HashMap<Integer, DeviceInfo>();
+		deviceMap = new ConcurrentHashMap<Integer, DeviceInfo>();
+		pageMaxItems = NBConfig.getInt(CONFIG_PAGE_MAX_ITEMS, 500);
+		pageMaxBytes = NBConfig.getLong(CONFIG_PAGE_MAX_BYTES, 1024 * 1024);
+		batchMaxMessages = NBConfig.getInt(CONFIG_BATCH_MAX_MESSAGES, 32);
+		waterMarkStore = new WaterMarkStore(storage, NBConfig.getLong(CONFIG_WATERMARK_FLUSH_INTERVAL, 1000));
+		tombstoneCollector = new TombstoneCollector(storage, waterMarkStore, deviceMap.keySet(),
+				                                    NBConfig.getInt(CONFIG_TOMBSTONE_GC_BATCH_SIZE, 500),
+				                                    NBConfig.getLong(CONFIG_TOMBSTONE_GC_BATCH_PAUSE, 50),
+				                                    NBConfig.getLong(CONFIG_TOMBSTONE_GC_DORMANT_GRACE, 7L * 24 * 3600 * 1000));
+		tombstoneCollector.Start(NBConfig.getLong(CONFIG_TOMBSTONE_GC_INTERVAL, 10L * 60 * 1000));
+		notifyScheduler = new NotifyScheduler(communicater, deviceMap, NBConfig.getLong(CONFIG_NOTIFY_WINDOW, 200));
+		changePusher = new ChangePusher(communicater, notifyScheduler, deviceMap,
+				                        NBConfig.getBoolean(CONFIG_PUSH_ENABLED, true),
+				                        NBConfig.getLong(CONFIG_PUSH_MAX_UNACKED, 1000),
+				                        pageMaxItems);
+	}
+	
+	/*
+	 * flushes the watermarks, call before the storage is closed
+	 */
+	public void Close() {
+		notifyScheduler.Close();
+		tombstoneCollector.Close();
+		waterMarkStore.Close();
 	}
 	
 	public NBHttpResponse IncommingMessageHandlerProc(MessageHeader header, JSONObject message) {
@@ -81,17 +176,29 @@ public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 			return MessageSyncProc(header, message);
 		}
 		else if (header.messageType.equals(MESSAGE_TYPE_REQUEST_SYNC)) {
-			return MessageRequestSync(header);
+			return MessageRequestSync(header, message);
 		}
 		else if (header.messageType.equals(MESSAGE_TYPE_REQUEST_SYNC_ACK)) {
 			return MessageRequestSyncAck(header, message);
 		}
+		else if (header.messageType.equals(MESSAGE_TYPE_GET_DATA)) {
+			return MessageGetDataProc(message);
+		}
+		else if (header.messageType.equals(MESSAGE_TYPE_SAVE_DATA)) {
+			return MessageSaveDataProc(message);
+		}
+		else if (header.messageType.equals(MESSAGE_TYPE_REMOVE_DATA)) {
+			return MessageRemoveDataProc(message);
+		}
+		else if (header.messageType.equals(MESSAGE_TYPE_BATCH)) {
+			return MessageBatchProc(header, message);
+		}
 		else if (header.messageType.equals(MESSAGE_TYPE_SIGN)) {
 			logger.debug("IncommingMessageHandlerProc MESSAGE_TYPE_SIGN ");
 			return MessageSignProc(header, message);
 		}
 		else {
-			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_MESSAGE_TYPE));
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_UNKNOW_MESSAGE_TYPE));
 		}
 	}
 	
@@ -107,96 +214,456 @@ public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 		JSONObject message = new JSONObject();
 		message.put(MESSAGE_TIMESTAMP, String.valueOf(timeStamp));
 		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE, message);
-		return new NBHttpResponse(HttpStatus.OK, response.toJSONString());
+		return new NBHttpResponse(HttpStatus.OK, response);
+	}
+	
+	/*
+	 * messages that NaturalCommunicater decodes straight from the request stream
+	 */
+	public boolean IsStreamDecoded(String messageType) {
+		return MESSAGE_TYPE_SYNC.equals(messageType);
+	}
+	
+	/*
+	 * reader is positioned at the value of "Message". Returns null if the message is invalid
+	 */
+	public SyncMessage DecodeSyncMessage(JSONReader reader) {
+		try {
+			return SyncMessage.Decode(reader);
+		}
+		catch (IllegalArgumentException e) {
+			logger.error("message:Sync invalid dataitem. Cause:" + e.getMessage());
+			return null;
+		}
+	}
+	
+	public NBHttpResponse IncommingSyncMessageProc(MessageHeader header, SyncMessage message) {
+		logger.debug("Incomming Message! MessageType:" + header.messageType + " DeviceId:" + header.deviceId);
+		if (message == null) {
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_DATAITEM));
+		}
+		return MessageSyncProc(header, message);
 	}
 	
 	private NBHttpResponse MessageSyncProc(MessageHeader header, JSONObject message) {
-		int dataItemSize = message.getIntValue(MESSAGE_DATAITEM_SIZE);
+		if (message == null) {
+			logger.error("message:Sync without message.");
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_DATAITEM_SIZE));
+		}
+		SyncMessage syncMessage;
+		try {
+			syncMessage = SyncMessage.FromJSONObject(message);
+		}
+		catch (IllegalArgumentException | JSONException e) {
+			logger.error("message:Sync invalid dataitem. Cause:" + e.getMessage());
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_DATAITEM));
+		}
+		return MessageSyncProc(header, syncMessage);
+	}
+	
+	private NBHttpResponse MessageSyncProc(MessageHeader header, SyncMessage message) {
+		NBHttpResponse invalid = CheckSyncMessage(message);
+		if (invalid != null) {
+			return invalid;
+		}
+		return MessageSyncProc(header, Collections.singletonList(message)).get(0);
+	}
+	
+	/*
+	 * null if the Sync can be written, the error response otherwise
+	 */
+	private NBHttpResponse CheckSyncMessage(SyncMessage message) {
+		int dataItemSize = message.dataItemSize;
 		if (dataItemSize <= 0) {
 			logger.error("message:Sync get dataItemSize <= 0 message.");
-			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_INVALID_DATAITEM_SIZE));
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_DATAITEM_SIZE));
 		}
-		
+		if (message.dataItemList == null || message.dataItemList.size() < dataItemSize) {
+			logger.error("message:Sync can not get " + dataItemSize + " DATAITEM");
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_DATAITEM));
+		}
+		if (!NaturalStorage.IsValidBatch(message.dataItemList.subList(0, dataItemSize))) {
+			logger.error("message:Sync DATAITEM without KEY");
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_DATAITEM));
+		}
+		return null;
+	}
+	
+	/*
+	 * checked Syncs of one device written in a single storage batch and
+	 * published once; one SyncAck per message, in order
+	 */
+	private List<NBHttpResponse> MessageSyncProc(MessageHeader header, List<SyncMessage> messages) {
 		List<DataItem> dataItemList = new ArrayList<DataItem>();
-		JSONArray dataItemArray = message.getJSONArray(MESSAGE_DATAITEM);
-		if (dataItemArray == null) {
-			logger.error("message:Sync can not get DATAITEM");
-			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_INVALID_DATAITEM));
-		}
-		for (int i=0; i<dataItemSize; i++) {
-			JSONObject obj = dataItemArray.getJSONObject(i);
-			DataItem dataItem = new DataItem();
-			dataItem.Key = obj.getString(MESSAGE_KEY);
-			dataItem.Value = obj.getString(MESSAGE_VALUE);
-			dataItem.TimeStamp = Long.parseLong(obj.getString(MESSAGE_TIMESTAMP));
-			dataItem.DeleteBit = obj.getBooleanValue(MESSAGE_DELETE_BIT);
-			dataItemList.add(dataItem);
-		}
-		long timeStamp = storage.SaveDataFromSync(dataItemList, header.deviceId);
+		int[] ends = new int[messages.size()];
+		for (int i=0; i<messages.size(); i++) {
+			// items beyond DataItemSize are ignored
+			SyncMessage message = messages.get(i);
+			dataItemList.addAll(message.dataItemList.subList(0, message.dataItemSize));
+			ends[i] = dataItemList.size();
+		}
+		List<NBHttpResponse> responses = new ArrayList<NBHttpResponse>(messages.size());
+		SyncWriteResult writeResult = storage.SaveDataBatchFromSync(dataItemList, header.deviceId);
+		if (!writeResult.success) {
+			logger.error("message:Sync save " + dataItemList.size() + " items failed.");
+			for (int i=0; i<messages.size(); i++) {
+				responses.add(new NBHttpResponse(HttpStatus.INTERNAL_SERVER_ERROR, NBUtils.generateErrorBody(RETURN_CODE_STORAGE_ERROR)));
+			}
+			return responses;
+		}
+		int start = 0;
+		for (int end : ends) {
+			responses.add(MakeupSyncAck(dataItemList, start, end, writeResult));
+			start = end;
+		}
+		// push the change to the other devices, or notify them to pull
+		if (writeResult.acceptedCount > 0) {
+			List<DataItem> acceptedList = new ArrayList<DataItem>(writeResult.acceptedCount);
+			for (int i=0; i<dataItemList.size(); i++) {
+				if (writeResult.accepted[i]) {
+					acceptedList.add(dataItemList.get(i));
+				}
+			}
+			acceptedList.sort((a, b) -> Long.compare(a.Sequence, b.Sequence));
+			changePusher.Publish(header.deviceId, acceptedList, writeResult.firstSequence, writeResult.lastSequence);
+		}
+		return responses;
+	}
+	
+	/*
+	 * the SyncAck of dataItemList[start, end), one message of a written batch
+	 */
+	private NBHttpResponse MakeupSyncAck(List<DataItem> dataItemList, int start, int end, SyncWriteResult writeResult) {
 		JSONObject response = new JSONObject();
 		JSONObject messageHeader = MakeupMessageHeader(MESSAGE_TYPE_SYNC_ACK,
 				                                       NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID_DEFAULT,
 				                                       NaturalCommunicater.LOCAL_DEVICE_ID);
 		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER, messageHeader);
 		JSONObject messageObj = new JSONObject();
-		messageObj.put(MESSAGE_TIMESTAMP, String.valueOf(timeStamp));
+		long maxTimeStamp = -1;
+		JSONArray rejectedKeyArr = new JSONArray();
+		for (int i=start; i<end; i++) {
+			maxTimeStamp = Math.max(maxTimeStamp, dataItemList.get(i).TimeStamp);
+			if (!writeResult.accepted[i]) {
+				// items that lost against a newer stored version
+				rejectedKeyArr.add(dataItemList.get(i).Key);
+			}
+		}
+		messageObj.put(MESSAGE_TIMESTAMP, String.valueOf(maxTimeStamp));
+		if (!rejectedKeyArr.isEmpty()) {
+			messageObj.put(MESSAGE_REJECTED_KEY, rejectedKeyArr);
+		}
 		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE, messageObj);
-		// Notify other device data has changed
-		NotifyDeviceDataChange(header.deviceId);
-		return new NBHttpResponse(HttpStatus.OK, response.toJSONString());
+		return new NBHttpResponse(HttpStatus.OK, response);
+	}
+	
+	/*
+	 * {"Messages":[{"MessageHeader":..., "Message":...}, ...]} from one device.
+	 * The messages run in order while the BatchResponse is written, each
+	 * answered by {"Status":http status, "Body":its response}. Adjacent Syncs
+	 * share one storage batch; a Batch inside a Batch is refused
+	 */
+	private NBHttpResponse MessageBatchProc(MessageHeader header, JSONObject message) {
+		List<JSONObject> subMessages = new ArrayList<JSONObject>();
+		try {
+			JSONArray subArray = message == null ? null : message.getJSONArray(MESSAGE_MESSAGES);
+			if (subArray == null || subArray.isEmpty() || subArray.size() > batchMaxMessages) {
+				logger.error("message:Batch needs 1 to " + batchMaxMessages + " messages.");
+				return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_BATCH));
+			}
+			for (int i=0; i<subArray.size(); i++) {
+				subMessages.add(subArray.getJSONObject(i));
+			}
+		}
+		catch (JSONException | ClassCastException e) {
+			logger.error("message:Batch catch exception. Cause:" + e.getMessage());
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_BATCH));
+		}
+		return new NBHttpResponse(HttpStatus.OK, writer -> WriteBatchResponse(writer, header, subMessages));
+	}
+	
+	private void WriteBatchResponse(IMessageWriter writer, MessageHeader header, List<JSONObject> subMessages) throws IOException {
+		writer.startObject();
+		writer.writeKey(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER);
+		writer.writeValue(MakeupMessageHeader(MESSAGE_TYPE_BATCH_RESPONSE,
+				                              NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID_DEFAULT,
+				                              NaturalCommunicater.LOCAL_DEVICE_ID));
+		writer.writeKey(NaturalCommunicater.JSON_OBJECT_MESSAGE);
+		writer.startObject();
+		writer.writeKey(MESSAGE_RESPONSES);
+		writer.startArray();
+		int index = 0;
+		while (index < subMessages.size()) {
+			MessageHeader subHeader = GetBatchMessageHeader(header, subMessages.get(index));
+			if (subHeader == null) {
+				WriteBatchEntry(writer, new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_BATCH)));
+				index++;
+			}
+			else if (MESSAGE_TYPE_SYNC.equals(subHeader.messageType)) {
+				index = WriteBatchSyncRun(writer, header, subMessages, index);
+			}
+			else {
+				WriteBatchEntry(writer, IncommingMessageHandlerProc(subHeader, subMessages.get(index).getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE)));
+				index++;
+			}
+		}
+		writer.endArray();
+		writer.endObject();
+		writer.endObject();
+	}
+	
+	/*
+	 * the Syncs from subMessages[start] on, up to the next other message, in
+	 * one storage batch. Returns the index after the run
+	 */
+	private int WriteBatchSyncRun(IMessageWriter writer, MessageHeader header, List<JSONObject> subMessages, int start) throws IOException {
+		List<NBHttpResponse> responses = new ArrayList<NBHttpResponse>();
+		List<SyncMessage> syncMessages = new ArrayList<SyncMessage>();
+		List<Integer> syncIndexes = new ArrayList<Integer>();
+		int end = start;
+		for (; end < subMessages.size(); end++) {
+			MessageHeader subHeader = GetBatchMessageHeader(header, subMessages.get(end));
+			if (subHeader == null || !MESSAGE_TYPE_SYNC.equals(subHeader.messageType)) {
+				break;
+			}
+			NBHttpResponse invalid;
+			SyncMessage syncMessage = null;
+			try {
+				JSONObject messageObj = subMessages.get(end).getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE);
+				if (messageObj == null) {
+					invalid = new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_DATAITEM_SIZE));
+				}
+				else {
+					syncMessage = SyncMessage.FromJSONObject(messageObj);
+					invalid = CheckSyncMessage(syncMessage);
+				}
+			}
+			catch (IllegalArgumentException | JSONException | ClassCastException e) {
+				logger.error("message:Batch Sync invalid dataitem. Cause:" + e.getMessage());
+				invalid = new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_DATAITEM));
+			}
+			responses.add(invalid);
+			if (invalid == null) {
+				syncMessages.add(syncMessage);
+				syncIndexes.add(responses.size() - 1);
+			}
+		}
+		if (!syncMessages.isEmpty()) {
+			List<NBHttpResponse> acks = MessageSyncProc(header, syncMessages);
+			for (int i=0; i<acks.size(); i++) {
+				responses.set(syncIndexes.get(i), acks.get(i));
+			}
+		}
+		for (NBHttpResponse response : responses) {
+			WriteBatchEntry(writer, response);
+		}
+		return end;
+	}
+	
+	/*
+	 * null if the message has no header, is for another device or is a Batch itself
+	 */
+	private MessageHeader GetBatchMessageHeader(MessageHeader header, JSONObject subMessage) {
+		JSONObject headerObj;
+		try {
+			headerObj = subMessage == null ? null : subMessage.getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER);
+		}
+		catch (JSONException | ClassCastException e) {
+			logger.error("message:Batch catch exception. Cause:" + e.getMessage());
+			return null;
+		}
+		if (headerObj == null) {
+			return null;
+		}
+		MessageHeader subHeader = MessageHeader.FromJSONObject(headerObj);
+		if (subHeader.messageType == null || MESSAGE_TYPE_BATCH.equals(subHeader.messageType) || subHeader.deviceId != header.deviceId) {
+			logger.error("message:Batch refused " + subHeader.messageType + " of device " + subHeader.deviceId);
+			return null;
+		}
+		return subHeader;
 	}
 	
-	private NBHttpResponse MessageRequestSync(MessageHeader header) {
+	private void WriteBatchEntry(IMessageWriter writer, NBHttpResponse response) throws IOException {
+		writer.startObject();
+		writer.writeKey(MESSAGE_STATUS);
+		writer.writeValue(response.getStatusCode().value());
+		writer.writeKey(MESSAGE_BODY);
+		if (response.isStreaming()) {
+			response.getBodyWriter().write(writer);
+		}
+		else if (response.getBody() != null) {
+			writer.writeValue(response.getBody());
+		}
+		else {
+			// plain text bodies go out as a string
+			writer.writeValue(response.getReturnStr());
+		}
+		writer.endObject();
+	}
+	
+	private NBHttpResponse MessageRequestSync(MessageHeader header, JSONObject message) {
 		if (!deviceMap.containsKey(header.deviceId)) {
 			logger.error("message:RequestSync unknow device id id=" + String.valueOf(header.deviceId));
-			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_DEVICE));
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_UNKNOW_DEVICE));
 		}
 		
 		DeviceInfo device = deviceMap.get(header.deviceId);
-		List<DataItem> dataItemList = storage.GetUnsyncData(device.waterMark, NaturalStorage.TIMESTAMP_NOW, header.deviceId);
-		
-		JSONObject response = new JSONObject();
-		JSONObject messageHeader = MakeupMessageHeader(MESSAGE_TYPE_RESPONSE_SYNC,
-				                                       NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID_DEFAULT,
-				                                       NaturalCommunicater.LOCAL_DEVICE_ID);
-		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER, messageHeader);
+		long resyncHorizon = device.resyncHorizon;
+		long afterSequence = resyncHorizon > 0 ? device.resyncSequence : device.waterMark;
+		// the horizon the scan was checked against, -1 for the stored watermark
+		long tokenHorizon = -1;
+		int maxItems = pageMaxItems;
+		if (message != null && message.containsKey(MESSAGE_CONTINUATION_TOKEN)) {
+			String token = message.getString(MESSAGE_CONTINUATION_TOKEN);
+			try {
+				int separator = token.indexOf(CONTINUATION_TOKEN_SEPARATOR);
+				if (separator < 0) {
+					afterSequence = Long.parseLong(token);
+				}
+				else {
+					afterSequence = Long.parseLong(token.substring(0, separator));
+					tokenHorizon = Long.parseLong(token.substring(separator + 1));
+				}
+			}
+			catch (NumberFormatException | NullPointerException e) {
+				logger.error("message:RequestSync invalid continuation token " + token);
+				return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_CONTINUATION_TOKEN));
+			}
+		}
+		// the stored watermark and plain sequence tokens continue the full resync the device is in
+		if (tokenHorizon < 0 && resyncHorizon > 0) {
+			tokenHorizon = resyncHorizon;
+		}
+		if (message != null && message.getIntValue(MESSAGE_MAX_ITEMS) > 0) {
+			maxItems = Math.min(maxItems, message.getIntValue(MESSAGE_MAX_ITEMS));
+		}
+		// devices that can inflate get the stored compressed values as they are
+		boolean acceptDeflate = false;
+		if (message != null && message.getJSONArray(MESSAGE_ACCEPT_CODEC) != null) {
+			acceptDeflate = message.getJSONArray(MESSAGE_ACCEPT_CODEC).contains(ValueCodec.NAME_DEFLATE);
+		}
 		
-		JSONObject messageObj = new JSONObject();
-		messageObj.put(MESSAGE_DATAITEM_SIZE, dataItemList.size());
-		JSONArray dataItemListArr = new JSONArray();
-		for (int i=0; i<dataItemList.size(); i++) {
-			JSONObject dataItemObj = new JSONObject();
-			dataItemObj.put(MESSAGE_KEY, dataItemList.get(i).Key);
-			dataItemObj.put(MESSAGE_VALUE, dataItemList.get(i).Value);
-			dataItemObj.put(MESSAGE_TIMESTAMP, String.valueOf(dataItemList.get(i).TimeStamp));
-			dataItemObj.put(MESSAGE_DELETE_BIT, dataItemList.get(i).DeleteBit);
-			dataItemListArr.add(dataItemObj);
+		// deletes below the horizon may be purged, the device has to drop its data and start over.
+		// A token minted under the current horizon continues a scan that nothing was purged under
+		long horizon = tombstoneCollector.getHorizon();
+		boolean isFullResync = afterSequence > 0 && afterSequence < horizon && tokenHorizon < horizon;
+		if (isFullResync) {
+			logger.info("message:RequestSync device " + header.deviceId + " at " + afterSequence +
+					    " is behind tombstone horizon " + horizon + ", full resync.");
+			afterSequence = 0;
 		}
-		messageObj.put(MESSAGE_DATAITEM, dataItemListArr);
-		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE, messageObj);
 		
-		return new NBHttpResponse(HttpStatus.OK, response.toJSONString());
+		// everything published before the scan is committed and in the page unless it has more
+		long publishedSequence = changePusher.getLastSequence();
+		long scanSequence = afterSequence;
+		int scanMaxItems = maxItems;
+		boolean keepCompressed = acceptDeflate;
+		boolean isFullResyncPage = isFullResync;
+		return new NBHttpResponse(HttpStatus.OK, writer -> WriteResponseSync(writer, header.deviceId, device, scanSequence, scanMaxItems,
+				                                                             keepCompressed, isFullResyncPage, publishedSequence, horizon));
+	}
+	
+	/*
+	 * ResponseSync goes into the response stream while the storage cursor
+	 * visits the items, the page is never held as a List, JSONArray or String.
+	 * DataItemSize follows the DataItem array, it is only known at the end.
+	 * The ContinuationToken is "sequence@horizon", see MessageRequestSync
+	 */
+	private void WriteResponseSync(IMessageWriter writer, int deviceId, DeviceInfo device, long afterSequence, int maxItems,
+			                       boolean keepCompressed, boolean isFullResync, long publishedSequence, long horizon) throws IOException {
+		writer.startObject();
+		writer.writeKey(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER);
+		writer.writeValue(MakeupMessageHeader(MESSAGE_TYPE_RESPONSE_SYNC,
+				                              NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID_DEFAULT,
+				                              NaturalCommunicater.LOCAL_DEVICE_ID));
+		writer.writeKey(NaturalCommunicater.JSON_OBJECT_MESSAGE);
+		writer.startObject();
+		writer.writeKey(MESSAGE_DATAITEM);
+		writer.startArray();
+		// one object reused for every item
+		JSONObject dataItemObj = new JSONObject();
+		boolean[] isWriteFailed = new boolean[1];
+		SyncPage page = storage.ScanUnsyncData(afterSequence, deviceId, maxItems, pageMaxBytes, keepCompressed, new IDataItemVisitor() {
+			@Override
+			public boolean visit(DataItem dataItem) {
+				dataItemObj.clear();
+				PutDataItem(dataItemObj, dataItem);
+				try {
+					writer.writeValue(dataItemObj);
+				}
+				catch (IOException e) {
+					logger.error("message:RequestSync write dataitem catch exception. Cause:" + e.getMessage());
+					isWriteFailed[0] = true;
+					return false;
+				}
+				return true;
+			}
+		});
+		if (isWriteFailed[0]) {
+			throw new IOException("write ResponseSync to device " + deviceId + " failed");
+		}
+		if (!page.success) {
+			throw new IOException("scan unsync data of device " + deviceId + " failed");
+		}
+		device.pendingSequence = page.lastSequence;
+		device.lastRequestSyncTime = System.currentTimeMillis();
+		device.isPulling = page.hasMore;
+		if (isFullResync) {
+			device.resyncSequence = 0;
+			device.resyncHorizon = horizon;
+		}
+		if (!page.hasMore) {
+			device.resyncHorizon = 0;
+			changePusher.CaughtUp(device, Math.max(publishedSequence, page.lastSequence));
+		}
+		writer.endArray();
+		writer.writeKey(MESSAGE_DATAITEM_SIZE);
+		writer.writeValue(page.itemCount);
+		writer.writeKey(MESSAGE_SEQUENCE);
+		writer.writeValue(String.valueOf(page.lastSequence));
+		writer.writeKey(MESSAGE_CONTINUATION_TOKEN);
+		writer.writeValue(page.lastSequence + CONTINUATION_TOKEN_SEPARATOR + horizon);
+		writer.writeKey(MESSAGE_HAS_MORE);
+		writer.writeValue(page.hasMore);
+		if (isFullResync) {
+			writer.writeKey(MESSAGE_FULL_RESYNC);
+			writer.writeValue(true);
+		}
+		writer.endObject();
+		writer.endObject();
+		writer.flush();
 	}
 	
 	private NBHttpResponse MessageRequestSyncAck(MessageHeader header, JSONObject message) {
 		if (!deviceMap.containsKey(header.deviceId)) {
 			logger.error("message:RequestSyncAck unknow device id id=" + String.valueOf(header.deviceId));
-			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_UNKNOW_DEVICE));
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_UNKNOW_DEVICE));
 		}
 		
-		if (!message.containsKey(MESSAGE_TIMESTAMP)) {
+		if (message == null || (!message.containsKey(MESSAGE_TIMESTAMP) && !message.containsKey(MESSAGE_SEQUENCE))) {
 			logger.error("message:RequestSyncAck message do not contain TIMESTAMP");
-			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorInfo(RETURN_CODE_INVALID_TIMESTAMP));
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_TIMESTAMP));
+		}
+		// devices that only echo the TimeStamp ack the last page that was sent to them
+		DeviceInfo device = deviceMap.get(header.deviceId);
+		long newWaterMark = device.pendingSequence;
+		if (message.containsKey(MESSAGE_SEQUENCE)) {
+			long sequence;
+			try {
+				sequence = Long.parseLong(message.getString(MESSAGE_SEQUENCE));
+			}
+			catch (NumberFormatException e) {
+				// null is a NumberFormatException as well
+				logger.error("message:RequestSyncAck invalid Sequence " + message.getString(MESSAGE_SEQUENCE));
+				return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_SEQUENCE));
+			}
+			// never beyond what was actually sent
+			newWaterMark = Math.min(newWaterMark, sequence);
 		}
-		long newWaterMark = Long.parseLong(message.getString(MESSAGE_TIMESTAMP));
-		if (newWaterMark > deviceMap.get(header.deviceId).waterMark) {
-			deviceMap.get(header.deviceId).waterMark = newWaterMark;
+		if (device.resyncHorizon > 0 && newWaterMark > device.resyncSequence) {
+			device.resyncSequence = newWaterMark;
 		}
-		
-		DataItem waterMark = new DataItem();
-		waterMark.Key = "WaterMark@" + String.valueOf(header.deviceId);
-		waterMark.Value = String.valueOf(newWaterMark);
-		storage.SaveMetaData(waterMark);
+		RaiseWaterMark(header.deviceId, device, newWaterMark);
 		
 		JSONObject response = new JSONObject();
 		JSONObject messageHeader = MakeupMessageHeader(MESSAGE_TYPE_RESPONSE_SYNC_ACK,
@@ -208,33 +675,106 @@ public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 		messageObj.put(MESSAGE_RETURN, true);
 		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE, messageObj);
 		
-		return new NBHttpResponse(HttpStatus.OK, response.toJSONString());
+		return new NBHttpResponse(HttpStatus.OK, response);
+	}
+	
+	private NBHttpResponse MessageGetDataProc(JSONObject message) {
+		if (message == null || message.getString(MESSAGE_KEY) == null) {
+			logger.error("message:GetData message do not contain KEY");
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_KEY));
+		}
+		String key = message.getString(MESSAGE_KEY);
+		DataItem dataItem = storage.GetData(key);
+		
+		JSONObject response = new JSONObject();
+		JSONObject messageHeader = MakeupMessageHeader(MESSAGE_TYPE_GET_DATA_RESPONSE,
+				                                       NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID_DEFAULT,
+				                                       NaturalCommunicater.LOCAL_DEVICE_ID);
+		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER, messageHeader);
+		
+		JSONObject messageObj = new JSONObject();
+		messageObj.put(MESSAGE_KEY, key);
+		messageObj.put(MESSAGE_FOUND, dataItem != null);
+		if (dataItem != null) {
+			PutValue(messageObj, dataItem.Value, dataItem.Codec);
+			messageObj.put(MESSAGE_TIMESTAMP, String.valueOf(dataItem.TimeStamp));
+		}
+		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE, messageObj);
+		return new NBHttpResponse(HttpStatus.OK, response);
+	}
+	
+	private NBHttpResponse MessageSaveDataProc(JSONObject message) {
+		if (message == null || message.getString(MESSAGE_KEY) == null) {
+			logger.error("message:SaveData message do not contain KEY");
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_KEY));
+		}
+		DataItem dataItem = new DataItem();
+		dataItem.Key = message.getString(MESSAGE_KEY);
+		try {
+			dataItem.Value = GetValue(message);
+		}
+		catch (IllegalArgumentException e) {
+			logger.error("message:SaveData invalid base64 value of key " + dataItem.Key);
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_DATAITEM));
+		}
+		boolean isSaved = storage.SaveData(dataItem);
+		if (isSaved) {
+			changePusher.Publish(NaturalCommunicater.LOCAL_DEVICE_ID, Collections.singletonList(dataItem), dataItem.Sequence, dataItem.Sequence);
+		}
+		return MakeupReturnResponse(MESSAGE_TYPE_SAVE_DATA_ACK, dataItem.Key, isSaved);
+	}
+	
+	private NBHttpResponse MessageRemoveDataProc(JSONObject message) {
+		if (message == null || message.getString(MESSAGE_KEY) == null) {
+			logger.error("message:RemoveData message do not contain KEY");
+			return new NBHttpResponse(HttpStatus.BAD_REQUEST, NBUtils.generateErrorBody(RETURN_CODE_INVALID_KEY));
+		}
+		String key = message.getString(MESSAGE_KEY);
+		DataItem tombstone = NaturalStorage.Tombstone(key);
+		boolean isRemoved = storage.SaveData(tombstone);
+		if (isRemoved) {
+			changePusher.Publish(NaturalCommunicater.LOCAL_DEVICE_ID, Collections.singletonList(tombstone), tombstone.Sequence, tombstone.Sequence);
+		}
+		return MakeupReturnResponse(MESSAGE_TYPE_REMOVE_DATA_ACK, key, isRemoved);
+	}
+	
+	private NBHttpResponse MakeupReturnResponse(String messageType, String key, boolean isSuccess) {
+		JSONObject response = new JSONObject();
+		JSONObject messageHeader = MakeupMessageHeader(messageType,
+				                                       NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID_DEFAULT,
+				                                       NaturalCommunicater.LOCAL_DEVICE_ID);
+		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER, messageHeader);
+		
+		JSONObject messageObj = new JSONObject();
+		messageObj.put(MESSAGE_KEY, key);
+		messageObj.put(MESSAGE_RETURN, isSuccess);
+		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE, messageObj);
+		return new NBHttpResponse(HttpStatus.OK, response);
 	}
 	
-	private void UpdateDeviceMap(int deviceId, boolean isAdd) {
+	private void UpdateDeviceMap(int deviceId, boolean isAdd, long generation) {
 		if(isAdd){
 			Date date = new Date();
 			if (deviceMap.containsKey(deviceId)) {
-				deviceMap.get(deviceId).lastRequestTimeStamp = date.getTime();
+				DeviceInfo device = deviceMap.get(deviceId);
+				device.lastRequestTimeStamp = date.getTime();
+				device.sessionGeneration = Math.max(device.sessionGeneration, generation);
+				// reconnected within the grace period, pushes in flight on the old channel may be lost
+				synchronized (device) {
+					device.isSubscribed = false;
+					device.pushSequence = device.waterMark;
+				}
 				logger.debug("UpdateDevice DeviceId:" + deviceId +
 							" WaterMark:" + deviceMap.get(deviceId).waterMark +
 							" onlineTimeStamp:" + deviceMap.get(deviceId).onlineTimeStamp +
 							" lastRequestTimeStamp:" + deviceMap.get(deviceId).lastRequestTimeStamp);
 			} else {
-				DataItem oldWaterMark = storage.GetMetaData("WaterMark@" + String.valueOf(deviceId));
 				DeviceInfo newDevice = new DeviceInfo();
-				if (oldWaterMark == null) {
-					newDevice.waterMark = 0;
-					DataItem waterMark = new DataItem();
-					waterMark.Key = "WaterMark@" + String.valueOf(deviceId);
-					waterMark.Value = "0";
-					storage.SaveMetaData(waterMark);
-				}
-				else {
-					newDevice.waterMark = Long.parseLong(oldWaterMark.Value);
-				}
+				newDevice.waterMark = LoadWaterMark(deviceId);
+				newDevice.pushSequence = newDevice.waterMark;
 				newDevice.onlineTimeStamp = date.getTime();
 				newDevice.lastRequestTimeStamp = newDevice.onlineTimeStamp;
+				newDevice.sessionGeneration = generation;
 				deviceMap.put(deviceId, newDevice);
 				logger.debug("UpdateDevice new device online! DeviceId:" + deviceId +
 						" WaterMark:" + deviceMap.get(deviceId).waterMark +
@@ -243,15 +783,95 @@ public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 			}
 		}
 		else{
-			DataItem waterMark = new DataItem();
-			waterMark.Key = "WaterMark@" + String.valueOf(deviceId);
-			waterMark.Value = String.valueOf(deviceMap.get(deviceId).waterMark);
-			storage.SaveMetaData(waterMark);
-			deviceMap.remove(deviceId);
+			DeviceInfo device = deviceMap.get(deviceId);
+			// the device is already back with a newer connection
+			if (device == null || device.sessionGeneration > generation) {
+				logger.debug("UpdateDevice ignore stale offline of device " + String.valueOf(deviceId) + " generation:" + generation);
+				return;
+			}
+			waterMarkStore.Flush(deviceId);
+			deviceMap.remove(deviceId, device);
+			notifyScheduler.Remove(deviceId);
 			logger.debug("UpdateDevice device " + String.valueOf(deviceId) + " offline!");
 		}
 	}
 	
+	private void RaiseWaterMark(int deviceId, DeviceInfo device, long newWaterMark) {
+		synchronized (device) {
+			if (newWaterMark > device.waterMark) {
+				device.waterMark = newWaterMark;
+				waterMarkStore.Update(deviceId, newWaterMark);
+			}
+		}
+	}
+	
+	private long LoadWaterMark(int deviceId) {
+		Long waterMark = waterMarkStore.Get(deviceId);
+		if (waterMark != null) {
+			return waterMark;
+		}
+		DataItem oldWaterMark = storage.GetMetaData(WATERMARK_KEY_PREFIX + String.valueOf(deviceId));
+		if (oldWaterMark == null) {
+			return 0;
+		}
+		long legacyWaterMark = Long.parseLong(oldWaterMark.GetStringValue());
+		waterMarkStore.Update(deviceId, legacyWaterMark);
+		return legacyWaterMark;
+	}
+	
+	/*
+	 * DataItemSize and DataItem of ResponseSync and Push
+	 */
+	static void PutDataItems(JSONObject messageObj, List<DataItem> dataItemList) {
+		messageObj.put(MESSAGE_DATAITEM_SIZE, dataItemList.size());
+		JSONArray dataItemListArr = new JSONArray();
+		for (int i=0; i<dataItemList.size(); i++) {
+			JSONObject dataItemObj = new JSONObject();
+			PutDataItem(dataItemObj, dataItemList.get(i));
+			dataItemListArr.add(dataItemObj);
+		}
+		messageObj.put(MESSAGE_DATAITEM, dataItemListArr);
+	}
+	
+	static void PutDataItem(Map<String, Object> dataItemObj, DataItem dataItem) {
+		dataItemObj.put(MESSAGE_KEY, dataItem.Key);
+		PutValue(dataItemObj, dataItem.Value, dataItem.Codec);
+		dataItemObj.put(MESSAGE_TIMESTAMP, String.valueOf(dataItem.TimeStamp));
+		dataItemObj.put(MESSAGE_DELETE_BIT, dataItem.DeleteBit);
+	}
+	
+	/*
+	 * values that are valid UTF-8 go out as plain strings like before, any other
+	 * bytes as base64 with ValueEncoding set. Compressed values also carry ValueCodec.
+	 */
+	private static void PutValue(Map<String, Object> obj, byte[] value, byte codec) {
+		if (value == null) {
+			obj.put(MESSAGE_VALUE, null);
+			return;
+		}
+		if (codec != ValueCodec.CODEC_NONE) {
+			obj.put(MESSAGE_VALUE, Base64.getEncoder().encodeToString(value));
+			obj.put(MESSAGE_VALUE_ENCODING, VALUE_ENCODING_BASE64);
+			obj.put(MESSAGE_VALUE_CODEC, ValueCodec.Name(codec));
+			return;
+		}
+		String text = NBUtils.DecodeUTF8OrNull(value);
+		if (text != null) {
+			obj.put(MESSAGE_VALUE, text);
+		}
+		else {
+			obj.put(MESSAGE_VALUE, Base64.getEncoder().encodeToString(value));
+			obj.put(MESSAGE_VALUE_ENCODING, VALUE_ENCODING_BASE64);
+		}
+	}
+	
+	/*
+	 * throws IllegalArgumentException for invalid base64
+	 */
+	private static byte[] GetValue(JSONObject obj) {
+		return SyncMessage.DecodeValue(obj.getString(MESSAGE_VALUE), obj.getString(MESSAGE_VALUE_ENCODING));
+	}
+	
 	private JSONObject MakeupMessageHeader(String messageType, String requestId, int deviceId) {
 		JSONObject messageHeader = new JSONObject();
 		messageHeader.put(NaturalCommunicater.JSON_MESSAGE_HEADER_MESSAGE_TYPE, messageType);
@@ -261,41 +881,96 @@ public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 		return messageHeader;
 	}
 
-	private void NotifyDeviceDataChange(int deviceId){
-		for (int id : deviceMap.keySet()){
-			try{
-				if (id != deviceId){
-					byte[] dID = String.valueOf(id).getBytes("UTF-8");
-					byte[] message = new byte[1 + 1 + dID.length];
-					message[0] = (byte)TCPChannel.TCP_MESSAGE_TYPE_DATA_CHANGE;
-					message[1] = (byte)dID.length;
-					System.arraycopy(dID, 0, message, 2, dID.length);
-					logger.info("notify device " + id);
-					communicater.SendTcpMessage(id, message);
-				}
-			}
-			catch (UnsupportedEncodingException e){
-				logger.error("NotifyDeviceDataChange device id:" + id + " is invalid!");
-			}
+	/*
+	 * DATA frames from a device carry the same JSON envelope as the HTTP messages
+	 */
+	@Override
+	public void onReceiveTcpMessage(int deviceId, byte[] message, int length) {
+		JSONObject messageContent;
+		boolean isBinary = BinaryMessageCodec.IsBinary(message, 0, length);
+		try {
+			// parsed straight from the pooled array
+			messageContent = isBinary ? BinaryMessageCodec.Decode(message, 0, length)
+					                  : JSON.parseObject(message, 0, length, StandardCharsets.UTF_8, JSONObject.class);
+		}
+		catch (IllegalArgumentException | JSONException e) {
+			logger.error("device " + deviceId + " send invalid tcp message. Cause:" + e.getMessage());
+			return;
+		}
+		if (messageContent == null || messageContent.getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER) == null) {
+			logger.error("device " + deviceId + " send tcp message without MessageHeader");
+			return;
+		}
+		String messageType = messageContent.getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER)
+				                           .getString(NaturalCommunicater.JSON_MESSAGE_HEADER_MESSAGE_TYPE);
+		JSONObject messageObj = messageContent.getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE);
+		DeviceInfo device = deviceMap.get(deviceId);
+		if (device == null) {
+			logger.error("tcp message:" + messageType + " unknow device id id=" + deviceId);
+			return;
+		}
+		if (MESSAGE_TYPE_SUBSCRIBE.equals(messageType)) {
+			MessageSubscribeProc(deviceId, device, messageObj, isBinary);
+		}
+		else if (MESSAGE_TYPE_PUSH_ACK.equals(messageType)) {
+			MessagePushAckProc(deviceId, device, messageObj);
+		}
+		else {
+			logger.error("device " + deviceId + " send unknow tcp message type " + messageType);
 		}
 	}
-
-	@Override
-	public void onReceiveTcpMessage(int deviceId, byte[] message) {
-		// TODO Auto-generated method stub
-		logger.debug("device " + String.valueOf(deviceId) + " :" + NBUtils.ToUTF8String(message));
+	
+	private void MessageSubscribeProc(int deviceId, DeviceInfo device, JSONObject message, boolean isBinary) {
+		long pushSequence;
+		synchronized (device) {
+			// pushes go out in the encoding the device subscribed with
+			device.isBinary = isBinary;
+			device.isSubscribed = changePusher.isEnabled();
+			device.acceptDeflate = message != null && message.getJSONArray(MESSAGE_ACCEPT_CODEC) != null &&
+					               message.getJSONArray(MESSAGE_ACCEPT_CODEC).contains(ValueCodec.NAME_DEFLATE);
+			pushSequence = device.pushSequence;
+		}
+		JSONObject messageObj = new JSONObject();
+		messageObj.put(MESSAGE_RETURN, changePusher.isEnabled());
+		messageObj.put(MESSAGE_SEQUENCE, String.valueOf(pushSequence));
+		communicater.SendTcpMessage(deviceId, ChangePusher.MakeupFrame(MESSAGE_TYPE_SUBSCRIBE_ACK, messageObj, isBinary));
+		// pushes only start once the device has pulled what it missed
+		if (pushSequence < changePusher.getLastSequence()) {
+			notifyScheduler.Request(deviceId);
+		}
+	}
+	
+	/*
+	 * acks every change up to Sequence
+	 */
+	private void MessagePushAckProc(int deviceId, DeviceInfo device, JSONObject message) {
+		if (message == null || message.getString(MESSAGE_SEQUENCE) == null) {
+			logger.error("tcp message:PushAck do not contain Sequence");
+			return;
+		}
+		long sequence;
+		try {
+			sequence = Long.parseLong(message.getString(MESSAGE_SEQUENCE));
+		}
+		catch (NumberFormatException e) {
+			logger.error("tcp message:PushAck invalid Sequence " + message.getString(MESSAGE_SEQUENCE));
+			return;
+		}
+		synchronized (device) {
+			// never beyond what was actually sent
+			RaiseWaterMark(deviceId, device, Math.min(sequence, device.pushSequence));
+		}
 	}
 
 	@Override
-	public void onDeviceOnlineChange(int deviceId, int status) {
-		// TODO Auto-generated method stub
+	public void onDeviceOnlineChange(int deviceId, int status, long generation) {
 		if(status == ITcpServerHandlerProc.STATUS_ONLINE){
-			logger.info("[Device:" + String.valueOf(deviceId) + "] online!");
-			UpdateDeviceMap(deviceId, true);
+			logger.info("[Device:" + String.valueOf(deviceId) + "] online! generation:" + generation);
+			UpdateDeviceMap(deviceId, true, generation);
 		}
 		else{
-			logger.info("[Device:" + String.valueOf(deviceId) + "] offline!");
-			UpdateDeviceMap(deviceId, false);
+			logger.info("[Device:" + String.valueOf(deviceId) + "] offline! generation:" + generation);
+			UpdateDeviceMap(deviceId, false, generation);
 		}
 	}
 	
@@ -322,7 +997,7 @@ public class NaturalP2PSyncModule implements ITcpServerHandlerProc{
 		JSONObject messageObj = new JSONObject();
 		messageObj.put(MESSAGE_TIMESTAMP, String.valueOf(0));
 		response.put(NaturalCommunicater.JSON_OBJECT_MESSAGE, messageObj);
-		return new NBHttpResponse(HttpStatus.OK, response.toJSONString());
+		return new NBHttpResponse(HttpStatus.OK, response);
 	}
 	
 }
@@ -0,0 +1,156 @@
+package com.example.naturalbase.naturalp2psyncmodule;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.naturalbase.naturalcommunicater.FrameCodec;
+import com.example.naturalbase.naturalcommunicater.NaturalCommunicater;
+import com.example.naturalbase.naturalcommunicater.TCPChannel;
+
+/*
+ * Coalesces DataChange notifications. A device gets at most one per window:
+ * the first change of a quiet device is notified right away, later ones in
+ * the same window are folded into one notification at the end of it.
+ * While a device is still paging through a pull (last page had HasMore) the
+ * notification waits, the next page will contain the change anyway.
+ * A notification dropped by a busy channel is tried again a window later.
+ * Only online devices have a state, Remove() drops it when the device goes offline.
+ */
+public class NotifyScheduler {
+
+	// a pull without a request for this long is considered abandoned
+	private static final long PULL_TIMEOUT_MS = 30 * 1000;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private NaturalCommunicater communicater;
+	private Map<Integer, DeviceInfo> deviceMap;
+	private long windowMs;
+	private Map<Integer, NotifyState> states = new ConcurrentHashMap<Integer, NotifyState>();
+	private ScheduledExecutorService executor;
+
+	public NotifyScheduler(NaturalCommunicater inCommunicater, Map<Integer, DeviceInfo> inDeviceMap, long inWindowMs) {
+		communicater = inCommunicater;
+		deviceMap = inDeviceMap;
+		windowMs = inWindowMs;
+		if (windowMs > 0) {
+			executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "NotifyScheduler");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/*
+	 * the device has changes to pull
+	 */
+	public void Request(int deviceId) {
+		if (!deviceMap.containsKey(deviceId)) {
+			return;
+		}
+		if (executor == null) {
+			// nothing to coalesce, nothing to keep
+			Send(new NotifyState(deviceId));
+			return;
+		}
+		NotifyState state = states.computeIfAbsent(deviceId, id -> new NotifyState(id));
+		synchronized (state) {
+			if (state.isScheduled) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long delay = state.lastSentTime + windowMs - now;
+			if (delay <= 0 && !IsPulling(deviceId, now)) {
+				state.lastSentTime = now;
+				Send(state);
+				return;
+			}
+			Schedule(state, Math.max(delay, 1));
+		}
+	}
+
+	/*
+	 * the device went offline, a scheduled notification for it is dropped
+	 */
+	public void Remove(int deviceId) {
+		states.remove(deviceId);
+	}
+
+	int getStateCount() {
+		return states.size();
+	}
+
+	public void Close() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private void Fire(NotifyState state) {
+		synchronized (state) {
+			state.isScheduled = false;
+			if (!deviceMap.containsKey(state.deviceId) || states.get(state.deviceId) != state) {
+				states.remove(state.deviceId, state);
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (IsPulling(state.deviceId, now)) {
+				Schedule(state, windowMs);
+				return;
+			}
+			state.lastSentTime = now;
+		}
+		Send(state);
+	}
+
+	private void Schedule(NotifyState state, long delayMs) {
+		try {
+			executor.schedule(() -> Fire(state), delayMs, TimeUnit.MILLISECONDS);
+			state.isScheduled = true;
+		}
+		catch (RejectedExecutionException e) {
+			// closed, the state would never fire
+			states.remove(state.deviceId, state);
+		}
+	}
+
+	private boolean IsPulling(int deviceId, long now) {
+		DeviceInfo device = deviceMap.get(deviceId);
+		return device != null && device.isPulling && now - device.lastRequestSyncTime < PULL_TIMEOUT_MS;
+	}
+
+	private void Send(NotifyState state) {
+		logger.info("notify device " + state.deviceId);
+		if (communicater.SendTcpMessage(state.deviceId, state.frame, true) || executor == null) {
+			return;
+		}
+		synchronized (state) {
+			if (!state.isScheduled) {
+				Schedule(state, windowMs);
+			}
+		}
+	}
+
+	private static class NotifyState {
+		private int deviceId;
+		// legacy DataChange frame, the device answers with RequestSync. Never modified, sent as is every time
+		private byte[] frame;
+		private long lastSentTime;
+		private boolean isScheduled;
+
+		NotifyState(int inDeviceId) {
+			deviceId = inDeviceId;
+			frame = FrameCodec.EncodeLegacy(TCPChannel.TCP_MESSAGE_TYPE_DATA_CHANGE,
+					                        String.valueOf(deviceId).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
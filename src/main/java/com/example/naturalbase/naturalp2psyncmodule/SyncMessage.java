@@ -0,0 +1,152 @@
+package com.example.naturalbase.naturalp2psyncmodule;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.JSONReader;
+import com.alibaba.fastjson.util.TypeUtils;
+import com.example.naturalbase.naturalstorage.DataItem;
+
+/*
+ * Message of a Sync:
+ * {"DataItemSize":n, "DataItem":[{"Key", "Value", "ValueEncoding", "TimeStamp", "DeleteBit"}, ...]}
+ * Decode() reads it straight from the request stream item by item, without
+ * the body as byte[], String and JSONObject tree in between.
+ * Malformed items throw IllegalArgumentException, malformed JSON JSONException.
+ */
+public class SyncMessage {
+
+	// -1 if the message has no DataItemSize
+	public int dataItemSize = -1;
+	// null if the message has no DataItem array
+	public List<DataItem> dataItemList;
+
+	/*
+	 * reader is positioned at the value of "Message"
+	 */
+	public static SyncMessage Decode(JSONReader reader) {
+		SyncMessage message = new SyncMessage();
+		reader.startObject();
+		while (reader.hasNext()) {
+			String key = reader.readString();
+			if (NaturalP2PSyncModule.MESSAGE_DATAITEM_SIZE.equals(key)) {
+				message.dataItemSize = TypeUtils.castToInt(reader.readObject());
+			}
+			else if (NaturalP2PSyncModule.MESSAGE_DATAITEM.equals(key)) {
+				message.dataItemList = new ArrayList<DataItem>();
+				reader.startArray();
+				while (reader.hasNext()) {
+					message.dataItemList.add(DecodeDataItem(reader));
+				}
+				reader.endArray();
+			}
+			else {
+				reader.readObject();
+			}
+		}
+		reader.endObject();
+		return message;
+	}
+
+	/*
+	 * the same from a parsed message (TCP, or a body with Message before MessageHeader)
+	 */
+	public static SyncMessage FromJSONObject(JSONObject obj) {
+		SyncMessage message = new SyncMessage();
+		if (obj.containsKey(NaturalP2PSyncModule.MESSAGE_DATAITEM_SIZE)) {
+			message.dataItemSize = obj.getIntValue(NaturalP2PSyncModule.MESSAGE_DATAITEM_SIZE);
+		}
+		JSONArray dataItemArray = obj.getJSONArray(NaturalP2PSyncModule.MESSAGE_DATAITEM);
+		if (dataItemArray != null) {
+			message.dataItemList = new ArrayList<DataItem>(dataItemArray.size());
+			for (int i = 0; i < dataItemArray.size(); i++) {
+				JSONObject itemObj = dataItemArray.getJSONObject(i);
+				if (itemObj == null) {
+					throw new IllegalArgumentException("DataItem " + i + " is not an object");
+				}
+				DataItem dataItem = new DataItem();
+				dataItem.Key = CheckKey(itemObj.getString(NaturalP2PSyncModule.MESSAGE_KEY));
+				dataItem.Value = DecodeValue(itemObj.getString(NaturalP2PSyncModule.MESSAGE_VALUE),
+						                     itemObj.getString(NaturalP2PSyncModule.MESSAGE_VALUE_ENCODING));
+				dataItem.TimeStamp = ParseTimeStamp(itemObj.get(NaturalP2PSyncModule.MESSAGE_TIMESTAMP));
+				dataItem.DeleteBit = itemObj.getBooleanValue(NaturalP2PSyncModule.MESSAGE_DELETE_BIT);
+				message.dataItemList.add(dataItem);
+			}
+		}
+		return message;
+	}
+
+	/*
+	 * base64 or UTF-8 text, see NaturalP2PSyncModule.PutDataItems
+	 */
+	static byte[] DecodeValue(String value, String encoding) {
+		if (value == null) {
+			return null;
+		}
+		if (NaturalP2PSyncModule.VALUE_ENCODING_BASE64.equals(encoding)) {
+			return Base64.getDecoder().decode(value);
+		}
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static DataItem DecodeDataItem(JSONReader reader) {
+		DataItem dataItem = new DataItem();
+		String value = null;
+		String encoding = null;
+		Object timeStamp = null;
+		reader.startObject();
+		while (reader.hasNext()) {
+			String key = reader.readString();
+			if (NaturalP2PSyncModule.MESSAGE_KEY.equals(key)) {
+				dataItem.Key = reader.readString();
+			}
+			else if (NaturalP2PSyncModule.MESSAGE_VALUE.equals(key)) {
+				value = reader.readString();
+			}
+			else if (NaturalP2PSyncModule.MESSAGE_VALUE_ENCODING.equals(key)) {
+				encoding = reader.readString();
+			}
+			else if (NaturalP2PSyncModule.MESSAGE_TIMESTAMP.equals(key)) {
+				timeStamp = reader.readObject();
+			}
+			else if (NaturalP2PSyncModule.MESSAGE_DELETE_BIT.equals(key)) {
+				Boolean deleteBit = TypeUtils.castToBoolean(reader.readObject());
+				dataItem.DeleteBit = deleteBit != null && deleteBit;
+			}
+			else {
+				reader.readObject();
+			}
+		}
+		reader.endObject();
+		CheckKey(dataItem.Key);
+		// the encoding may come after the value
+		dataItem.Value = DecodeValue(value, encoding);
+		dataItem.TimeStamp = ParseTimeStamp(timeStamp);
+		return dataItem;
+	}
+
+	private static String CheckKey(String key) {
+		if (key == null) {
+			throw new IllegalArgumentException("DataItem without Key");
+		}
+		return key;
+	}
+
+	/*
+	 * devices send the time stamp as a string, a number is taken as well
+	 */
+	private static long ParseTimeStamp(Object timeStamp) {
+		if (timeStamp == null) {
+			throw new IllegalArgumentException("DataItem without TimeStamp");
+		}
+		Long value = TypeUtils.castToLong(timeStamp);
+		if (value == null) {
+			throw new IllegalArgumentException("invalid TimeStamp " + timeStamp);
+		}
+		return value;
+	}
+}
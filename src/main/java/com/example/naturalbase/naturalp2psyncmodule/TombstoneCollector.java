@@ -0,0 +1,126 @@
+package com.example.naturalbase.naturalp2psyncmodule;
+
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.naturalbase.naturalstorage.DataItem;
+import com.example.naturalbase.naturalstorage.NaturalStorage;
+
+/*
+ * Background purge of deleted items. A tombstone can go once every active
+ * device has acked past its sequence. Devices that neither are online nor
+ * acked within the dormant grace period do not hold the purge back; if one of
+ * them comes back below the purge horizon it is told to resync from scratch.
+ * The purge runs in small batches with a pause in between, so a foreground
+ * write never waits for more than one batch.
+ */
+public class TombstoneCollector {
+
+	public static final String HORIZON_KEY = "TombstoneGcSequence";
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private NaturalStorage storage;
+	private WaterMarkStore waterMarkStore;
+	private Set<Integer> onlineDeviceIds;
+	private int batchSize;
+	private long batchPauseMs;
+	private long dormantGraceMs;
+
+	private volatile long horizon = 0;
+	private ScheduledExecutorService executor;
+
+	public TombstoneCollector(NaturalStorage inStorage, WaterMarkStore inWaterMarkStore, Set<Integer> inOnlineDeviceIds,
+			                  int inBatchSize, long inBatchPauseMs, long inDormantGraceMs) {
+		storage = inStorage;
+		waterMarkStore = inWaterMarkStore;
+		onlineDeviceIds = inOnlineDeviceIds;
+		batchSize = inBatchSize;
+		batchPauseMs = inBatchPauseMs;
+		dormantGraceMs = inDormantGraceMs;
+		DataItem stored = storage.GetMetaData(HORIZON_KEY);
+		if (stored != null) {
+			horizon = Long.parseLong(stored.GetStringValue());
+		}
+	}
+
+	public void Start(long intervalMs) {
+		if (intervalMs <= 0) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "TombstoneCollector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::RunSafely, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public void Close() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/*
+	 * tombstones up to this sequence may be gone, a device syncing from below it
+	 * has to start over
+	 */
+	public long getHorizon() {
+		return horizon;
+	}
+
+	/*
+	 * returns how many tombstones were purged
+	 */
+	public int Run() throws InterruptedException {
+		long minWaterMark = waterMarkStore.MinWaterMark(System.currentTimeMillis() - dormantGraceMs, onlineDeviceIds);
+		if (minWaterMark <= 0) {
+			return 0;
+		}
+		if (minWaterMark > horizon) {
+			// published before purging, a crash in between only causes extra resyncs
+			DataItem horizonItem = new DataItem();
+			horizonItem.Key = HORIZON_KEY;
+			horizonItem.SetStringValue(String.valueOf(minWaterMark));
+			if (!storage.SaveMetaData(horizonItem)) {
+				return 0;
+			}
+			horizon = minWaterMark;
+		}
+
+		int total = 0;
+		while (true) {
+			int purged = storage.PurgeTombstones(minWaterMark, batchSize);
+			if (purged < 0) {
+				break;
+			}
+			total += purged;
+			if (purged < batchSize) {
+				break;
+			}
+			Thread.sleep(batchPauseMs);
+		}
+		if (total > 0) {
+			logger.info("TombstoneCollector purged " + total + " tombstones up to sequence " + minWaterMark);
+		}
+		return total;
+	}
+
+	private void RunSafely() {
+		try {
+			Run();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (RuntimeException e) {
+			logger.error("TombstoneCollector run catch exception. Cause:" + e.getMessage());
+		}
+	}
+}
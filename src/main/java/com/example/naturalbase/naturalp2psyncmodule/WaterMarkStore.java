@@ -0,0 +1,140 @@
+package com.example.naturalbase.naturalp2psyncmodule;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.naturalbase.naturalstorage.NaturalStorage;
+
+/*
+ * Device watermarks live in memory, acks only mark them dirty. Dirty
+ * watermarks are written to storage in one batch every flush interval, when a
+ * device goes offline and on Close().
+ * After a crash a device restarts from its last flushed watermark, so it is
+ * sent the items of at most one interval again. They are already on the
+ * device and the newer timestamp wins there, so the resend is harmless.
+ */
+public class WaterMarkStore {
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private NaturalStorage storage;
+	private Map<Integer, Long> waterMarks = new ConcurrentHashMap<Integer, Long>();
+	private Map<Integer, Long> dirtyWaterMarks = new ConcurrentHashMap<Integer, Long>();
+	// last ack per device in ms, devices loaded from storage count from the load time
+	private Map<Integer, Long> lastUpdateTimes = new ConcurrentHashMap<Integer, Long>();
+	private final Object flushLock = new Object();
+	private ScheduledExecutorService flushExecutor;
+
+	public WaterMarkStore(NaturalStorage inStorage, long flushIntervalMs) {
+		storage = inStorage;
+		waterMarks.putAll(storage.LoadWaterMarks());
+		long now = System.currentTimeMillis();
+		for (Integer deviceId : waterMarks.keySet()) {
+			lastUpdateTimes.put(deviceId, now);
+		}
+		logger.debug("WaterMarkStore load " + waterMarks.size() + " watermarks.");
+		if (flushIntervalMs > 0) {
+			flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "WaterMarkFlusher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			flushExecutor.scheduleWithFixedDelay(this::Flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * null if the device never acked anything
+	 */
+	public Long Get(int deviceId) {
+		return waterMarks.get(deviceId);
+	}
+
+	/*
+	 * a watermark never moves backwards
+	 */
+	public void Update(int deviceId, long waterMark) {
+		waterMarks.merge(deviceId, waterMark, Math::max);
+		dirtyWaterMarks.merge(deviceId, waterMark, Math::max);
+		lastUpdateTimes.put(deviceId, System.currentTimeMillis());
+	}
+
+	/*
+	 * lowest watermark of the devices that are online or acked since activeSince,
+	 * -1 if there is no such device. An online device that never acked counts as 0
+	 */
+	public long MinWaterMark(long activeSince, Set<Integer> onlineDeviceIds) {
+		for (Integer deviceId : onlineDeviceIds) {
+			if (!waterMarks.containsKey(deviceId)) {
+				return 0;
+			}
+		}
+		long min = -1;
+		for (Map.Entry<Integer, Long> e : waterMarks.entrySet()) {
+			Long lastUpdateTime = lastUpdateTimes.get(e.getKey());
+			boolean isActive = onlineDeviceIds.contains(e.getKey()) || (lastUpdateTime != null && lastUpdateTime >= activeSince);
+			if (isActive && (min < 0 || e.getValue() < min)) {
+				min = e.getValue();
+			}
+		}
+		return min;
+	}
+
+	public void Flush() {
+		synchronized (flushLock) {
+			if (dirtyWaterMarks.isEmpty()) {
+				return;
+			}
+			Save(new HashMap<Integer, Long>(dirtyWaterMarks));
+		}
+	}
+
+	public void Flush(int deviceId) {
+		synchronized (flushLock) {
+			Long waterMark = dirtyWaterMarks.get(deviceId);
+			if (waterMark == null) {
+				return;
+			}
+			Map<Integer, Long> snapshot = new HashMap<Integer, Long>();
+			snapshot.put(deviceId, waterMark);
+			Save(snapshot);
+		}
+	}
+
+	public int getDirtyCount() {
+		return dirtyWaterMarks.size();
+	}
+
+	public void Close() {
+		if (flushExecutor != null) {
+			flushExecutor.shutdown();
+		}
+		Flush();
+	}
+
+	private void Save(Map<Integer, Long> snapshot) {
+		try {
+			if (!storage.SaveWaterMarks(snapshot)) {
+				logger.error("WaterMarkStore flush " + snapshot.size() + " watermarks failed, retry on next flush.");
+				return;
+			}
+		}
+		catch (RuntimeException e) {
+			// keep the scheduled flush alive
+			logger.error("WaterMarkStore flush catch exception. Cause:" + e.getMessage());
+			return;
+		}
+		for (Map.Entry<Integer, Long> e : snapshot.entrySet()) {
+			// stays dirty if it was raised while the flush ran
+			dirtyWaterMarks.remove(e.getKey(), e.getValue());
+		}
+	}
+}
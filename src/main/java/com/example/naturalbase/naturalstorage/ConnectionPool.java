@@ -0,0 +1,260 @@
+package com.example.naturalbase.naturalstorage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Bounded JDBC connection pool. Every connection caches its prepared
+ * statements, and is only validated after it has been idle for a while
+ * instead of before every operation.
+ */
+public class ConnectionPool {
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private String dbUrl;
+	private String user;
+	private String pass;
+	private int maxSize;
+	private long acquireTimeoutMs;
+	private long validationIdleMs;
+	private int statementCacheSize;
+
+	private Semaphore permits;
+	private BlockingQueue<PooledConnection> idleConnections;
+	private volatile boolean isClosed = false;
+
+	private AtomicLong acquireCount = new AtomicLong(0);
+	private AtomicLong acquireWaitNanos = new AtomicLong(0);
+	private AtomicLong acquireMaxWaitNanos = new AtomicLong(0);
+	private AtomicLong acquireTimeoutCount = new AtomicLong(0);
+	private AtomicLong createCount = new AtomicLong(0);
+	private AtomicLong validationFailCount = new AtomicLong(0);
+
+	public class PooledConnection implements AutoCloseable {
+		private Connection connection;
+		private Map<String, PreparedStatement> statementCache;
+		private long lastUsedTime;
+		private boolean isBroken = false;
+
+		PooledConnection(Connection inConnection) {
+			connection = inConnection;
+			lastUsedTime = System.currentTimeMillis();
+			statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+		}
+
+		public Connection getConnection() {
+			return connection;
+		}
+
+		/*
+		 * returns the cached statement for sql, parameters of a reused statement are cleared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement pStmt = statementCache.get(sql);
+			if (pStmt != null) {
+				pStmt.clearParameters();
+				return pStmt;
+			}
+			pStmt = connection.prepareStatement(sql);
+			statementCache.put(sql, pStmt);
+			if (statementCache.size() > statementCacheSize) {
+				Iterator<Map.Entry<String, PreparedStatement>> eldest = statementCache.entrySet().iterator();
+				CloseQuietly(eldest.next().getValue());
+				eldest.remove();
+			}
+			return pStmt;
+		}
+
+		/*
+		 * the connection is closed instead of going back to the pool
+		 */
+		public void markBroken() {
+			isBroken = true;
+		}
+
+		@Override
+		public void close() {
+			Release(this);
+		}
+
+		void destroy() {
+			for (PreparedStatement pStmt : statementCache.values()) {
+				CloseQuietly(pStmt);
+			}
+			statementCache.clear();
+			try {
+				connection.close();
+			}
+			catch (SQLException e) {
+				logger.error("ConnectionPool close connection catch exception. Cause:" + e.getMessage());
+			}
+		}
+	}
+
+	public ConnectionPool(String inDbUrl, String inUser, String inPass, int inMaxSize,
+			              long inAcquireTimeoutMs, long inValidationIdleMs, int inStatementCacheSize) {
+		dbUrl = inDbUrl;
+		user = inUser;
+		pass = inPass;
+		maxSize = inMaxSize;
+		acquireTimeoutMs = inAcquireTimeoutMs;
+		validationIdleMs = inValidationIdleMs;
+		statementCacheSize = inStatementCacheSize;
+		permits = new Semaphore(maxSize, true);
+		idleConnections = new ArrayBlockingQueue<PooledConnection>(maxSize);
+	}
+
+	/*
+	 * blocks up to acquireTimeoutMs for a free connection. The returned
+	 * connection goes back to the pool when it is closed.
+	 */
+	public PooledConnection Acquire() throws SQLException {
+		if (isClosed) {
+			throw new SQLException("connection pool is closed");
+		}
+		long startTime = System.nanoTime();
+		boolean acquired = false;
+		try {
+			acquired = permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		RecordWait(System.nanoTime() - startTime);
+		if (!acquired) {
+			acquireTimeoutCount.incrementAndGet();
+			throw new SQLException("acquire connection timeout after " + acquireTimeoutMs + "ms, pool size " + maxSize);
+		}
+
+		try {
+			PooledConnection pooled;
+			while ((pooled = idleConnections.poll()) != null) {
+				if (Validate(pooled)) {
+					return pooled;
+				}
+				validationFailCount.incrementAndGet();
+				pooled.destroy();
+			}
+			pooled = new PooledConnection(DriverManager.getConnection(dbUrl, user, pass));
+			createCount.incrementAndGet();
+			logger.debug("ConnectionPool create connection. total created:" + createCount.get());
+			return pooled;
+		}
+		catch (SQLException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private boolean Validate(PooledConnection pooled) {
+		if (System.currentTimeMillis() - pooled.lastUsedTime < validationIdleMs) {
+			return true;
+		}
+		try {
+			return pooled.connection.isValid(1);
+		}
+		catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void Release(PooledConnection pooled) {
+		try {
+			boolean reusable = !pooled.isBroken && !isClosed;
+			if (reusable) {
+				try {
+					if (!pooled.connection.getAutoCommit()) {
+						pooled.connection.rollback();
+						pooled.connection.setAutoCommit(true);
+					}
+				}
+				catch (SQLException e) {
+					reusable = false;
+				}
+			}
+			pooled.lastUsedTime = System.currentTimeMillis();
+			if (!reusable || !idleConnections.offer(pooled)) {
+				pooled.destroy();
+			}
+		}
+		finally {
+			permits.release();
+		}
+	}
+
+	private void RecordWait(long waitNanos) {
+		acquireCount.incrementAndGet();
+		acquireWaitNanos.addAndGet(waitNanos);
+		long max = acquireMaxWaitNanos.get();
+		while (waitNanos > max && !acquireMaxWaitNanos.compareAndSet(max, waitNanos)) {
+			max = acquireMaxWaitNanos.get();
+		}
+	}
+
+	public void Close() {
+		isClosed = true;
+		PooledConnection pooled;
+		while ((pooled = idleConnections.poll()) != null) {
+			pooled.destroy();
+		}
+	}
+
+	public long getAcquireCount() {
+		return acquireCount.get();
+	}
+
+	public long getAverageAcquireWaitMicros() {
+		long count = acquireCount.get();
+		return count == 0 ? 0 : acquireWaitNanos.get() / count / 1000;
+	}
+
+	public long getMaxAcquireWaitMicros() {
+		return acquireMaxWaitNanos.get() / 1000;
+	}
+
+	public long getAcquireTimeoutCount() {
+		return acquireTimeoutCount.get();
+	}
+
+	public int getActiveCount() {
+		return maxSize - permits.availablePermits();
+	}
+
+	public int getIdleCount() {
+		return idleConnections.size();
+	}
+
+	public String getStatistics() {
+		return "acquire:" + getAcquireCount() +
+			   " avgWaitUs:" + getAverageAcquireWaitMicros() +
+			   " maxWaitUs:" + getMaxAcquireWaitMicros() +
+			   " timeout:" + getAcquireTimeoutCount() +
+			   " active:" + getActiveCount() +
+			   " idle:" + getIdleCount() +
+			   " created:" + createCount.get() +
+			   " validationFail:" + validationFailCount.get();
+	}
+
+	private void CloseQuietly(PreparedStatement pStmt) {
+		try {
+			pStmt.close();
+		}
+		catch (SQLException e) {
+			logger.error("ConnectionPool close statement catch exception. Cause:" + e.getMessage());
+		}
+	}
+}
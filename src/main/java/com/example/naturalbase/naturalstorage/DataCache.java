@@ -0,0 +1,95 @@
+package com.example.naturalbase.naturalstorage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Size bounded LRU cache of data items in front of the storage engine.
+ * Writes invalidate their keys. A read that missed only fills the cache if no
+ * invalidation happened while it was reading, so a slow read can not put an
+ * older version back after a write.
+ */
+public class DataCache {
+
+	private int maxEntries;
+	private LinkedHashMap<String, DataItem> entries;
+	private long invalidateCount = 0;
+
+	private AtomicLong hitCount = new AtomicLong(0);
+	private AtomicLong missCount = new AtomicLong(0);
+	private AtomicLong evictionCount = new AtomicLong(0);
+
+	public DataCache(int inMaxEntries) {
+		maxEntries = inMaxEntries;
+		entries = new LinkedHashMap<String, DataItem>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DataItem> eldest) {
+				if (size() > maxEntries) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public synchronized DataItem Get(String key) {
+		DataItem dataItem = entries.get(key);
+		if (dataItem == null) {
+			missCount.incrementAndGet();
+		}
+		else {
+			hitCount.incrementAndGet();
+		}
+		return dataItem;
+	}
+
+	/*
+	 * take a stamp before reading the engine and hand it to PutIfUnchanged
+	 */
+	public synchronized long Stamp() {
+		return invalidateCount;
+	}
+
+	public synchronized void PutIfUnchanged(DataItem dataItem, long stamp) {
+		if (stamp == invalidateCount) {
+			entries.put(dataItem.Key, dataItem);
+		}
+	}
+
+	public synchronized void Invalidate(String key) {
+		invalidateCount++;
+		entries.remove(key);
+	}
+
+	public synchronized void Clear() {
+		invalidateCount++;
+		entries.clear();
+	}
+
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public String getStatistics() {
+		return "hit:" + getHitCount() +
+			   " miss:" + getMissCount() +
+			   " eviction:" + getEvictionCount() +
+			   " size:" + getSize();
+	}
+}
@@ -1,8 +1,23 @@
 package com.example.naturalbase.naturalstorage;
 
+import java.nio.charset.StandardCharsets;
+
 public class DataItem {
 	public String Key;
-	public String Value;
+	// raw bytes, shared between storage, cache and sync without copies, do not modify
+	public byte[] Value;
+	// ValueCodec of Value, CODEC_NONE for raw bytes
+	public byte Codec;
 	public long TimeStamp;
 	public boolean DeleteBit;
+	// change sequence assigned by the server when the item is stored
+	public long Sequence;
+
+	public String GetStringValue() {
+		return (Value == null) ? null : new String(Value, StandardCharsets.UTF_8);
+	}
+
+	public void SetStringValue(String value) {
+		Value = (value == null) ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
 }
@@ -0,0 +1,6 @@
+package com.example.naturalbase.naturalstorage;
+
+public interface IDataItemVisitor {
+	// return false to stop the scan
+	public boolean visit(DataItem dataItem);
+}
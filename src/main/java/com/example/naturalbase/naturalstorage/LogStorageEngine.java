@@ -0,0 +1,1095 @@
+package com.example.naturalbase.naturalstorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Embedded log-structured engine.
+ * - every write is appended to the active segment file (segment-N.log)
+ * - writes since the last checkpoint are kept in the memtable with their values
+ * - on checkpoint the memtable is merged into the key index, which is written
+ *   sorted by key to index.idx together with the log position it covers
+ * - on restart index.idx is loaded and the segments after its checkpoint are
+ *   replayed into the memtable, a torn record at the tail is truncated
+ * - a checkpoint retires the oldest sealed segments while too much of the
+ *   sealed log is dead, their live records are copied to the active segment
+ */
+public class LogStorageEngine implements StorageEngine {
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_FILE = "index.idx";
+	private static final String INDEX_TEMP_FILE = "index.idx.tmp";
+	private static final int INDEX_MAGIC = 0x4E42494E; // "NBIN"
+	private static final int INDEX_VERSION = 5;
+
+	private static final byte RECORD_TYPE_DATA = 1;
+	private static final byte RECORD_TYPE_META = 2;
+	// device id and watermark sequence are stored in the fixed fields, key and value are empty
+	private static final byte RECORD_TYPE_WATERMARK = 3;
+	// key of a purged tombstone and its sequence, replay drops the key if it still has that sequence
+	private static final byte RECORD_TYPE_PURGE = 4;
+	// lastSequence in the sequence field, written when segments are retired
+	private static final byte RECORD_TYPE_SEQUENCE = 5;
+	// set on the type of data records with a compressed value, the codec byte follows the type
+	private static final byte RECORD_FLAG_CODEC = (byte)0x80;
+	// crc(4) + body length(4)
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	// bounds the copying one checkpoint does
+	private static final int MAX_RETIRE_PER_CHECKPOINT = 4;
+	public static final int DEFAULT_GARBAGE_PERCENT = 50;
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private File dir;
+	private long segmentMaxBytes;
+	private int memtableMaxEntries;
+	private boolean syncOnWrite;
+	// <= 0 keeps every segment
+	private int garbagePercent;
+
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private TreeMap<String, LogEntry> dataMemtable = new TreeMap<String, LogEntry>();
+	private TreeMap<String, LogEntry> metaMemtable = new TreeMap<String, LogEntry>();
+	private TreeMap<String, LogEntry> dataIndex = new TreeMap<String, LogEntry>();
+	private TreeMap<String, LogEntry> metaIndex = new TreeMap<String, LogEntry>();
+	// sequence -> key of the live version, the unsync scan walks this in order
+	private TreeMap<Long, String> dataBySequence = new TreeMap<Long, String>();
+	private long lastSequence = 0;
+	private TreeMap<Integer, Long> waterMarks = new TreeMap<Integer, Long>();
+
+	private Map<Long, FileChannel> readChannels = new HashMap<Long, FileChannel>();
+	// segments below it were retired
+	private long firstSegmentId = 0;
+	private long activeSegmentId = 0;
+	private RandomAccessFile activeSegment;
+	private long activeOffset = 0;
+
+	private static class LogEntry {
+		long segmentId;
+		long offset;
+		long timeStamp;
+		boolean deleteBit;
+		int deviceId;
+		long sequence;
+		byte codec;
+		// record size in the segment, header included
+		int length;
+		// only kept while the entry lives in the memtable
+		byte[] value;
+	}
+
+	public LogStorageEngine(String inDir, long inSegmentMaxBytes, int inMemtableMaxEntries, boolean inSyncOnWrite) {
+		this(inDir, inSegmentMaxBytes, inMemtableMaxEntries, inSyncOnWrite, DEFAULT_GARBAGE_PERCENT);
+	}
+
+	public LogStorageEngine(String inDir, long inSegmentMaxBytes, int inMemtableMaxEntries, boolean inSyncOnWrite, int inGarbagePercent) {
+		dir = new File(inDir);
+		segmentMaxBytes = inSegmentMaxBytes;
+		memtableMaxEntries = inMemtableMaxEntries;
+		syncOnWrite = inSyncOnWrite;
+		garbagePercent = inGarbagePercent;
+		try {
+			if (!dir.exists() && !dir.mkdirs()) {
+				logger.error("LogStorageEngine can not create dir:" + dir.getAbsolutePath());
+			}
+			Recover();
+			logger.debug("LogStorageEngine open " + dir.getAbsolutePath() + " data keys:" + (dataIndex.size() + dataMemtable.size()) +
+					" active segment:" + activeSegmentId + " offset:" + activeOffset);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine init catch exception. Cause:" + e.getMessage());
+		}
+	}
+
+	@Override
+	public long SaveDataFromSync(List<DataItem> dataItemList, int deviceId) {
+		return SaveDataBatchFromSync(dataItemList, deviceId).maxTimeStamp;
+	}
+
+	/*
+	 * the whole batch is appended under the write lock and synced once
+	 */
+	@Override
+	public SyncWriteResult SaveDataBatchFromSync(List<DataItem> dataItemList, int deviceId) {
+		if (dataItemList == null) {
+			return new SyncWriteResult(0);
+		}
+		SyncWriteResult result = new SyncWriteResult(dataItemList.size());
+		for (DataItem dataItem : dataItemList) {
+			if (result.maxTimeStamp < dataItem.TimeStamp) {
+				result.maxTimeStamp = dataItem.TimeStamp;
+			}
+		}
+
+		List<Integer> newestIndex = new ArrayList<Integer>(SyncWriteResult.NewestPerKey(dataItemList).values());
+		Collections.sort(newestIndex);
+
+		lock.writeLock().lock();
+		long batchSegmentId = activeSegmentId;
+		long batchOffset = activeOffset;
+		long batchSequence = lastSequence;
+		// key -> live entry before the batch, for the rollback
+		Map<String, LogEntry> previousEntries = new HashMap<String, LogEntry>();
+		Map<String, LogEntry> previousMemtable = new HashMap<String, LogEntry>();
+		try {
+			for (Integer i : newestIndex) {
+				DataItem dataItem = dataItemList.get(i);
+				LogEntry current = FindEntry(RECORD_TYPE_DATA, dataItem.Key);
+				// 等于再写一次应该也是没有问题的
+				if (current != null && current.timeStamp > dataItem.TimeStamp) {
+					continue;
+				}
+				previousEntries.put(dataItem.Key, current);
+				previousMemtable.put(dataItem.Key, dataMemtable.get(dataItem.Key));
+				Append(RECORD_TYPE_DATA, dataItem, deviceId);
+				result.Accept(i, dataItem.TimeStamp);
+				if (result.firstSequence == 0) {
+					result.firstSequence = dataItem.Sequence;
+				}
+				result.lastSequence = dataItem.Sequence;
+			}
+			Commit();
+			result.success = true;
+		}
+		catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine save data catch exception. Cause:" + e.getMessage());
+			if (activeSegmentId == batchSegmentId) {
+				Rollback(batchOffset, batchSequence, previousEntries, previousMemtable);
+				result = new SyncWriteResult(dataItemList.size());
+			}
+			else {
+				// the checkpoint synced and sealed the batch before it failed, it is durable
+				result.success = true;
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		return result;
+	}
+
+	@Override
+	public List<DataItem> GetUnsyncData(long beginT, long endT, int deviceId) {
+		List<DataItem> dataItemList = new ArrayList<DataItem>();
+
+		if (endT != NaturalStorage.TIMESTAMP_NOW && beginT > endT) {
+			logger.debug("GetUnsyncData input error beginT > endT !");
+		}
+
+		lock.readLock().lock();
+		try {
+			for (Map.Entry<Long, String> e : dataBySequence.entrySet()) {
+				LogEntry entry = FindEntry(RECORD_TYPE_DATA, e.getValue());
+				if (entry.timeStamp <= beginT || entry.deviceId == deviceId) {
+					continue;
+				}
+				if (endT != NaturalStorage.TIMESTAMP_NOW && entry.timeStamp >= endT) {
+					continue;
+				}
+				dataItemList.add(ToDataItem(e.getValue(), entry));
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine get data catch exception. Cause:" + e.getMessage());
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		Collections.sort(dataItemList, new Comparator<DataItem>() {
+			@Override
+			public int compare(DataItem a, DataItem b) {
+				return Long.compare(a.TimeStamp, b.TimeStamp);
+			}
+		});
+		return dataItemList;
+	}
+
+	@Override
+	public SyncPage ScanUnsyncData(long afterSequence, int deviceId, int maxItems, long maxBytes, IDataItemVisitor visitor) {
+		SyncPage page = new SyncPage();
+		page.lastSequence = afterSequence;
+
+		lock.readLock().lock();
+		try {
+			for (Map.Entry<Long, String> e : dataBySequence.tailMap(afterSequence, false).entrySet()) {
+				LogEntry entry = FindEntry(RECORD_TYPE_DATA, e.getValue());
+				if (entry.deviceId == deviceId) {
+					continue;
+				}
+				if (page.itemCount >= maxItems || page.byteCount >= maxBytes) {
+					page.hasMore = true;
+					break;
+				}
+				DataItem dataItem = ToDataItem(e.getValue(), entry);
+				page.itemCount++;
+				page.byteCount += SyncPage.EstimateSize(dataItem);
+				page.lastSequence = dataItem.Sequence;
+				if (!visitor.visit(dataItem)) {
+					page.hasMore = true;
+					break;
+				}
+			}
+			page.success = true;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine scan unsync data catch exception. Cause:" + e.getMessage());
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		return page;
+	}
+
+	@Override
+	public DataItem GetData(String key) {
+		if (key == null) {
+			logger.error("GetData input error key = null");
+			return null;
+		}
+
+		lock.readLock().lock();
+		try {
+			LogEntry entry = FindEntry(RECORD_TYPE_DATA, key);
+			if (entry == null) {
+				return null;
+			}
+			return ToDataItem(key, entry);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine get data catch exception. Cause:" + e.getMessage());
+			return null;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * tombstones are dropped from memory and a purge record is appended for each,
+	 * the next checkpoint writes an index without them
+	 */
+	@Override
+	public int PurgeTombstones(long maxSequence, int limit) {
+		lock.writeLock().lock();
+		try {
+			List<Long> purgeSequences = new ArrayList<Long>();
+			for (Map.Entry<Long, String> e : dataBySequence.headMap(maxSequence, true).entrySet()) {
+				if (purgeSequences.size() >= limit) {
+					break;
+				}
+				LogEntry entry = FindEntry(RECORD_TYPE_DATA, e.getValue());
+				if (entry != null && entry.deleteBit) {
+					purgeSequences.add(e.getKey());
+				}
+			}
+			for (Long sequence : purgeSequences) {
+				String key = dataBySequence.remove(sequence);
+				AppendPurge(key, sequence);
+				RemovePurged(key, sequence);
+			}
+			if (!purgeSequences.isEmpty()) {
+				Commit();
+			}
+			return purgeSequences.size();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine purge tombstones catch exception. Cause:" + e.getMessage());
+			return -1;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean SaveMetaData(DataItem dataItem) {
+		if (dataItem == null) {
+			logger.error("SaveMetaData input error dataItem = null");
+			return false;
+		}
+
+		lock.writeLock().lock();
+		try {
+			Append(RECORD_TYPE_META, dataItem, NaturalStorage.LOCAL_DEVICE_ID);
+			Commit();
+			return true;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine save meta data catch exception. Cause:" + e.getMessage());
+			return false;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public DataItem GetMetaData(String key) {
+		if (key == null) {
+			logger.error("GetMetaData input error key = null");
+			return null;
+		}
+
+		lock.readLock().lock();
+		try {
+			LogEntry entry = FindEntry(RECORD_TYPE_META, key);
+			if (entry == null) {
+				return null;
+			}
+			return ToDataItem(key, entry);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine get meta data catch exception. Cause:" + e.getMessage());
+			return null;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Map<Integer, Long> LoadWaterMarks() {
+		lock.readLock().lock();
+		try {
+			return new HashMap<Integer, Long>(waterMarks);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * one record per device and a single sync for the whole batch
+	 */
+	@Override
+	public boolean SaveWaterMarks(Map<Integer, Long> waterMarkMap) {
+		lock.writeLock().lock();
+		try {
+			for (Map.Entry<Integer, Long> e : waterMarkMap.entrySet()) {
+				Long current = waterMarks.get(e.getKey());
+				if (current == null || current < e.getValue()) {
+					AppendWaterMark(e.getKey(), e.getValue());
+				}
+			}
+			Commit();
+			return true;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine save watermarks catch exception. Cause:" + e.getMessage());
+			return false;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void Close() {
+		lock.writeLock().lock();
+		try {
+			if (activeSegment != null) {
+				Checkpoint();
+				activeSegment.close();
+				activeSegment = null;
+			}
+			for (FileChannel channel : readChannels.values()) {
+				channel.close();
+			}
+			readChannels.clear();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			logger.error("LogStorageEngine close catch exception. Cause:" + e.getMessage());
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private LogEntry FindEntry(byte type, String key) {
+		TreeMap<String, LogEntry> memtable = (type == RECORD_TYPE_DATA) ? dataMemtable : metaMemtable;
+		TreeMap<String, LogEntry> index = (type == RECORD_TYPE_DATA) ? dataIndex : metaIndex;
+		LogEntry entry = memtable.get(key);
+		if (entry == null) {
+			entry = index.get(key);
+		}
+		return entry;
+	}
+
+	private DataItem ToDataItem(String key, LogEntry entry) throws IOException {
+		DataItem dataItem = new DataItem();
+		dataItem.Key = key;
+		dataItem.Value = ReadValue(entry);
+		dataItem.TimeStamp = entry.timeStamp;
+		dataItem.DeleteBit = entry.deleteBit;
+		dataItem.Sequence = entry.sequence;
+		dataItem.Codec = entry.codec;
+		return dataItem;
+	}
+
+	/*
+	 * record body: type, timestamp, delete bit, device id, sequence, key, value
+	 */
+	private void Append(byte type, DataItem dataItem, int deviceId) throws IOException {
+		byte[] key = dataItem.Key.getBytes("UTF-8");
+		byte[] value = (dataItem.Value == null) ? new byte[0] : dataItem.Value;
+
+		long sequence = 0;
+		if (type == RECORD_TYPE_DATA) {
+			sequence = ++lastSequence;
+			dataItem.Sequence = sequence;
+		}
+
+		ByteArrayOutputStream bodyBuf = new ByteArrayOutputStream(34 + key.length + value.length);
+		DataOutputStream body = new DataOutputStream(bodyBuf);
+		byte codec = (type == RECORD_TYPE_DATA) ? dataItem.Codec : ValueCodec.CODEC_NONE;
+		if (codec != ValueCodec.CODEC_NONE) {
+			body.writeByte(type | RECORD_FLAG_CODEC);
+			body.writeByte(codec);
+		}
+		else {
+			body.writeByte(type);
+		}
+		body.writeLong(dataItem.TimeStamp);
+		body.writeBoolean(dataItem.DeleteBit);
+		body.writeInt(deviceId);
+		body.writeLong(sequence);
+		body.writeInt(key.length);
+		body.write(key);
+		body.writeInt(value.length);
+		body.write(value);
+		byte[] bodyBytes = bodyBuf.toByteArray();
+
+		long offset = WriteRecord(bodyBytes);
+
+		LogEntry entry = new LogEntry();
+		entry.segmentId = activeSegmentId;
+		entry.offset = offset;
+		entry.timeStamp = dataItem.TimeStamp;
+		entry.deleteBit = dataItem.DeleteBit;
+		entry.deviceId = deviceId;
+		entry.sequence = sequence;
+		entry.codec = codec;
+		entry.length = RECORD_HEADER_SIZE + bodyBytes.length;
+		entry.value = value;
+		if (type == RECORD_TYPE_DATA) {
+			LogEntry previous = FindEntry(RECORD_TYPE_DATA, dataItem.Key);
+			if (previous != null) {
+				dataBySequence.remove(previous.sequence);
+			}
+			dataBySequence.put(sequence, dataItem.Key);
+			dataMemtable.put(dataItem.Key, entry);
+		}
+		else {
+			metaMemtable.put(dataItem.Key, entry);
+		}
+	}
+
+	/*
+	 * undoes a failed batch: its records are cut off the active segment and the
+	 * entries it replaced are live again
+	 */
+	private void Rollback(long offset, long sequence, Map<String, LogEntry> previousEntries, Map<String, LogEntry> previousMemtable) {
+		dataBySequence.tailMap(sequence, false).clear();
+		for (Map.Entry<String, LogEntry> e : previousEntries.entrySet()) {
+			LogEntry memtableEntry = previousMemtable.get(e.getKey());
+			if (memtableEntry != null) {
+				dataMemtable.put(e.getKey(), memtableEntry);
+			}
+			else {
+				dataMemtable.remove(e.getKey());
+			}
+			if (e.getValue() != null) {
+				dataBySequence.put(e.getValue().sequence, e.getKey());
+			}
+		}
+		lastSequence = sequence;
+		activeOffset = offset;
+		try {
+			activeSegment.setLength(offset);
+		}
+		catch (IOException e) {
+			// replay would bring the records back, only a restart can tell
+			logger.error("LogStorageEngine rollback catch exception. Cause:" + e.getMessage());
+		}
+	}
+
+	private void AppendWaterMark(int deviceId, long waterMark) throws IOException {
+		ByteArrayOutputStream bodyBuf = new ByteArrayOutputStream(34);
+		DataOutputStream body = new DataOutputStream(bodyBuf);
+		body.writeByte(RECORD_TYPE_WATERMARK);
+		body.writeLong(0);
+		body.writeBoolean(false);
+		body.writeInt(deviceId);
+		body.writeLong(waterMark);
+		body.writeInt(0);
+		body.writeInt(0);
+		WriteRecord(bodyBuf.toByteArray());
+		waterMarks.put(deviceId, waterMark);
+	}
+
+	private void AppendSequence(long sequence) throws IOException {
+		ByteArrayOutputStream bodyBuf = new ByteArrayOutputStream(34);
+		DataOutputStream body = new DataOutputStream(bodyBuf);
+		body.writeByte(RECORD_TYPE_SEQUENCE);
+		body.writeLong(0);
+		body.writeBoolean(false);
+		body.writeInt(NaturalStorage.LOCAL_DEVICE_ID);
+		body.writeLong(sequence);
+		body.writeInt(0);
+		body.writeInt(0);
+		WriteRecord(bodyBuf.toByteArray());
+	}
+
+	private void AppendPurge(String key, long sequence) throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		ByteArrayOutputStream bodyBuf = new ByteArrayOutputStream(34 + keyBytes.length);
+		DataOutputStream body = new DataOutputStream(bodyBuf);
+		body.writeByte(RECORD_TYPE_PURGE);
+		body.writeLong(0);
+		body.writeBoolean(false);
+		body.writeInt(NaturalStorage.LOCAL_DEVICE_ID);
+		body.writeLong(sequence);
+		body.writeInt(keyBytes.length);
+		body.write(keyBytes);
+		body.writeInt(0);
+		WriteRecord(bodyBuf.toByteArray());
+	}
+
+	/*
+	 * drops key unless it was written again after the purged tombstone
+	 */
+	private void RemovePurged(String key, long sequence) {
+		LogEntry entry = FindEntry(RECORD_TYPE_DATA, key);
+		if (entry != null && entry.sequence == sequence) {
+			dataMemtable.remove(key);
+			dataIndex.remove(key);
+		}
+	}
+
+	/*
+	 * appends crc, length and body to the active segment, returns the record offset
+	 */
+	private long WriteRecord(byte[] bodyBytes) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(bodyBytes);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyBytes.length);
+		record.putInt((int)crc.getValue());
+		record.putInt(bodyBytes.length);
+		record.put(bodyBytes);
+		record.flip();
+
+		long offset = activeOffset;
+		FileChannel channel = activeSegment.getChannel();
+		while (record.hasRemaining()) {
+			channel.write(record, activeOffset + record.position());
+		}
+		activeOffset += RECORD_HEADER_SIZE + bodyBytes.length;
+		return offset;
+	}
+
+	private void Commit() throws IOException {
+		if (syncOnWrite) {
+			activeSegment.getChannel().force(false);
+		}
+		if (dataMemtable.size() + metaMemtable.size() >= memtableMaxEntries || activeOffset >= segmentMaxBytes) {
+			Checkpoint();
+		}
+	}
+
+	/*
+	 * seal the active segment, merge the memtable into the index and persist the
+	 * index sorted by key. The new index covers the log up to the start of the
+	 * next segment, so recovery only replays segments after it.
+	 */
+	private void Checkpoint() throws IOException {
+		activeSegment.getChannel().force(true);
+		activeSegment.close();
+		long sealedSegmentId = activeSegmentId;
+		OpenSegment(sealedSegmentId + 1, true);
+
+		MergeMemtable(dataMemtable, dataIndex);
+		MergeMemtable(metaMemtable, metaIndex);
+		List<Long> retired = Compact();
+		WriteIndex(activeSegmentId);
+		// the new index no longer points into them
+		for (Long segmentId : retired) {
+			DeleteSegment(segmentId);
+		}
+		logger.debug("LogStorageEngine checkpoint sealed segment:" + sealedSegmentId + " index keys:" + (dataIndex.size() + metaIndex.size()) +
+				" retired segments:" + retired);
+	}
+
+	/*
+	 * retires the oldest sealed segments while more than garbagePercent of the
+	 * sealed bytes are dead. Only the oldest go: a purge record dropped with them
+	 * always follows the tombstone it purged, so replaying the remaining
+	 * segments gives the same state. Their live records, the watermarks and
+	 * lastSequence are copied to the active segment and synced first.
+	 * Returns the segments to delete once the index is written
+	 */
+	private List<Long> Compact() throws IOException {
+		List<Long> retired = new ArrayList<Long>();
+		if (garbagePercent <= 0) {
+			return retired;
+		}
+		Map<Long, Long> liveBytes = new HashMap<Long, Long>();
+		AddLiveBytes(liveBytes, dataIndex);
+		AddLiveBytes(liveBytes, metaIndex);
+		long sealedBytes = 0;
+		long sealedLiveBytes = 0;
+		for (long segmentId = firstSegmentId; segmentId < activeSegmentId; segmentId++) {
+			sealedBytes += SegmentFile(segmentId).length();
+			sealedLiveBytes += liveBytes.getOrDefault(segmentId, 0L);
+		}
+		long retireBelow = firstSegmentId;
+		while (retireBelow < activeSegmentId && retired.size() < MAX_RETIRE_PER_CHECKPOINT &&
+			   (sealedBytes - sealedLiveBytes) * 100 > sealedBytes * garbagePercent) {
+			sealedBytes -= SegmentFile(retireBelow).length();
+			sealedLiveBytes -= liveBytes.getOrDefault(retireBelow, 0L);
+			retired.add(retireBelow);
+			retireBelow++;
+		}
+		if (retired.isEmpty()) {
+			return retired;
+		}
+		CopyLiveRecords(dataIndex, retireBelow);
+		CopyLiveRecords(metaIndex, retireBelow);
+		for (Map.Entry<Integer, Long> e : new ArrayList<Map.Entry<Integer, Long>>(waterMarks.entrySet())) {
+			AppendWaterMark(e.getKey(), e.getValue());
+		}
+		AppendSequence(lastSequence);
+		activeSegment.getChannel().force(true);
+		firstSegmentId = retireBelow;
+		return retired;
+	}
+
+	private void AddLiveBytes(Map<Long, Long> liveBytes, TreeMap<String, LogEntry> index) {
+		for (LogEntry entry : index.values()) {
+			liveBytes.merge(entry.segmentId, (long)entry.length, Long::sum);
+		}
+	}
+
+	/*
+	 * moves the entries that live in segments below retireBelow to the active segment
+	 */
+	private void CopyLiveRecords(TreeMap<String, LogEntry> index, long retireBelow) throws IOException {
+		for (LogEntry entry : index.values()) {
+			if (entry.segmentId >= retireBelow) {
+				continue;
+			}
+			ByteBuffer body = ReadRecordBody(entry);
+			entry.offset = WriteRecord(Arrays.copyOfRange(body.array(), 0, body.limit()));
+			entry.segmentId = activeSegmentId;
+		}
+	}
+
+	private void DeleteSegment(long segmentId) throws IOException {
+		FileChannel channel = readChannels.remove(segmentId);
+		if (channel != null) {
+			channel.close();
+		}
+		File segmentFile = SegmentFile(segmentId);
+		if (segmentFile.exists() && !segmentFile.delete()) {
+			logger.error("LogStorageEngine can not delete retired segment " + segmentFile.getAbsolutePath());
+		}
+	}
+
+	private void MergeMemtable(TreeMap<String, LogEntry> memtable, TreeMap<String, LogEntry> index) {
+		for (Map.Entry<String, LogEntry> e : memtable.entrySet()) {
+			e.getValue().value = null;
+			index.put(e.getKey(), e.getValue());
+		}
+		memtable.clear();
+	}
+
+	/*
+	 * streamed to the temp file, the crc of everything before it comes last
+	 */
+	private void WriteIndex(long checkpointSegmentId) throws IOException {
+		File tempFile = new File(dir, INDEX_TEMP_FILE);
+		FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(checkpointSegmentId);
+			out.writeLong(firstSegmentId);
+			out.writeLong(lastSequence);
+			out.writeInt(dataIndex.size() + metaIndex.size());
+			WriteIndexEntries(out, RECORD_TYPE_DATA, dataIndex);
+			WriteIndexEntries(out, RECORD_TYPE_META, metaIndex);
+			out.writeInt(waterMarks.size());
+			for (Map.Entry<Integer, Long> e : waterMarks.entrySet()) {
+				out.writeInt(e.getKey());
+				out.writeLong(e.getValue());
+			}
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			fileOut.getChannel().force(true);
+		}
+		finally {
+			fileOut.close();
+		}
+		Files.move(tempFile.toPath(), new File(dir, INDEX_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void WriteIndexEntries(DataOutputStream out, byte type, TreeMap<String, LogEntry> index) throws IOException {
+		for (Map.Entry<String, LogEntry> e : index.entrySet()) {
+			LogEntry entry = e.getValue();
+			out.writeByte(type);
+			out.writeUTF(e.getKey());
+			out.writeLong(entry.segmentId);
+			out.writeLong(entry.offset);
+			out.writeLong(entry.timeStamp);
+			out.writeBoolean(entry.deleteBit);
+			out.writeInt(entry.deviceId);
+			out.writeLong(entry.sequence);
+			out.writeByte(entry.codec);
+			out.writeInt(entry.length);
+		}
+	}
+
+	/*
+	 * returns the first segment id that is not covered by the index. Any other
+	 * version than INDEX_VERSION is unusable, the segments are replayed instead
+	 */
+	private long ReadIndex() throws IOException {
+		File indexFile = new File(dir, INDEX_FILE);
+		if (!indexFile.exists()) {
+			return 0;
+		}
+		byte[] indexBytes = Files.readAllBytes(indexFile.toPath());
+		if (indexBytes.length < 8) {
+			throw new IOException("index file too short " + indexFile.getAbsolutePath());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(indexBytes, 0, indexBytes.length - 8);
+		if (ByteBuffer.wrap(indexBytes, indexBytes.length - 8, 8).getLong() != crc.getValue()) {
+			throw new IOException("index file checksum mismatch " + indexFile.getAbsolutePath());
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(indexBytes, 0, indexBytes.length - 8));
+		if (in.readInt() != INDEX_MAGIC) {
+			throw new IOException("invalid index file " + indexFile.getAbsolutePath());
+		}
+		int version = in.readInt();
+		if (version != INDEX_VERSION) {
+			throw new IOException("unsupported index version " + version + " " + indexFile.getAbsolutePath());
+		}
+		long checkpointSegmentId = in.readLong();
+		long indexFirstSegmentId = in.readLong();
+		long indexLastSequence = in.readLong();
+		int count = in.readInt();
+		TreeMap<String, LogEntry> loadData = new TreeMap<String, LogEntry>();
+		TreeMap<String, LogEntry> loadMeta = new TreeMap<String, LogEntry>();
+		for (int i = 0; i < count; i++) {
+			byte type = in.readByte();
+			String key = in.readUTF();
+			LogEntry entry = new LogEntry();
+			entry.segmentId = in.readLong();
+			entry.offset = in.readLong();
+			entry.timeStamp = in.readLong();
+			entry.deleteBit = in.readBoolean();
+			entry.deviceId = in.readInt();
+			entry.sequence = in.readLong();
+			entry.codec = in.readByte();
+			entry.length = in.readInt();
+			if (type == RECORD_TYPE_DATA) {
+				loadData.put(key, entry);
+			}
+			else {
+				loadMeta.put(key, entry);
+			}
+		}
+		TreeMap<Integer, Long> loadWaterMarks = new TreeMap<Integer, Long>();
+		int waterMarkCount = in.readInt();
+		for (int i = 0; i < waterMarkCount; i++) {
+			int deviceId = in.readInt();
+			loadWaterMarks.put(deviceId, in.readLong());
+		}
+		dataIndex = loadData;
+		metaIndex = loadMeta;
+		waterMarks = loadWaterMarks;
+		firstSegmentId = indexFirstSegmentId;
+		// sequences are never reused, even if the newest key was purged since
+		lastSequence = indexLastSequence;
+		return checkpointSegmentId;
+	}
+
+	private void Recover() throws IOException {
+		long replayFrom = 0;
+		try {
+			replayFrom = ReadIndex();
+		}
+		catch (IOException e) {
+			// the segments are the source of truth, rebuild everything from them
+			logger.error("LogStorageEngine index unusable, replay all segments. Cause:" + e.getMessage());
+			dataIndex.clear();
+			metaIndex.clear();
+			waterMarks.clear();
+			firstSegmentId = 0;
+			replayFrom = 0;
+		}
+
+		long[] segmentIds = ListSegments();
+		long lastSegmentId = -1;
+		for (long segmentId : segmentIds) {
+			if (segmentId < firstSegmentId) {
+				// retired by a checkpoint that stopped before deleting it
+				DeleteSegment(segmentId);
+				continue;
+			}
+			if (segmentId < replayFrom) {
+				continue;
+			}
+			long validLength = ReplaySegment(segmentId);
+			File segmentFile = SegmentFile(segmentId);
+			if (validLength < segmentFile.length()) {
+				logger.error("LogStorageEngine segment:" + segmentId + " has torn tail, truncate " +
+						segmentFile.length() + " -> " + validLength);
+				RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");
+				try {
+					raf.setLength(validLength);
+				}
+				finally {
+					raf.close();
+				}
+			}
+			lastSegmentId = segmentId;
+		}
+
+		RebuildSequenceIndex();
+		if (segmentIds.length > 0) {
+			firstSegmentId = Math.max(firstSegmentId, segmentIds[0]);
+		}
+
+		if (lastSegmentId < 0) {
+			OpenSegment(Math.max(replayFrom, segmentIds.length == 0 ? 0 : segmentIds[segmentIds.length - 1] + 1), true);
+		}
+		else {
+			OpenSegment(lastSegmentId, false);
+		}
+	}
+
+	private void RebuildSequenceIndex() {
+		Map<String, LogEntry> live = new HashMap<String, LogEntry>(dataIndex);
+		live.putAll(dataMemtable);
+		dataBySequence.clear();
+		for (Map.Entry<String, LogEntry> e : live.entrySet()) {
+			dataBySequence.put(e.getValue().sequence, e.getKey());
+		}
+		for (LogEntry entry : dataIndex.values()) {
+			lastSequence = Math.max(lastSequence, entry.sequence);
+		}
+		for (LogEntry entry : dataMemtable.values()) {
+			lastSequence = Math.max(lastSequence, entry.sequence);
+		}
+	}
+
+	/*
+	 * replays a segment into the memtable, returns the length of the valid prefix
+	 */
+	private long ReplaySegment(long segmentId) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(SegmentFile(segmentId))));
+		long offset = 0;
+		try {
+			while (true) {
+				int checksum;
+				int length;
+				try {
+					checksum = in.readInt();
+					length = in.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+				if (length <= 0 || length > MAX_RECORD_SIZE) {
+					break;
+				}
+				byte[] body = new byte[length];
+				try {
+					in.readFully(body);
+				}
+				catch (EOFException e) {
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(body);
+				if ((int)crc.getValue() != checksum) {
+					break;
+				}
+
+				DataInputStream bodyIn = new DataInputStream(new ByteArrayInputStream(body));
+				byte type = bodyIn.readByte();
+				LogEntry entry = new LogEntry();
+				if ((type & RECORD_FLAG_CODEC) != 0) {
+					type &= ~RECORD_FLAG_CODEC;
+					entry.codec = bodyIn.readByte();
+				}
+				entry.segmentId = segmentId;
+				entry.offset = offset;
+				entry.length = RECORD_HEADER_SIZE + length;
+				entry.timeStamp = bodyIn.readLong();
+				entry.deleteBit = bodyIn.readBoolean();
+				entry.deviceId = bodyIn.readInt();
+				entry.sequence = bodyIn.readLong();
+				byte[] key = new byte[bodyIn.readInt()];
+				bodyIn.readFully(key);
+				entry.value = new byte[bodyIn.readInt()];
+				bodyIn.readFully(entry.value);
+				if (type == RECORD_TYPE_DATA || type == RECORD_TYPE_PURGE || type == RECORD_TYPE_SEQUENCE) {
+					// a purged key may have held the highest sequence
+					lastSequence = Math.max(lastSequence, entry.sequence);
+				}
+				if (type == RECORD_TYPE_DATA) {
+					dataMemtable.put(new String(key, "UTF-8"), entry);
+				}
+				else if (type == RECORD_TYPE_WATERMARK) {
+					waterMarks.put(entry.deviceId, entry.sequence);
+				}
+				else if (type == RECORD_TYPE_PURGE) {
+					RemovePurged(new String(key, "UTF-8"), entry.sequence);
+				}
+				else if (type == RECORD_TYPE_SEQUENCE) {
+					// only moves lastSequence, see above
+				}
+				else {
+					metaMemtable.put(new String(key, "UTF-8"), entry);
+				}
+				offset += RECORD_HEADER_SIZE + length;
+			}
+		}
+		finally {
+			in.close();
+		}
+		return offset;
+	}
+
+	private byte[] ReadValue(LogEntry entry) throws IOException {
+		if (entry.value != null) {
+			return entry.value;
+		}
+		ByteBuffer body = ReadRecordBody(entry);
+		// type(1) [codec(1)] timestamp(8) delete bit(1) device id(4) sequence(8)
+		body.position(((body.get(0) & RECORD_FLAG_CODEC) != 0) ? 23 : 22);
+		int keyLength = body.getInt();
+		body.position(body.position() + keyLength);
+		byte[] value = new byte[body.getInt()];
+		body.get(value);
+		return value;
+	}
+
+	private ByteBuffer ReadRecordBody(LogEntry entry) throws IOException {
+		FileChannel channel = ReadChannel(entry.segmentId);
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		ReadFully(channel, header, entry.offset);
+		header.flip();
+		header.getInt();
+		ByteBuffer body = ByteBuffer.allocate(header.getInt());
+		ReadFully(channel, body, entry.offset + RECORD_HEADER_SIZE);
+		body.flip();
+		return body;
+	}
+
+	private void ReadFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new EOFException("unexpected end of segment");
+			}
+		}
+	}
+
+	private synchronized FileChannel ReadChannel(long segmentId) throws IOException {
+		if (segmentId == activeSegmentId) {
+			return activeSegment.getChannel();
+		}
+		FileChannel channel = readChannels.get(segmentId);
+		if (channel == null) {
+			channel = new RandomAccessFile(SegmentFile(segmentId), "r").getChannel();
+			readChannels.put(segmentId, channel);
+		}
+		return channel;
+	}
+
+	private void OpenSegment(long segmentId, boolean create) throws IOException {
+		File segmentFile = SegmentFile(segmentId);
+		if (create && segmentFile.exists()) {
+			throw new IOException("segment already exists " + segmentFile.getAbsolutePath());
+		}
+		activeSegment = new RandomAccessFile(segmentFile, "rw");
+		activeSegmentId = segmentId;
+		activeOffset = activeSegment.length();
+	}
+
+	private long[] ListSegments() {
+		String[] names = dir.list();
+		if (names == null) {
+			return new long[0];
+		}
+		List<Long> ids = new ArrayList<Long>();
+		for (String name : names) {
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+				}
+				catch (NumberFormatException e) {
+					logger.error("LogStorageEngine ignore unknown file:" + name);
+				}
+			}
+		}
+		long[] result = new long[ids.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ids.get(i);
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	private File SegmentFile(long segmentId) {
+		return new File(dir, SEGMENT_PREFIX + String.format("%010d", segmentId) + SEGMENT_SUFFIX);
+	}
+}
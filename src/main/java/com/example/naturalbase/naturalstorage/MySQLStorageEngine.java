@@ -0,0 +1,542 @@
+package com.example.naturalbase.naturalstorage;
+
+import java.util.List;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.naturalbase.naturalstorage.ConnectionPool.PooledConnection;
+
+public class MySQLStorageEngine implements StorageEngine {
+
+	// JDBC 驱动名及数据库 URL
+    public static final String DEFAULT_DB_URL = "jdbc:mysql://localhost:3306/NaturalBaseDemo?user=root&password=gaosi2&autoReconnect=true&failOverReadOnly=false&rewriteBatchedStatements=true&useCursorFetch=true";
+
+    // 数据库的用户名与密码
+    public static final String DEFAULT_USER = "root";
+    public static final String DEFAULT_PASS = "gaosi2";
+
+    private ConnectionPool pool;
+    private int fetchSize;
+
+    // sql 语句
+    private static final String creatTable = "CREATE TABLE IF NOT EXISTS DATA("
+            + "KNAME      VARCHAR(255) PRIMARY KEY  NOT  NULL,"
+            + "VALUE      BLOB              NOT  NULL,"
+            + "TIMESTAMP  BIGINT            NOT  NULL,"
+            + "DELETE_BIT INT               NOT  NULL,"
+            + "SYNC_BIT   INT               NOT  NULL,"
+            + "DEVICEID   INT               NOT  NULL,"
+            + "SEQ        BIGINT            NOT  NULL DEFAULT 0,"
+            + "CODEC      TINYINT           NOT  NULL DEFAULT 0,"
+            + "INDEX (TIMESTAMP),"
+            + "INDEX (DEVICEID),"
+            + "INDEX SEQ_SCAN (SEQ, DEVICEID, TIMESTAMP, DELETE_BIT))";
+    // SEQ is assigned from DATA_SEQUENCE inside the write transaction. The row
+    // lock on the counter is held until commit, so sequences become visible in order.
+    private static final String creatSequenceTable = "CREATE TABLE IF NOT EXISTS DATA_SEQUENCE("
+            + "NAME       VARCHAR(64)  PRIMARY KEY  NOT  NULL,"
+            + "VALUE      BIGINT            NOT  NULL);";
+    private static final String initSequence = "INSERT IGNORE INTO DATA_SEQUENCE (NAME, VALUE) SELECT 'DATA', IFNULL(MAX(SEQ), 0) FROM DATA";
+    private static final String allocSequence = "UPDATE DATA_SEQUENCE SET VALUE = LAST_INSERT_ID(VALUE + ?) WHERE NAME = 'DATA'";
+    private static final String lastSequence = "SELECT LAST_INSERT_ID()";
+    private static final String creatMetaTable = "CREATE TABLE IF NOT EXISTS METADATA("
+            + "KNAME      VARCHAR(255) PRIMARY KEY  NOT  NULL,"
+            + "VALUE      BLOB           NOT  NULL);";
+    private static final String creatWaterMarkTable = "CREATE TABLE IF NOT EXISTS WATERMARK("
+            + "DEVICEID   INT PRIMARY KEY   NOT  NULL,"
+            + "SEQ        BIGINT            NOT  NULL,"
+            + "UPDATED_AT BIGINT            NOT  NULL);";
+    private static final String queryWaterMark = "SELECT DEVICEID, SEQ FROM WATERMARK";
+    private static final String upsertWaterMark = "INSERT INTO WATERMARK (DEVICEID, SEQ, UPDATED_AT) VALUES (?,?,?) "
+            + "ON DUPLICATE KEY UPDATE "
+            + "UPDATED_AT = IF(VALUES(SEQ) > SEQ, VALUES(UPDATED_AT), UPDATED_AT),"
+            + "SEQ = GREATEST(SEQ, VALUES(SEQ))";
+    private static final String query1 = "SELECT * FROM DATA WHERE TIMESTAMP > ? AND DEVICEID <> ? ;";
+    private static final String query2 = "SELECT * FROM DATA WHERE TIMESTAMP > ? AND TIMESTAMP < ? AND DEVICEID <> ?;";
+    // pure range scan on SEQ_SCAN, DEVICEID is filtered from the index entries.
+    // useCursorFetch=true + fetch size streams the page through a server side cursor
+    private static final String queryPage = "SELECT KNAME, VALUE, TIMESTAMP, DELETE_BIT, SEQ, CODEC FROM DATA "
+            + "WHERE SEQ > ? AND DEVICEID <> ? ORDER BY SEQ LIMIT ?";
+    private static final String query3 = "SELECT VALUE, TIMESTAMP, DELETE_BIT, SEQ, CODEC FROM DATA WHERE KNAME = ?";
+    // walks SEQ_SCAN, every batch commits on its own so foreground writes only wait for one batch
+    private static final String purgeTombstones = "DELETE FROM DATA WHERE SEQ <= ? AND DELETE_BIT = 1 ORDER BY SEQ LIMIT ?";
+    private static final String query4 = "SELECT * FROM METADATA WHERE KNAME = ?;";
+    // newer timestamp wins, TIMESTAMP has to be assigned last
+    private static final String upsert = "INSERT INTO DATA (KNAME, VALUE, TIMESTAMP, DELETE_BIT, SYNC_BIT, DEVICEID, SEQ, CODEC) VALUES (?,?,?,?,?,?,?,?) "
+            + "ON DUPLICATE KEY UPDATE "
+            + "VALUE = IF(VALUES(TIMESTAMP) >= TIMESTAMP, VALUES(VALUE), VALUE),"
+            + "DELETE_BIT = IF(VALUES(TIMESTAMP) >= TIMESTAMP, VALUES(DELETE_BIT), DELETE_BIT),"
+            + "SYNC_BIT = IF(VALUES(TIMESTAMP) >= TIMESTAMP, VALUES(SYNC_BIT), SYNC_BIT),"
+            + "DEVICEID = IF(VALUES(TIMESTAMP) >= TIMESTAMP, VALUES(DEVICEID), DEVICEID),"
+            + "SEQ = IF(VALUES(TIMESTAMP) >= TIMESTAMP, VALUES(SEQ), SEQ),"
+            + "CODEC = IF(VALUES(TIMESTAMP) >= TIMESTAMP, VALUES(CODEC), CODEC),"
+            + "TIMESTAMP = GREATEST(TIMESTAMP, VALUES(TIMESTAMP))";
+    private static final byte[] EMPTY_VALUE = new byte[0];
+    private static final int LOCK_CHUNK_SIZE = 128;
+    private static final String lockSingleQuery = "SELECT KNAME, TIMESTAMP FROM DATA WHERE KNAME = ? FOR UPDATE";
+    private static final String lockChunkQuery = "SELECT KNAME, TIMESTAMP FROM DATA WHERE KNAME IN ("
+            + String.join(",", Collections.nCopies(LOCK_CHUNK_SIZE, "?")) + ") FOR UPDATE";
+    private static final String SQL_STATE_DEADLOCK = "40001";
+    private static final int MAX_TRANSACTION_RETRY = 3;
+    private static final String replaceMeta = "REPLACE INTO METADATA (KNAME, VALUE) VALUES (?,?);";
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public MySQLStorageEngine(ConnectionPool inPool, int inFetchSize) {
+        pool = inPool;
+        fetchSize = inFetchSize;
+        try {
+            Class.forName("com.mysql.cj.jdbc.Driver");
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            logger.error("MySQLStorageEngine can not load jdbc driver. Cause:" + e.getMessage());
+            return;
+        }
+        try (PooledConnection con = pool.Acquire();
+             Statement stmt = con.getConnection().createStatement()) {
+            logger.debug("Connect database succesful!");
+            if(0 != stmt.executeLargeUpdate(creatTable)) {
+            	logger.error("Creat table failed!");
+            }
+            if(0 != stmt.executeLargeUpdate(creatMetaTable)) {
+            	logger.error("Creat Meta table failed!");
+            }
+            MigrateSequenceColumn(con.getConnection(), stmt);
+            if (!HasColumn(con.getConnection(), "CODEC")) {
+            	logger.info("MySQLStorageEngine add CODEC column to DATA.");
+            	stmt.execute("ALTER TABLE DATA ADD COLUMN CODEC TINYINT NOT NULL DEFAULT 0");
+            }
+            stmt.executeLargeUpdate(creatSequenceTable);
+            stmt.executeLargeUpdate(creatWaterMarkTable);
+            stmt.executeLargeUpdate(initSequence);
+        } catch(SQLException se) {
+            se.printStackTrace();
+            logger.error("MySQLStorageEngine init sql catch exception. Cause:" + se.getMessage());
+        }
+    }
+
+    /*
+     * tables created before SEQ existed get the column, numbered in timestamp order
+     */
+    private void MigrateSequenceColumn(Connection con, Statement stmt) throws SQLException {
+    	if (HasColumn(con, "SEQ")) {
+    		return;
+    	}
+    	logger.info("MySQLStorageEngine add SEQ column to DATA.");
+    	stmt.execute("ALTER TABLE DATA ADD COLUMN SEQ BIGINT NOT NULL DEFAULT 0");
+    	stmt.execute("SET @seq = 0");
+    	stmt.execute("UPDATE DATA SET SEQ = (@seq := @seq + 1) ORDER BY TIMESTAMP, KNAME");
+    	stmt.execute("ALTER TABLE DATA ADD INDEX SEQ_SCAN (SEQ, DEVICEID, TIMESTAMP, DELETE_BIT)");
+    }
+
+    private boolean HasColumn(Connection con, String column) throws SQLException {
+    	try (ResultSet rs = con.getMetaData().getColumns(con.getCatalog(), null, "DATA", column)) {
+    		return rs.next();
+    	}
+    }
+
+    @Override
+    public void Close() {
+    	logger.debug("MySQLStorageEngine close connection pool. " + pool.getStatistics());
+    	pool.Close();
+    }
+
+    public ConnectionPool getConnectionPool() {
+    	return pool;
+    }
+
+	@Override
+	public long SaveDataFromSync(List<DataItem> dataItemList, int deviceId) {
+		return SaveDataBatchFromSync(dataItemList, deviceId).maxTimeStamp;
+	}
+
+	/*
+	 * one transaction per batch:
+	 * 1. lock the stored rows of the batch keys and read their timestamps
+	 * 2. send the items that are newer as one JDBC batch of conditional upserts
+	 */
+	@Override
+	public SyncWriteResult SaveDataBatchFromSync(List<DataItem> dataItemList, int deviceId) {
+		if (dataItemList == null) {
+			return new SyncWriteResult(0);
+		}
+		SyncWriteResult result = new SyncWriteResult(dataItemList.size());
+		for (DataItem dataItem : dataItemList) {
+			if (result.maxTimeStamp < dataItem.TimeStamp) {
+				result.maxTimeStamp = dataItem.TimeStamp;
+			}
+		}
+		if (dataItemList.isEmpty()) {
+			result.success = true;
+			return result;
+		}
+
+		for (int retry = 0; retry < MAX_TRANSACTION_RETRY; retry++) {
+			try (PooledConnection con = pool.Acquire()) {
+				try {
+					con.getConnection().setAutoCommit(false);
+					SyncWriteResult attempt = WriteBatch(con, dataItemList, deviceId);
+					con.getConnection().commit();
+					attempt.maxTimeStamp = result.maxTimeStamp;
+					attempt.success = true;
+					return attempt;
+				} catch (SQLException e) {
+					HandleSQLException(con, e);
+					throw e;
+				}
+			} catch (SQLException e) {
+				if (SQL_STATE_DEADLOCK.equals(e.getSQLState()) && retry + 1 < MAX_TRANSACTION_RETRY) {
+					logger.debug("MySQLStorageEngine save data batch deadlock, retry " + (retry + 1));
+					continue;
+				}
+				e.printStackTrace();
+				logger.error("MySQLStorageEngine save data batch sql catch exception. Cause:" + e.getMessage());
+				break;
+			}
+		}
+		return result;
+	}
+
+	private SyncWriteResult WriteBatch(PooledConnection con, List<DataItem> dataItemList, int deviceId) throws SQLException {
+		SyncWriteResult result = new SyncWriteResult(dataItemList.size());
+		Map<String, Integer> newest = SyncWriteResult.NewestPerKey(dataItemList);
+		Map<String, Long> stored = LockStoredTimeStamps(con, new ArrayList<String>(newest.keySet()));
+
+		List<Integer> acceptedIndex = new ArrayList<Integer>();
+		for (Integer i : newest.values()) {
+			Long storedTimeStamp = stored.get(dataItemList.get(i).Key);
+			// 等于再写一次应该也是没有问题的
+			if (storedTimeStamp == null || storedTimeStamp <= dataItemList.get(i).TimeStamp) {
+				acceptedIndex.add(i);
+			}
+		}
+		if (acceptedIndex.isEmpty()) {
+			return result;
+		}
+		Collections.sort(acceptedIndex);
+
+		long sequence = AllocateSequence(con, acceptedIndex.size());
+		result.firstSequence = sequence;
+		PreparedStatement pStmt = con.prepare(upsert);
+		for (Integer i : acceptedIndex) {
+			DataItem dataItem = dataItemList.get(i);
+			dataItem.Sequence = sequence++;
+			pStmt.setString(1, dataItem.Key);
+			pStmt.setBytes(2, (dataItem.Value == null) ? EMPTY_VALUE : dataItem.Value);
+			pStmt.setLong(3, dataItem.TimeStamp);
+			pStmt.setBoolean(4, dataItem.DeleteBit);
+			pStmt.setBoolean(5, true);
+			pStmt.setInt(6, deviceId);
+			pStmt.setLong(7, dataItem.Sequence);
+			pStmt.setByte(8, dataItem.Codec);
+			pStmt.addBatch();
+			result.Accept(i, dataItem.TimeStamp);
+		}
+		result.lastSequence = sequence - 1;
+		pStmt.executeBatch();
+		return result;
+	}
+
+	/*
+	 * reserves count sequences, returns the first one
+	 */
+	private long AllocateSequence(PooledConnection con, int count) throws SQLException {
+		PreparedStatement pStmt = con.prepare(allocSequence);
+		pStmt.setInt(1, count);
+		pStmt.executeUpdate();
+		try (ResultSet rs = con.prepare(lastSequence).executeQuery()) {
+			if (!rs.next()) {
+				throw new SQLException("can not read allocated sequence");
+			}
+			return rs.getLong(1) - count + 1;
+		}
+	}
+
+	/*
+	 * SELECT ... FOR UPDATE over the keys in chunks of LOCK_CHUNK_SIZE. The last
+	 * chunk is padded with its own last key so the same cached statement is reused.
+	 */
+	private Map<String, Long> LockStoredTimeStamps(PooledConnection con, List<String> keys) throws SQLException {
+		Map<String, Long> stored = new HashMap<String, Long>();
+		for (int begin = 0; begin < keys.size(); begin += LOCK_CHUNK_SIZE) {
+			int end = Math.min(begin + LOCK_CHUNK_SIZE, keys.size());
+			PreparedStatement pStmt;
+			if (end - begin == 1) {
+				pStmt = con.prepare(lockSingleQuery);
+				pStmt.setString(1, keys.get(begin));
+			}
+			else {
+				pStmt = con.prepare(lockChunkQuery);
+				for (int i = 0; i < LOCK_CHUNK_SIZE; i++) {
+					pStmt.setString(i + 1, keys.get(Math.min(begin + i, end - 1)));
+				}
+			}
+			try (ResultSet rs = pStmt.executeQuery()) {
+				while (rs.next()) {
+					stored.put(rs.getString(1), rs.getLong(2));
+				}
+			}
+		}
+		return stored;
+	}
+
+	@Override
+	public List<DataItem> GetUnsyncData(long beginT, long endT, int deviceId) {
+		List<DataItem> dataItemList = new ArrayList<DataItem>();
+
+		if (endT != NaturalStorage.TIMESTAMP_NOW && beginT > endT) {
+			logger.debug("GetUnsyncData input error beginT > endT !");
+		}
+
+		try (PooledConnection con = pool.Acquire()) {
+			PreparedStatement pStmt;
+			if (endT == NaturalStorage.TIMESTAMP_NOW) {
+				pStmt = con.prepare(query1);
+				pStmt.setLong(1, beginT);
+				pStmt.setInt(2, deviceId);
+			} else {
+				pStmt = con.prepare(query2);
+				pStmt.setLong(1, beginT);
+				pStmt.setLong(2, endT);
+				pStmt.setInt(3, deviceId);
+			}
+			try (ResultSet rs = pStmt.executeQuery()) {
+				while(rs.next()) {
+					DataItem dataItem = new DataItem();
+					dataItem.Key = rs.getString("KNAME");
+					dataItem.Value = rs.getBytes("VALUE");
+					dataItem.TimeStamp = rs.getLong("TIMESTAMP");
+					dataItem.DeleteBit = rs.getBoolean("DELETE_BIT");
+					dataItem.Codec = rs.getByte("CODEC");
+					dataItemList.add(dataItem);
+				}
+			} catch (SQLException e) {
+				HandleSQLException(con, e);
+				throw e;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			logger.error("MySQLStorageEngine get data sql catch exception. Cause:" + e.getMessage());
+		}
+		return dataItemList;
+	}
+
+	@Override
+	public SyncPage ScanUnsyncData(long afterSequence, int deviceId, int maxItems, long maxBytes, IDataItemVisitor visitor) {
+		SyncPage page = new SyncPage();
+		page.lastSequence = afterSequence;
+
+		try (PooledConnection con = pool.Acquire()) {
+			PreparedStatement pStmt = con.prepare(queryPage);
+			pStmt.setLong(1, afterSequence);
+			pStmt.setInt(2, deviceId);
+			pStmt.setInt(3, maxItems + 1);
+			pStmt.setFetchSize(fetchSize);
+			try (ResultSet rs = pStmt.executeQuery()) {
+				while(rs.next()) {
+					if (page.itemCount >= maxItems || page.byteCount >= maxBytes) {
+						page.hasMore = true;
+						break;
+					}
+					DataItem dataItem = new DataItem();
+					dataItem.Key = rs.getString(1);
+					dataItem.Value = rs.getBytes(2);
+					dataItem.TimeStamp = rs.getLong(3);
+					dataItem.DeleteBit = rs.getBoolean(4);
+					dataItem.Sequence = rs.getLong(5);
+					dataItem.Codec = rs.getByte(6);
+					page.itemCount++;
+					page.byteCount += SyncPage.EstimateSize(dataItem);
+					page.lastSequence = dataItem.Sequence;
+					if (!visitor.visit(dataItem)) {
+						page.hasMore = true;
+						break;
+					}
+				}
+			} catch (SQLException e) {
+				HandleSQLException(con, e);
+				throw e;
+			}
+			page.success = true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			logger.error("MySQLStorageEngine scan unsync data sql catch exception. Cause:" + e.getMessage());
+		}
+		return page;
+	}
+
+	@Override
+	public DataItem GetData(String key) {
+		if (key == null) {
+			logger.error("GetData input error key = null");
+			return null;
+		}
+
+		try (PooledConnection con = pool.Acquire()) {
+			PreparedStatement pStmt = con.prepare(query3);
+			pStmt.setString(1, key);
+			try (ResultSet rs = pStmt.executeQuery()) {
+				if (rs.next()) {
+					DataItem dataItem = new DataItem();
+					dataItem.Key = key;
+					dataItem.Value = rs.getBytes(1);
+					dataItem.TimeStamp = rs.getLong(2);
+					dataItem.DeleteBit = rs.getBoolean(3);
+					dataItem.Sequence = rs.getLong(4);
+					dataItem.Codec = rs.getByte(5);
+					return dataItem;
+				}
+			} catch (SQLException e) {
+				HandleSQLException(con, e);
+				throw e;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			logger.error("MySQLStorageEngine get data sql catch exception. Cause:" + e.getMessage());
+		}
+		return null;
+	}
+
+	@Override
+	public int PurgeTombstones(long maxSequence, int limit) {
+		try (PooledConnection con = pool.Acquire()) {
+			PreparedStatement pStmt = con.prepare(purgeTombstones);
+			pStmt.setLong(1, maxSequence);
+			pStmt.setInt(2, limit);
+			try {
+				return pStmt.executeUpdate();
+			} catch (SQLException e) {
+				HandleSQLException(con, e);
+				throw e;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			logger.error("MySQLStorageEngine purge tombstones sql catch exception. Cause:" + e.getMessage());
+			return -1;
+		}
+	}
+
+	@Override
+	public boolean SaveMetaData(DataItem dataItem) {
+		if (dataItem == null) {
+			logger.error("SaveMetaData input error dataItem = null");
+			return false;
+		}
+
+		try (PooledConnection con = pool.Acquire()) {
+			try {
+				PreparedStatement pStmt = con.prepare(replaceMeta);
+				pStmt.setString(1, dataItem.Key);
+				pStmt.setBytes(2, (dataItem.Value == null) ? EMPTY_VALUE : dataItem.Value);
+				pStmt.executeUpdate();
+			} catch (SQLException e) {
+				HandleSQLException(con, e);
+				throw e;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			logger.error("MySQLStorageEngine save meta data sql catch exception. Cause:" + e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public DataItem GetMetaData(String key) {
+		if (key == null) {
+			logger.error("GetMetaData input error key = null");
+			return null;
+		}
+
+		try (PooledConnection con = pool.Acquire()) {
+			PreparedStatement pStmt = con.prepare(query4);
+			pStmt.setString(1,key);
+			try (ResultSet rs = pStmt.executeQuery()) {
+				if(rs.next()) {
+					DataItem dataItem = new DataItem();
+					dataItem.Key = rs.getString("KNAME");
+					dataItem.Value = rs.getBytes("VALUE");
+					return dataItem;
+				}
+			} catch (SQLException e) {
+				HandleSQLException(con, e);
+				throw e;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			logger.error("MySQLStorageEngine get meta data sql catch exception. Cause:" + e.getMessage());
+		}
+		return null;
+	}
+
+	@Override
+	public Map<Integer, Long> LoadWaterMarks() {
+		Map<Integer, Long> waterMarks = new HashMap<Integer, Long>();
+		try (PooledConnection con = pool.Acquire()) {
+			try (ResultSet rs = con.prepare(queryWaterMark).executeQuery()) {
+				while (rs.next()) {
+					waterMarks.put(rs.getInt(1), rs.getLong(2));
+				}
+			} catch (SQLException e) {
+				HandleSQLException(con, e);
+				throw e;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			logger.error("MySQLStorageEngine load watermarks sql catch exception. Cause:" + e.getMessage());
+		}
+		return waterMarks;
+	}
+
+	/*
+	 * one JDBC batch in one transaction, SEQ is only raised
+	 */
+	@Override
+	public boolean SaveWaterMarks(Map<Integer, Long> waterMarks) {
+		if (waterMarks.isEmpty()) {
+			return true;
+		}
+		// sorted so concurrent flushes lock the rows in the same order
+		Map<Integer, Long> sorted = new TreeMap<Integer, Long>(waterMarks);
+		long now = System.currentTimeMillis();
+		try (PooledConnection con = pool.Acquire()) {
+			try {
+				con.getConnection().setAutoCommit(false);
+				PreparedStatement pStmt = con.prepare(upsertWaterMark);
+				for (Map.Entry<Integer, Long> e : sorted.entrySet()) {
+					pStmt.setInt(1, e.getKey());
+					pStmt.setLong(2, e.getValue());
+					pStmt.setLong(3, now);
+					pStmt.addBatch();
+				}
+				pStmt.executeBatch();
+				con.getConnection().commit();
+			} catch (SQLException e) {
+				HandleSQLException(con, e);
+				throw e;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			logger.error("MySQLStorageEngine save watermarks sql catch exception. Cause:" + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * connection level errors (SQLState class 08) drop the connection from the pool
+	 */
+	private void HandleSQLException(PooledConnection con, SQLException e) {
+		String sqlState = e.getSQLState();
+		if (sqlState == null || sqlState.startsWith("08")) {
+			con.markBroken();
+		}
+	}
+}
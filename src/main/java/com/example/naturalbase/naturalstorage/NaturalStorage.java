@@ -1,288 +1,314 @@
 package com.example.naturalbase.naturalstorage;
 
-import java.util.List;
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.sql.*;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.example.naturalbase.common.NBConfig;
+import com.example.naturalbase.common.NBUtils;
+
 public class NaturalStorage {
-	
+
 	public static final long TIMESTAMP_NOW = -1;
-	
-	// JDBC 驱动名及数据库 URL
-    static final String DB_URL = "jdbc:mysql://localhost:3306/NaturalBaseDemo?user=root&password=gaosi2&autoReconnect=true&failOverReadOnly=false";
-
-    // 数据库的用户名与密码
-    static final String USER = "root";
-    static final String PASS = "gaosi2";
-    
-    static Connection conNaturalBase = null;
-    static Statement stmt = null;
-    static PreparedStatement pStmt = null;
-    
-    // sql 语句
-    static String creatTable = "CREATE TABLE IF NOT EXISTS DATA("
-            + "KNAME      VARCHAR(255) PRIMARY KEY  NOT  NULL,"
-            + "VALUE      BLOB              NOT  NULL,"
-            + "TIMESTAMP  BIGINT            NOT  NULL,"
-            + "DELETE_BIT INT               NOT  NULL,"
-            + "SYNC_BIT   INT               NOT  NULL,"
-            + "DEVICEID   INT               NOT  NULL,"
-            + "INDEX (TIMESTAMP),"
-            + "INDEX (DEVICEID))";
-    static String creatMetaTable = "CREATE TABLE IF NOT EXISTS METADATA("
-            + "KNAME      VARCHAR(255) PRIMARY KEY  NOT  NULL,"
-            + "VALUE      BLOB           NOT  NULL);";
-    static String query1 = "SELECT * FROM DATA WHERE TIMESTAMP > ? AND DEVICEID <> ? ;";
-    static String query2 = "SELECT * FROM DATA WHERE TIMESTAMP > ? AND TIMESTAMP < ? AND DEVICEID <> ?;";
-    static String query3 = "SELECT * FROM DATA WHERE KNAME = ?;";
-    static String query4 = "SELECT * FROM METADATA WHERE KNAME = ?;";
-    static String replace = "REPLACE INTO DATA (KNAME, VALUE, TIMESTAMP, DELETE_BIT, SYNC_BIT, DEVICEID) VALUES (?,?,?,?,?,?);";
-    static String replaceMeta = "REPLACE INTO METADATA (KNAME, VALUE) VALUES (?,?);";
-    
-    private Logger logger = LoggerFactory.getLogger(this.getClass());
+	public static final int LOCAL_DEVICE_ID = 0;
+
+	public static final String ENGINE_MYSQL = "mysql";
+	public static final String ENGINE_LOG = "log";
+
+	// application.properties
+	public static final String CONFIG_ENGINE = "naturalbase.storage.engine";
+	public static final String CONFIG_MYSQL_URL = "naturalbase.storage.mysql.url";
+	public static final String CONFIG_MYSQL_USER = "naturalbase.storage.mysql.user";
+	public static final String CONFIG_MYSQL_PASSWORD = "naturalbase.storage.mysql.password";
+	public static final String CONFIG_MYSQL_POOL_SIZE = "naturalbase.storage.mysql.pool.max-size";
+	public static final String CONFIG_MYSQL_POOL_ACQUIRE_TIMEOUT = "naturalbase.storage.mysql.pool.acquire-timeout-ms";
+	public static final String CONFIG_MYSQL_POOL_VALIDATION_IDLE = "naturalbase.storage.mysql.pool.validation-idle-ms";
+	public static final String CONFIG_MYSQL_POOL_STATEMENT_CACHE = "naturalbase.storage.mysql.pool.statement-cache-size";
+	public static final String CONFIG_MYSQL_FETCH_SIZE = "naturalbase.storage.mysql.fetch-size";
+	public static final String CONFIG_LOG_DIR = "naturalbase.storage.log.dir";
+	public static final String CONFIG_LOG_SEGMENT_BYTES = "naturalbase.storage.log.segment-bytes";
+	public static final String CONFIG_LOG_MEMTABLE_ENTRIES = "naturalbase.storage.log.memtable-entries";
+	public static final String CONFIG_LOG_SYNC_ON_WRITE = "naturalbase.storage.log.sync-on-write";
+	public static final String CONFIG_LOG_GARBAGE_PERCENT = "naturalbase.storage.log.compaction.garbage-percent";
+	public static final String CONFIG_CACHE_MAX_ENTRIES = "naturalbase.storage.cache.max-entries";
+	public static final String CONFIG_COMPRESSION_CODEC = "naturalbase.storage.compression.codec";
+	public static final String CONFIG_COMPRESSION_THRESHOLD = "naturalbase.storage.compression.threshold-bytes";
+
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private StorageEngine engine;
+	// null when naturalbase.storage.cache.max-entries <= 0
+	private DataCache cache;
+	private ValueCodec valueCodec;
+	// GetCurrentTimeStamp is not monotonic below one millisecond
+	private AtomicLong lastLocalTimeStamp = new AtomicLong(0);
 
     public NaturalStorage() {
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            conNaturalBase = DriverManager.getConnection(DB_URL);
-            if(!conNaturalBase.isClosed()) {
-            	logger.debug("Connect database succesful!");
-            }            
-            stmt = conNaturalBase.createStatement();
-            if(0 != stmt.executeLargeUpdate(creatTable)) {
-            	logger.error("Creat table failed!");
-            }
-            if(0 != stmt.executeLargeUpdate(creatMetaTable)) {
-            	logger.error("Creat Meta table failed!");
-            }
-        } catch(SQLException se) {
-            se.printStackTrace();
-            logger.error("NaturalStorage init sql catch exception. Cause:" + se.getCause().toString());
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.error("NaturalStorage init catch exception. Cause:" + e.getCause().toString());
-        } finally {
-        }
-    }
-    
-    public void finalize() {
-    	try {
-    		logger.debug("NaturalStorage start finalize!");
-    		if (!pStmt.isClosed()) {
-    			pStmt.close();
-    		}
-    		if (!stmt.isClosed()) {
-    			stmt.close();
-    		}
-    		if (!conNaturalBase.isClosed()) {
-    			conNaturalBase.close();
+    	String engineName = NBConfig.getString(CONFIG_ENGINE, ENGINE_MYSQL);
+    	if (engineName.equals(ENGINE_LOG)) {
+    		engine = new LogStorageEngine(NBConfig.getString(CONFIG_LOG_DIR, "./naturalbase-data"),
+    				                      NBConfig.getLong(CONFIG_LOG_SEGMENT_BYTES, 64L * 1024 * 1024),
+    				                      NBConfig.getInt(CONFIG_LOG_MEMTABLE_ENTRIES, 10000),
+    				                      NBConfig.getBoolean(CONFIG_LOG_SYNC_ON_WRITE, true),
+    				                      NBConfig.getInt(CONFIG_LOG_GARBAGE_PERCENT, LogStorageEngine.DEFAULT_GARBAGE_PERCENT));
+    	}
+    	else {
+    		if (!engineName.equals(ENGINE_MYSQL)) {
+    			logger.error("NaturalStorage unknow storage engine " + engineName + ", use " + ENGINE_MYSQL);
     		}
-    		logger.debug("NaturalStorage finish finalize!");
+    		ConnectionPool pool = new ConnectionPool(NBConfig.getString(CONFIG_MYSQL_URL, MySQLStorageEngine.DEFAULT_DB_URL),
+    				                                 NBConfig.getString(CONFIG_MYSQL_USER, MySQLStorageEngine.DEFAULT_USER),
+    				                                 NBConfig.getString(CONFIG_MYSQL_PASSWORD, MySQLStorageEngine.DEFAULT_PASS),
+    				                                 NBConfig.getInt(CONFIG_MYSQL_POOL_SIZE, 16),
+    				                                 NBConfig.getLong(CONFIG_MYSQL_POOL_ACQUIRE_TIMEOUT, 5000),
+    				                                 NBConfig.getLong(CONFIG_MYSQL_POOL_VALIDATION_IDLE, 30000),
+    				                                 NBConfig.getInt(CONFIG_MYSQL_POOL_STATEMENT_CACHE, 32));
+    		engine = new MySQLStorageEngine(pool, NBConfig.getInt(CONFIG_MYSQL_FETCH_SIZE, 100));
     	}
-    	catch (Exception e) {
-    		e.printStackTrace();
-    		logger.error("NaturalStorage finalize catch exception. Cause:" + e.getCause().toString());
+    	logger.info("NaturalStorage use storage engine:" + engine.getClass().getSimpleName());
+    	InitCache();
+    }
+
+    public NaturalStorage(StorageEngine inEngine) {
+    	engine = inEngine;
+    	InitCache();
+    }
+
+    private void InitCache() {
+    	valueCodec = new ValueCodec(ValueCodec.FromName(NBConfig.getString(CONFIG_COMPRESSION_CODEC, ValueCodec.NAME_DEFLATE)),
+    			                    NBConfig.getInt(CONFIG_COMPRESSION_THRESHOLD, 256));
+    	int cacheMaxEntries = NBConfig.getInt(CONFIG_CACHE_MAX_ENTRIES, 10000);
+    	if (cacheMaxEntries > 0) {
+    		cache = new DataCache(cacheMaxEntries);
     	}
     }
-    
-    public void ReConnect() {
-    	try {
-			if (!conNaturalBase.isValid(0)) {
-				conNaturalBase = DriverManager.getConnection(DB_URL,USER,PASS);
-	            if(!conNaturalBase.isClosed()) {
-	            	logger.debug("ReConnect database succesful!");
-	            } 
-			} else {
-            	logger.debug("ReConnect Connect is not closed!");
-            }
-		} catch (SQLException e) {
-			e.printStackTrace();
-			logger.error("ReConnect sql catch exception. Cause:" + e.getCause().toString());
-		}	
+
+    public void Close() {
+    	if (cache != null) {
+    		logger.debug("NaturalStorage close data cache. " + cache.getStatistics());
+    	}
+    	engine.Close();
     }
-	
+
 	public long SaveDataFromSync(List<DataItem> dataItemList, int deviceId) {
-		long maxTimeStamp = -1;
-		long tempTimeStamp = -1;
-		if (dataItemList == null) {
-			return maxTimeStamp;
+		Compress(dataItemList);
+		long maxTimeStamp = engine.SaveDataFromSync(dataItemList, deviceId);
+		if (cache != null && dataItemList != null) {
+			for (DataItem dataItem : dataItemList) {
+				cache.Invalidate(dataItem.Key);
+			}
+		}
+		return maxTimeStamp;
+	}
+
+	/*
+	 * writes the whole list in one transaction, the newer timestamp of a key wins
+	 */
+	public SyncWriteResult SaveDataBatchFromSync(List<DataItem> dataItemList, int deviceId) {
+		if (!IsValidBatch(dataItemList)) {
+			// nothing is written, the caller rejects the input
+			logger.error("SaveDataBatchFromSync input error dataItem or Key = null");
+			return new SyncWriteResult(dataItemList.size());
 		}
-		
-		ReConnect();
-		
-		for (int i=0; i<dataItemList.size(); i++) {
-			if (maxTimeStamp == -1) {
-				maxTimeStamp = dataItemList.get(i).TimeStamp;
-			} else {
-				if (maxTimeStamp < dataItemList.get(i).TimeStamp) {
-					maxTimeStamp = dataItemList.get(i).TimeStamp;
+		Compress(dataItemList);
+		SyncWriteResult result = engine.SaveDataBatchFromSync(dataItemList, deviceId);
+		if (cache != null && dataItemList != null) {
+			for (int i = 0; i < dataItemList.size(); i++) {
+				if (!result.success || result.accepted[i]) {
+					cache.Invalidate(dataItemList.get(i).Key);
 				}
 			}
-			try {
-				pStmt = (PreparedStatement) conNaturalBase.prepareStatement(query3);
-				pStmt.setString(1, dataItemList.get(i).Key);
-				ResultSet rs = pStmt.executeQuery();
-				if(rs.next()) {
-					tempTimeStamp = rs.getLong("TIMESTAMP");
-					// 等于再写一次应该也是没有问题的
-					if (tempTimeStamp > dataItemList.get(i).TimeStamp) {
-						break;
-					}
-				}
-				pStmt.clearParameters();
-				pStmt = (PreparedStatement) conNaturalBase.prepareStatement(replace);
-				pStmt.setString(1, dataItemList.get(i).Key);
-				InputStream inBuf = new ByteArrayInputStream(dataItemList.get(i).Value.getBytes("UTF-8"));
-				pStmt.setBlob(2, inBuf);
-				pStmt.setLong(3, dataItemList.get(i).TimeStamp);
-				pStmt.setBoolean(4, dataItemList.get(i).DeleteBit);
-				pStmt.setBoolean(5, true);
-				pStmt.setInt(6, deviceId);
-				pStmt.executeUpdate();
-				rs.close();
-			} catch (SQLException e) {
-				e.printStackTrace();
-				logger.error("NaturalStorage save data sql catch exception. Cause:" + e.getCause().toString());
-			} catch (UnsupportedEncodingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				logger.error("NaturalStorage save data catch UnsupportedEncodingException. Cause:" + e.getCause().toString());
-			}	
 		}
-		return maxTimeStamp;
+		return result;
+	}
+
+	/*
+	 * every item of a batch needs a key, see SyncMessage
+	 */
+	public static boolean IsValidBatch(List<DataItem> dataItemList) {
+		if (dataItemList == null) {
+			return true;
+		}
+		for (DataItem dataItem : dataItemList) {
+			if (dataItem == null || dataItem.Key == null) {
+				return false;
+			}
+		}
+		return true;
 	}
-	
+
 	public List<DataItem> GetUnsyncData(long beginT, long endT, int deviceId) {
-		List<DataItem> dataItemList = new ArrayList<DataItem>();
-		
-		if (endT != TIMESTAMP_NOW && beginT > endT) {
-			logger.debug("GetUnsyncData input error beginT > endT !");
+		List<DataItem> dataItemList = engine.GetUnsyncData(beginT, endT, deviceId);
+		for (DataItem dataItem : dataItemList) {
+			Decompress(dataItem);
 		}
-		
-		ReConnect();
-				
-		if (endT == TIMESTAMP_NOW) {
-			try {
-				pStmt = (PreparedStatement) conNaturalBase.prepareStatement(query1);
-				pStmt.setLong(1, beginT);
-				pStmt.setInt(2, deviceId);
-				ResultSet rs = pStmt.executeQuery();
-				while(rs.next()) {
-					DataItem dataItem = new DataItem();
-					dataItem.Key = rs.getString("KNAME");
-					Blob bData = rs.getBlob("VALUE");
-					String strData = new String(bData.getBytes(1, (int)bData.length()), "UTF-8");
-					dataItem.Value = strData;
-					dataItem.TimeStamp = rs.getLong("TIMESTAMP");
-					dataItem.DeleteBit = rs.getBoolean("DELETE_BIT");
-					dataItemList.add(dataItem);
-				}
-				rs.close();
-			} catch (SQLException e) {
-				e.printStackTrace();
-				logger.error("NaturalStorage get data 1 sql catch exception. Cause:" + e.getCause().toString());
-			} catch (UnsupportedEncodingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				logger.error("NaturalStorage get data catch UnsupportedEncodingException. Cause:" + e.getCause().toString());
-			}			
-		} else {
-			try {
-				pStmt = (PreparedStatement) conNaturalBase.prepareStatement(query2);
-				pStmt.setLong(1, beginT);
-				pStmt.setLong(2, endT);
-				pStmt.setInt(3, deviceId);
-				ResultSet rs = pStmt.executeQuery();
-				while(rs.next()) {
-					DataItem dataItem = new DataItem();
-					dataItem.Key = rs.getString("KNAME");
-					dataItem.Value = rs.getString("VALUE");
-					dataItem.TimeStamp = rs.getLong("TIMESTAMP");
-					dataItem.DeleteBit = rs.getBoolean("DELETE_BIT");
-					dataItemList.add(dataItem);
+		return dataItemList;
+	}
+
+	/*
+	 * bounded chunk of unsync data, continue after page.lastSequence while page.hasMore
+	 */
+	public SyncPage GetUnsyncDataPage(long afterSequence, int deviceId, int maxItems, long maxBytes) {
+		return GetUnsyncDataPage(afterSequence, deviceId, maxItems, maxBytes, false);
+	}
+
+	/*
+	 * keepCompressed hands out the stored bytes with DataItem.Codec set, for
+	 * clients that decompress themselves
+	 */
+	public SyncPage GetUnsyncDataPage(long afterSequence, int deviceId, int maxItems, long maxBytes, boolean keepCompressed) {
+		final List<DataItem> dataItemList = new ArrayList<DataItem>();
+		IDataItemVisitor collector = new IDataItemVisitor() {
+			@Override
+			public boolean visit(DataItem dataItem) {
+				dataItemList.add(dataItem);
+				return true;
+			}
+		};
+		SyncPage page = ScanUnsyncData(afterSequence, deviceId, maxItems, maxBytes, keepCompressed, collector);
+		page.dataItemList = dataItemList;
+		return page;
+	}
+
+	/*
+	 * keepCompressed as in GetUnsyncDataPage, without collecting the page
+	 */
+	public SyncPage ScanUnsyncData(long afterSequence, int deviceId, int maxItems, long maxBytes, boolean keepCompressed, IDataItemVisitor visitor) {
+		return keepCompressed ? engine.ScanUnsyncData(afterSequence, deviceId, maxItems, maxBytes, visitor)
+				              : ScanUnsyncData(afterSequence, deviceId, maxItems, maxBytes, visitor);
+	}
+
+	/*
+	 * the visitor gets the raw values, a value that can not be decompressed fails the page
+	 */
+	public SyncPage ScanUnsyncData(long afterSequence, int deviceId, int maxItems, long maxBytes, final IDataItemVisitor visitor) {
+		final boolean[] isCorrupt = new boolean[1];
+		SyncPage page = engine.ScanUnsyncData(afterSequence, deviceId, maxItems, maxBytes, new IDataItemVisitor() {
+			@Override
+			public boolean visit(DataItem dataItem) {
+				if (!Decompress(dataItem)) {
+					isCorrupt[0] = true;
+					return false;
 				}
-				rs.close();
-			} catch (SQLException e) {
-				e.printStackTrace();
-				logger.error("NaturalStorage get data 2 sql catch exception. Cause:" + e.getCause().toString());
+				return visitor.visit(dataItem);
 			}
+		});
+		if (isCorrupt[0]) {
+			page.success = false;
 		}
-		return dataItemList;
+		return page;
 	}
-	
+
+	/*
+	 * local write, synced to every device. TimeStamp <= 0 means now.
+	 * Returns false if the write failed or a newer version is already stored.
+	 */
 	public boolean SaveData(DataItem dataItem) {
-		return true;
+		if (dataItem == null || dataItem.Key == null) {
+			logger.error("SaveData input error dataItem = null");
+			return false;
+		}
+		if (dataItem.TimeStamp <= 0) {
+			long now = NBUtils.GetCurrentTimeStamp();
+			dataItem.TimeStamp = lastLocalTimeStamp.updateAndGet(last -> Math.max(last + 1, now));
+		}
+		List<DataItem> dataItemList = new ArrayList<DataItem>();
+		dataItemList.add(dataItem);
+		SyncWriteResult result = SaveDataBatchFromSync(dataItemList, LOCAL_DEVICE_ID);
+		return result.success && result.accepted[0];
 	}
-	
+
+	/*
+	 * null if the key does not exist or was removed
+	 */
 	public DataItem GetData(String key) {
-		return new DataItem();
+		if (key == null) {
+			logger.error("GetData input error key = null");
+			return null;
+		}
+		DataItem dataItem = (cache != null) ? cache.Get(key) : null;
+		if (dataItem == null) {
+			long stamp = (cache != null) ? cache.Stamp() : 0;
+			dataItem = engine.GetData(key);
+			if (dataItem == null || !Decompress(dataItem)) {
+				return null;
+			}
+			if (cache != null) {
+				cache.PutIfUnchanged(dataItem, stamp);
+			}
+		}
+		if (dataItem.DeleteBit) {
+			return null;
+		}
+		return dataItem;
 	}
-	
+
+	/*
+	 * writes a tombstone so the delete is synced like any other write
+	 */
 	public boolean RemoveData(String key) {
-		return true;
+		return SaveData(Tombstone(key));
 	}
-	
-	public boolean SaveMetaData(DataItem dataItem) {
-		if (dataItem == null) {
-			logger.error("SaveMetaData input error dataItem = null");
-			return false;
+
+	/*
+	 * the item RemoveData writes, SaveData(Tombstone(key)) leaves its sequence in it
+	 */
+	public static DataItem Tombstone(String key) {
+		DataItem dataItem = new DataItem();
+		dataItem.Key = key;
+		dataItem.Value = new byte[0];
+		dataItem.DeleteBit = true;
+		return dataItem;
+	}
+
+	private void Compress(List<DataItem> dataItemList) {
+		if (dataItemList == null) {
+			return;
+		}
+		for (DataItem dataItem : dataItemList) {
+			valueCodec.Compress(dataItem);
 		}
-		
-		ReConnect();
-		
+	}
+
+	private boolean Decompress(DataItem dataItem) {
 		try {
-			pStmt = (PreparedStatement) conNaturalBase.prepareStatement(replaceMeta);
-			pStmt.setString(1, dataItem.Key);
-			InputStream inBuf = new ByteArrayInputStream(dataItem.Value.getBytes("UTF-8"));
-			pStmt.setBlob(2, inBuf);
-			pStmt.executeUpdate();
-		} catch (SQLException e) {
-			e.printStackTrace();
-			logger.error("NaturalStorage save meta data sql catch exception. Cause:" + e.getCause().toString());
-		} catch (UnsupportedEncodingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			logger.error("NaturalStorage save meta data catch UnsupportedEncodingException. Cause:" + e.getCause().toString());
+			ValueCodec.Decompress(dataItem);
+			return true;
 		}
-		
-		return true;
+		catch (IOException e) {
+			logger.error("NaturalStorage decompress value of key " + dataItem.Key + " failed. Cause:" + e.getMessage());
+			return false;
+		}
+	}
+
+	/*
+	 * null when the cache is disabled
+	 */
+	public DataCache getDataCache() {
+		return cache;
+	}
+
+	public int PurgeTombstones(long maxSequence, int limit) {
+		return engine.PurgeTombstones(maxSequence, limit);
+	}
+
+	public boolean SaveMetaData(DataItem dataItem) {
+		return engine.SaveMetaData(dataItem);
 	}
-	
+
 	public DataItem GetMetaData(String key) {
-		if (key == null) {
-			logger.error("GetMetaData input error key = null");
-			return null;
-		}
-		
-		ReConnect();
-		
-		try {
-			pStmt = (PreparedStatement) conNaturalBase.prepareStatement(query4);
-			pStmt.setString(1,key);
-			ResultSet rs = pStmt.executeQuery();
-			if(rs.next()) {
-				DataItem dataItem = new DataItem();
-				dataItem.Key = rs.getString("KNAME");
-				Blob bData = rs.getBlob("VALUE");
-				String strData = new String(bData.getBytes(1, (int)bData.length()), "UTF-8");
-				dataItem.Value = strData;
-				rs.close();
-				return dataItem;
-			}
-			rs.close();
-		} catch (SQLException e) {
-			e.printStackTrace();
-			logger.error("NaturalStorage get meta data sql catch exception. Cause:" + e.getCause().toString());
-		} catch (UnsupportedEncodingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			logger.error("NaturalStorage get meta data catch UnsupportedEncodingException. Cause:" + e.getCause().toString());
-		}	
-		return null;
+		return engine.GetMetaData(key);
+	}
+
+	public Map<Integer, Long> LoadWaterMarks() {
+		return engine.LoadWaterMarks();
+	}
+
+	public boolean SaveWaterMarks(Map<Integer, Long> waterMarks) {
+		return engine.SaveWaterMarks(waterMarks);
 	}
 }
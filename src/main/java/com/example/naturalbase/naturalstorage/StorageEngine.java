@@ -0,0 +1,38 @@
+package com.example.naturalbase.naturalstorage;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Storage backend used by NaturalStorage. Select one with
+ * naturalbase.storage.engine in application.properties.
+ */
+public interface StorageEngine {
+	public long SaveDataFromSync(List<DataItem> dataItemList, int deviceId);
+	public SyncWriteResult SaveDataBatchFromSync(List<DataItem> dataItemList, int deviceId);
+	public List<DataItem> GetUnsyncData(long beginT, long endT, int deviceId);
+	/*
+	 * visits the items with a sequence after afterSequence in sequence order that
+	 * were not written by deviceId, stops at maxItems or once maxBytes is reached
+	 */
+	public SyncPage ScanUnsyncData(long afterSequence, int deviceId, int maxItems, long maxBytes, IDataItemVisitor visitor);
+	/*
+	 * point read of one data key, deleted items are returned with DeleteBit set,
+	 * null if the key was never written
+	 */
+	public DataItem GetData(String key);
+	/*
+	 * removes up to limit deleted items with a sequence <= maxSequence, returns
+	 * how many were removed or -1 on error
+	 */
+	public int PurgeTombstones(long maxSequence, int limit);
+	public boolean SaveMetaData(DataItem dataItem);
+	public DataItem GetMetaData(String key);
+	// device id -> last acked sequence
+	public Map<Integer, Long> LoadWaterMarks();
+	/*
+	 * stores the watermarks in one write, a stored watermark never moves backwards
+	 */
+	public boolean SaveWaterMarks(Map<Integer, Long> waterMarks);
+	public void Close();
+}
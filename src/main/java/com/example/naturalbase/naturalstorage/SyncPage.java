@@ -0,0 +1,31 @@
+package com.example.naturalbase.naturalstorage;
+
+import java.util.List;
+
+/*
+ * One bounded chunk of unsync data. lastSequence is the sequence of the last
+ * item returned, hasMore tells the device to request again after it.
+ */
+public class SyncPage {
+	// null when the items were handed to an IDataItemVisitor
+	public List<DataItem> dataItemList;
+	public int itemCount;
+	public long byteCount;
+	public long lastSequence;
+	public boolean hasMore;
+	public boolean success;
+
+	/*
+	 * rough wire size of an item, used for the page byte budget
+	 */
+	public static long EstimateSize(DataItem dataItem) {
+		long size = 32;
+		if (dataItem.Key != null) {
+			size += dataItem.Key.length();
+		}
+		if (dataItem.Value != null) {
+			size += dataItem.Value.length;
+		}
+		return size;
+	}
+}
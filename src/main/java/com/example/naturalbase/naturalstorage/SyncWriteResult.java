@@ -0,0 +1,51 @@
+package com.example.naturalbase.naturalstorage;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Result of a batch write. accepted[i] tells whether dataItemList[i] was
+ * written; an item is rejected when a newer version of its key is already
+ * stored or appears later in the same batch.
+ */
+public class SyncWriteResult {
+	public boolean success;
+	// max timestamp of all items in the batch, -1 for an empty batch
+	public long maxTimeStamp = -1;
+	// max timestamp of the accepted items, -1 if nothing was accepted
+	public long maxAcceptedTimeStamp = -1;
+	public int acceptedCount;
+	// sequences given to the accepted items in batch order, 0 if nothing was accepted
+	public long firstSequence;
+	public long lastSequence;
+	public boolean[] accepted;
+
+	public SyncWriteResult(int size) {
+		accepted = new boolean[size];
+	}
+
+	/*
+	 * keeps only the newest item of every key inside the batch, on equal
+	 * timestamps the later item wins. Returns the index of the kept item per key.
+	 */
+	static Map<String, Integer> NewestPerKey(List<DataItem> dataItemList) {
+		Map<String, Integer> newest = new HashMap<String, Integer>();
+		for (int i = 0; i < dataItemList.size(); i++) {
+			DataItem dataItem = dataItemList.get(i);
+			Integer current = newest.get(dataItem.Key);
+			if (current == null || dataItemList.get(current).TimeStamp <= dataItem.TimeStamp) {
+				newest.put(dataItem.Key, i);
+			}
+		}
+		return newest;
+	}
+
+	void Accept(int index, long timeStamp) {
+		accepted[index] = true;
+		acceptedCount++;
+		if (maxAcceptedTimeStamp < timeStamp) {
+			maxAcceptedTimeStamp = timeStamp;
+		}
+	}
+}
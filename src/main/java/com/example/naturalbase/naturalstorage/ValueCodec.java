@@ -0,0 +1,120 @@
+package com.example.naturalbase.naturalstorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.example.naturalbase.common.DeflaterPool;
+import com.example.naturalbase.common.InflaterPool;
+
+/*
+ * Optional compression of stored values. The codec is kept next to the value
+ * (DATA.CODEC, a flag in the log record), rows written before it have
+ * CODEC_NONE and are read as they are.
+ * Compressed values are zlib streams, so clients that accept the codec can be
+ * sent the stored bytes as they are.
+ */
+public class ValueCodec {
+
+	public static final byte CODEC_NONE = 0;
+	public static final byte CODEC_DEFLATE = 1;
+
+	public static final String NAME_NONE = "none";
+	public static final String NAME_DEFLATE = "deflate";
+
+	// a compressed value is only kept if it saves at least 1/8
+	private static final int MIN_SAVING_SHIFT = 3;
+
+	private static final DeflaterPool DEFLATERS = new DeflaterPool(Deflater.BEST_SPEED, false, DeflaterPool.MAX_IDLE);
+	private static final InflaterPool INFLATERS = new InflaterPool(false, DeflaterPool.MAX_IDLE);
+
+	private byte codec;
+	private int threshold;
+
+	public ValueCodec(byte inCodec, int inThreshold) {
+		codec = inCodec;
+		threshold = inThreshold;
+	}
+
+	public static byte FromName(String name) {
+		if (NAME_DEFLATE.equals(name)) {
+			return CODEC_DEFLATE;
+		}
+		return CODEC_NONE;
+	}
+
+	public static String Name(byte codec) {
+		return (codec == CODEC_DEFLATE) ? NAME_DEFLATE : NAME_NONE;
+	}
+
+	/*
+	 * compresses dataItem.Value in place if it is at least threshold bytes and
+	 * gets noticeably smaller
+	 */
+	public void Compress(DataItem dataItem) {
+		if (codec == CODEC_NONE || dataItem.Codec != CODEC_NONE || dataItem.Value == null || dataItem.Value.length < threshold) {
+			return;
+		}
+		byte[] compressed = Deflate(dataItem.Value);
+		if (compressed.length <= dataItem.Value.length - (dataItem.Value.length >> MIN_SAVING_SHIFT)) {
+			dataItem.Value = compressed;
+			dataItem.Codec = codec;
+		}
+	}
+
+	/*
+	 * turns dataItem.Value back into the raw bytes
+	 */
+	public static void Decompress(DataItem dataItem) throws IOException {
+		if (dataItem.Codec == CODEC_NONE || dataItem.Value == null) {
+			return;
+		}
+		if (dataItem.Codec != CODEC_DEFLATE) {
+			throw new IOException("unknow value codec " + dataItem.Codec + " of key " + dataItem.Key);
+		}
+		dataItem.Value = Inflate(dataItem.Value);
+		dataItem.Codec = CODEC_NONE;
+	}
+
+	private static byte[] Deflate(byte[] value) {
+		Deflater deflater = DEFLATERS.Acquire();
+		try {
+			deflater.setInput(value);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 16);
+			byte[] buf = new byte[Math.min(value.length + 16, 8192)];
+			while (!deflater.finished()) {
+				out.write(buf, 0, deflater.deflate(buf));
+			}
+			return out.toByteArray();
+		}
+		finally {
+			DEFLATERS.Release(deflater);
+		}
+	}
+
+	private static byte[] Inflate(byte[] value) throws IOException {
+		Inflater inflater = INFLATERS.Acquire();
+		try {
+			inflater.setInput(value);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(value.length * 4);
+			byte[] buf = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buf);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("truncated compressed value");
+				}
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		}
+		catch (DataFormatException e) {
+			throw new IOException("corrupt compressed value", e);
+		}
+		finally {
+			INFLATERS.Release(inflater);
+		}
+	}
+}
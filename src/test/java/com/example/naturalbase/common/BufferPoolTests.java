@@ -0,0 +1,57 @@
+package com.example.naturalbase.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.example.naturalbase.common.BufferPool.PooledBuffer;
+
+public class BufferPoolTests {
+
+	private static final int[] SIZE_CLASSES = {256, 4096};
+
+	@Test
+	public void releasedBufferIsReused() {
+		BufferPool pool = new BufferPool("test", true, SIZE_CLASSES, 4, false);
+		PooledBuffer first = pool.Allocate(300);
+		ByteBuffer buffer = first.buffer();
+		assertEquals(4096, buffer.capacity());
+		assertEquals(300, buffer.limit());
+		first.retain();
+		first.release();
+		// still referenced once
+		assertEquals(1, first.refCount());
+		first.release();
+
+		PooledBuffer second = pool.Allocate(1000);
+		assertSame(buffer, second.buffer());
+		assertEquals(0, second.buffer().position());
+		assertEquals(1000, second.buffer().limit());
+		assertEquals(1, pool.getAllocatedCount());
+		assertEquals(1, pool.getReusedCount());
+		second.release();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void doubleReleaseThrows() {
+		BufferPool pool = new BufferPool("test", false, SIZE_CLASSES, 4, false);
+		PooledBuffer buffer = pool.Allocate(10);
+		buffer.release();
+		buffer.release();
+	}
+
+	@Test
+	public void unreleasedBufferIsReportedAsLeak() throws Exception {
+		BufferPool pool = new BufferPool("test", false, SIZE_CLASSES, 4, true);
+		pool.Allocate(10);
+		for (int i = 0; i < 50 && pool.getLeakCount() == 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertTrue(pool.getLeakCount() == 1);
+	}
+}
@@ -0,0 +1,47 @@
+package com.example.naturalbase.common;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class HashedWheelTimerTests {
+
+	@Test
+	public void timeoutFiresAfterDelay() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer("Test", 10, 8);
+		try {
+			CountDownLatch fired = new CountDownLatch(1);
+			long start = System.nanoTime();
+			// more than one round of the wheel
+			timer.newTimeout(() -> fired.countDown(), 200);
+			assertTrue(fired.await(5, TimeUnit.SECONDS));
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+		}
+		finally {
+			timer.stop();
+		}
+	}
+
+	@Test
+	public void cancelledTimeoutDoesNotRun() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer("Test", 10, 8);
+		try {
+			AtomicBoolean isRun = new AtomicBoolean(false);
+			CountDownLatch later = new CountDownLatch(1);
+			HashedWheelTimer.Timeout timeout = timer.newTimeout(() -> isRun.set(true), 50);
+			timer.newTimeout(() -> later.countDown(), 150);
+			timeout.cancel();
+			assertTrue(later.await(5, TimeUnit.SECONDS));
+			assertFalse(isRun.get());
+			assertTrue(timeout.isCancelled());
+		}
+		finally {
+			timer.stop();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+public class BinaryMessageCodecTests {
+
+	private static Logger logger = LoggerFactory.getLogger(BinaryMessageCodecTests.class);
+
+	@Test
+	public void decodeGivesWhatTheJsonParserGives() {
+		String json = "{\"MessageHeader\":{\"MessageType\":\"Sync\",\"RequestId\":\"unused\",\"DeviceId\":7}," +
+				      "\"Message\":{\"DataItemSize\":2,\"DataItem\":[" +
+				      "{\"Key\":\"中文\",\"Value\":\"text\",\"TimeStamp\":\"1544000000000\",\"DeleteBit\":false}," +
+				      "{\"Key\":\"b\",\"Value\":\"" + Base64.getEncoder().encodeToString(new byte[] {(byte)0xff, 0, 1}) +
+				      "\",\"ValueEncoding\":\"base64\",\"TimeStamp\":\"-5\",\"DeleteBit\":true}]," +
+				      "\"NotAKey\":[\"007\",\"-0\",\"0\",\"9223372036854775807\",\"99999999999999999999\",null,1.5,-3,4000000000]}}";
+		JSONObject expected = JSON.parseObject(json);
+		byte[] binary = BinaryMessageCodec.Encode(expected);
+		assertTrue(BinaryMessageCodec.IsBinary(binary, 0, binary.length));
+		assertEquals(expected, BinaryMessageCodec.Decode(binary, 0, binary.length));
+	}
+
+	@Test
+	public void writerEncodesLikeEncode() throws Exception {
+		JSONObject item = new JSONObject();
+		item.put("Key", "a");
+		item.put("TimeStamp", "1000");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryMessageWriter writer = new BinaryMessageWriter(out);
+		writer.startObject();
+		writer.writeKey("DataItem");
+		writer.startArray();
+		writer.writeValue(item);
+		writer.writeValue(item);
+		writer.endArray();
+		writer.writeKey("HasMore");
+		writer.writeValue(false);
+		writer.endObject();
+		writer.flush();
+
+		JSONObject expected = new JSONObject(true);
+		expected.put("DataItem", Arrays.asList(item, item));
+		expected.put("HasMore", false);
+		assertArrayEquals(BinaryMessageCodec.Encode(expected), out.toByteArray());
+	}
+
+	@Test
+	public void malformedMessagesAreRejected() {
+		byte[] valid = BinaryMessageCodec.Encode(JSON.parseObject("{\"Key\":\"abc\",\"Found\":[1,2]}"));
+		for (int length = 0; length < valid.length; length++) {
+			AssertRejected(Arrays.copyOf(valid, length));
+		}
+		byte[] trailing = Arrays.copyOf(valid, valid.length + 1);
+		AssertRejected(trailing);
+		AssertRejected(new byte[] {(byte)BinaryMessageCodec.MAGIC, 2, BinaryMessageCodec.TAG_OBJECT, BinaryMessageCodec.TAG_END});
+		AssertRejected(new byte[] {(byte)BinaryMessageCodec.MAGIC, 1, 0x7F});
+		AssertRejected(new byte[] {(byte)BinaryMessageCodec.MAGIC, 1, BinaryMessageCodec.TAG_OBJECT, 0x7F, BinaryMessageCodec.TAG_NULL, BinaryMessageCodec.TAG_END});
+		AssertRejected(new byte[] {(byte)BinaryMessageCodec.MAGIC, 1, BinaryMessageCodec.TAG_STRING, 1, 'a'});
+		byte[] deep = new byte[1000];
+		deep[0] = (byte)BinaryMessageCodec.MAGIC;
+		deep[1] = 1;
+		deep[2] = BinaryMessageCodec.TAG_OBJECT;
+		deep[3] = 2;
+		Arrays.fill(deep, 4, deep.length, (byte)BinaryMessageCodec.TAG_ARRAY);
+		AssertRejected(deep);
+	}
+
+	/*
+	 * a ResponseSync page as the server sends it, encoded and decoded by both codecs
+	 */
+	@Test
+	public void largePageIsSmallerThanJson() {
+		JSONObject message = new JSONObject();
+		JSONArray dataItemArray = new JSONArray();
+		for (int i = 0; i < 500; i++) {
+			JSONObject item = new JSONObject();
+			item.put("Key", "device/settings/key-" + i);
+			item.put("Value", "{\"enabled\":true,\"level\":" + i + "}");
+			item.put("TimeStamp", String.valueOf(1544000000000L + i));
+			item.put("DeleteBit", false);
+			dataItemArray.add(item);
+		}
+		message.put("DataItem", dataItemArray);
+		message.put("DataItemSize", dataItemArray.size());
+		message.put("Sequence", "123456");
+		message.put("HasMore", false);
+		JSONObject response = new JSONObject();
+		JSONObject header = new JSONObject();
+		header.put("MessageType", "ResponseSync");
+		header.put("RequestId", "unused");
+		header.put("DeviceId", 0);
+		response.put("MessageHeader", header);
+		response.put("Message", message);
+
+		byte[] json = response.toJSONString().getBytes(StandardCharsets.UTF_8);
+		byte[] binary = BinaryMessageCodec.Encode(response);
+		assertEquals(JSON.parseObject(new String(json, StandardCharsets.UTF_8)), BinaryMessageCodec.Decode(binary, 0, binary.length));
+
+		logger.info("500 item ResponseSync: fastjson " + json.length + " bytes, binary " + binary.length + " bytes");
+		assertTrue(binary.length * 10 < json.length * 7);
+	}
+
+	private static void AssertRejected(byte[] message) {
+		try {
+			BinaryMessageCodec.Decode(message, 0, message.length);
+			fail("decoded " + Arrays.toString(message));
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
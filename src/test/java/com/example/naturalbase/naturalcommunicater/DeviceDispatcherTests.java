@@ -0,0 +1,63 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DeviceDispatcherTests {
+
+	@Test
+	public void tasksOfOneDeviceRunInOrder() throws Exception {
+		DeviceDispatcher dispatcher = new DeviceDispatcher("Test", 4, 1000);
+		List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(500);
+		for (int i = 0; i < 500; i++) {
+			final int n = i;
+			assertTrue(dispatcher.Submit(1, () -> {
+				order.add(n);
+				done.countDown();
+			}));
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 500; i++) {
+			assertEquals(i, order.get(i).intValue());
+		}
+		dispatcher.Close();
+	}
+
+	@Test
+	public void blockedDeviceDoesNotStallOthers() throws Exception {
+		DeviceDispatcher dispatcher = new DeviceDispatcher("Test", 2, 2);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		dispatcher.Submit(1, () -> {
+			started.countDown();
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		CountDownLatch other = new CountDownLatch(1);
+		dispatcher.Submit(2, other::countDown);
+		assertTrue(other.await(5, TimeUnit.SECONDS));
+
+		// device 1 queue is bounded while its worker is stuck
+		assertTrue(dispatcher.Submit(1, () -> {}));
+		assertTrue(dispatcher.Submit(1, () -> {}));
+		assertFalse(dispatcher.Submit(1, () -> {}));
+		assertEquals(1, dispatcher.getRejectedCount());
+		release.countDown();
+		dispatcher.Close();
+	}
+}
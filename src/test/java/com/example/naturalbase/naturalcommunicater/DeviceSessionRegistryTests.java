@@ -0,0 +1,54 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeviceSessionRegistryTests {
+
+	@Test
+	public void offlineOfReplacedChannelIsStale() {
+		DeviceSessionRegistry registry = new DeviceSessionRegistry();
+		ITcpChannel oldChannel = mock(ITcpChannel.class);
+		ITcpChannel newChannel = mock(ITcpChannel.class);
+		List<ITcpChannel> replaced = new ArrayList<ITcpChannel>();
+
+		DeviceSessionRegistry.Session first = registry.Open(1, oldChannel, replaced::add);
+		DeviceSessionRegistry.Session second = registry.Open(1, newChannel, replaced::add);
+		assertTrue(second.generation > first.generation);
+		assertEquals(1, replaced.size());
+		assertSame(oldChannel, replaced.get(0));
+		// same channel again is not a new session
+		assertNull(registry.Open(1, newChannel, replaced::add));
+
+		assertNull(registry.Close(1, oldChannel));
+		assertSame(newChannel, registry.Get(1));
+	}
+
+	@Test
+	public void expireFailsOnceTheDeviceReconnected() {
+		DeviceSessionRegistry registry = new DeviceSessionRegistry();
+		ITcpChannel first = mock(ITcpChannel.class);
+		ITcpChannel second = mock(ITcpChannel.class);
+
+		registry.Open(1, first, null);
+		DeviceSessionRegistry.Session closed = registry.Close(1, first);
+		assertNotNull(closed);
+		assertNull(registry.Get(1));
+		registry.Open(1, second, null);
+		DeviceSessionRegistry.Session closedAgain = registry.Close(1, second);
+		// the offline of the first connection comes too late
+		assertFalse(registry.Expire(closed));
+		assertTrue(registry.Expire(closedAgain));
+		assertNull(registry.GetSession(1));
+	}
+}
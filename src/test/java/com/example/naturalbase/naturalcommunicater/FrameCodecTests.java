@@ -0,0 +1,66 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameCodecTests {
+
+	private List<Integer> types = new ArrayList<Integer>();
+	private List<byte[]> payloads = new ArrayList<byte[]>();
+
+	private IFrameHandler collector = (type, payload, length) -> {
+		types.add(type);
+		payloads.add(Arrays.copyOf(payload, length));
+	};
+
+	@Test
+	public void framesSplitAtEveryByteAreReassembled() {
+		byte[] big = new byte[70000];
+		for (int i = 0; i < big.length; i++) {
+			big[i] = (byte)i;
+		}
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		byte[] online = FrameCodec.EncodeLegacy(TCPChannel.TCP_MESSAGE_TYPE_DEVICE_ONLINE, "42".getBytes());
+		byte[] data = FrameCodec.Encode(TCPChannel.TCP_MESSAGE_TYPE_DATA, big, true);
+		byte[] heartBeat = new byte[]{(byte)TCPChannel.TCP_MESSAGE_TYPE_HEART_BEAT, 0x0};
+		stream.write(online, 0, online.length);
+		stream.write(data, 0, data.length);
+		stream.write(heartBeat, 0, heartBeat.length);
+		byte[] bytes = stream.toByteArray();
+
+		FrameCodec codec = new FrameCodec();
+		ByteBuffer in = ByteBuffer.allocate(1);
+		for (byte b : bytes) {
+			in.clear();
+			in.put(b);
+			in.flip();
+			assertTrue(codec.Decode(in, collector));
+		}
+		assertEquals(Arrays.asList(TCPChannel.TCP_MESSAGE_TYPE_DEVICE_ONLINE, TCPChannel.TCP_MESSAGE_TYPE_DATA,
+				                   TCPChannel.TCP_MESSAGE_TYPE_HEART_BEAT), types);
+		assertArrayEquals("42".getBytes(), payloads.get(0));
+		assertArrayEquals(big, payloads.get(1));
+		assertEquals(0, payloads.get(2).length);
+	}
+
+	@Test
+	public void corruptedOrOversizedFramesAreRejected() {
+		byte[] frame = FrameCodec.Encode(TCPChannel.TCP_MESSAGE_TYPE_DATA, "payload".getBytes(), true);
+		frame[6] ^= 0x1;
+		assertFalse(new FrameCodec().Decode(ByteBuffer.wrap(frame), collector));
+
+		byte[] large = FrameCodec.Encode(TCPChannel.TCP_MESSAGE_TYPE_DATA, new byte[200], false);
+		assertFalse(new FrameCodec(100).Decode(ByteBuffer.wrap(large), collector));
+		assertTrue(types.isEmpty());
+	}
+}
@@ -0,0 +1,106 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class HttpCompressionTests {
+
+	private static final byte[] BODY = Body();
+
+	@Test
+	public void requestBodiesAreInflated() throws Exception {
+		HttpCompression compression = new HttpCompression(true, 1024, 6);
+		ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+			out.write(BODY);
+		}
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(BODY, ReadAll(compression.DecodeRequest(new ByteArrayInputStream(gzip.toByteArray()), "gzip")));
+		}
+
+		byte[] corrupt = gzip.toByteArray();
+		corrupt[corrupt.length - 5] ^= 1;
+		try {
+			ReadAll(compression.DecodeRequest(new ByteArrayInputStream(corrupt), "gzip"));
+			fail("corrupt gzip trailer accepted");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		assertTrue(HttpCompression.IsSupported(null));
+		assertTrue(HttpCompression.IsSupported("GZIP"));
+		assertTrue(!HttpCompression.IsSupported("br"));
+	}
+
+	@Test
+	public void responsesAreCompressedAboveTheThreshold() throws Exception {
+		HttpCompression compression = new HttpCompression(true, 1024, 6);
+		assertEquals("gzip", compression.NegotiateResponse("deflate, gzip;q=0.5"));
+		assertEquals("deflate", compression.NegotiateResponse("gzip;q=0, deflate"));
+		assertNull(compression.NegotiateResponse("identity"));
+		assertNull(new HttpCompression(false, 1024, 6).NegotiateResponse("gzip"));
+
+		MockHttpServletResponse small = new MockHttpServletResponse();
+		try (OutputStream out = compression.NewResponseStream(small, "gzip")) {
+			out.write("{}".getBytes(StandardCharsets.UTF_8));
+		}
+		assertNull(small.getHeader(HttpCompression.HEADER_CONTENT_ENCODING));
+		assertEquals("{}", small.getContentAsString());
+
+		for (int i = 0; i < 3; i++) {
+			MockHttpServletResponse gzip = new MockHttpServletResponse();
+			try (OutputStream out = compression.NewResponseStream(gzip, "gzip")) {
+				// in pieces, like a streamed ResponseSync
+				for (int off = 0; off < BODY.length; off += 100) {
+					out.write(BODY, off, Math.min(100, BODY.length - off));
+				}
+			}
+			assertEquals("gzip", gzip.getHeader(HttpCompression.HEADER_CONTENT_ENCODING));
+			assertTrue(gzip.getContentAsByteArray().length < BODY.length / 4);
+			assertArrayEquals(BODY, ReadAll(new GZIPInputStream(new ByteArrayInputStream(gzip.getContentAsByteArray()))));
+		}
+
+		MockHttpServletResponse deflate = new MockHttpServletResponse();
+		try (OutputStream out = compression.NewResponseStream(deflate, "deflate")) {
+			out.write(BODY);
+		}
+		assertEquals("deflate", deflate.getHeader(HttpCompression.HEADER_CONTENT_ENCODING));
+		assertArrayEquals(BODY, ReadAll(new InflaterInputStream(new ByteArrayInputStream(deflate.getContentAsByteArray()))));
+	}
+
+	private static byte[] Body() {
+		StringBuilder json = new StringBuilder("{\"DataItem\":[");
+		for (int i = 0; i < 200; i++) {
+			json.append("{\"Key\":\"key-").append(i).append("\",\"TimeStamp\":\"").append(1544000000000L + i).append("\"},");
+		}
+		return json.append("{}]}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] ReadAll(InputStream in) throws IOException {
+		try (InputStream input = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[333];
+			int n;
+			while ((n = input.read(buf)) >= 0) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+}
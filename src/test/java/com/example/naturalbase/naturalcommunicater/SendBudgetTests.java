@@ -0,0 +1,39 @@
+package com.example.naturalbase.naturalcommunicater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SendBudgetTests {
+
+	@Test
+	public void coalescibleFramesAreDroppedBetweenHighAndLowWatermark() {
+		SendBudget budget = new SendBudget(1000, 500, 100, 60 * 1000);
+		assertEquals(SendBudget.RESULT_ACCEPTED, budget.Reserve(600, false));
+		assertTrue(budget.isPaused());
+		assertEquals(SendBudget.RESULT_DROPPED, budget.Reserve(10, true));
+		assertEquals(SendBudget.RESULT_ACCEPTED, budget.Reserve(300, false));
+		assertEquals(SendBudget.RESULT_REJECTED, budget.Reserve(200, false));
+
+		budget.Release(600);
+		// 300 queued, still above the low watermark
+		assertTrue(budget.isPaused());
+		assertEquals(SendBudget.RESULT_DROPPED, budget.Reserve(10, true));
+		budget.Release(300);
+		assertFalse(budget.isPaused());
+		assertEquals(SendBudget.RESULT_ACCEPTED, budget.Reserve(10, true));
+		assertEquals(2, budget.getDroppedCount());
+		assertEquals(1, budget.getRejectedCount());
+		assertEquals(900, budget.getPeakQueuedBytes());
+	}
+
+	@Test
+	public void channelPausedTooLongIsEvicted() throws Exception {
+		SendBudget budget = new SendBudget(1000, 500, 100, 50);
+		assertEquals(SendBudget.RESULT_ACCEPTED, budget.Reserve(600, false));
+		Thread.sleep(100);
+		assertEquals(SendBudget.RESULT_EVICT, budget.Reserve(10, true));
+	}
+}
@@ -0,0 +1,307 @@
+package com.example.naturalbase.naturalp2psyncmodule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.example.naturalbase.common.NBHttpResponse;
+import com.example.naturalbase.naturalcommunicater.BinaryMessageCodec;
+import com.example.naturalbase.naturalcommunicater.BinaryMessageWriter;
+import com.example.naturalbase.naturalcommunicater.ITcpServerHandlerProc;
+import com.example.naturalbase.naturalcommunicater.JsonMessageWriter;
+import com.example.naturalbase.naturalcommunicater.MessageHeader;
+import com.example.naturalbase.naturalcommunicater.NaturalCommunicater;
+import com.example.naturalbase.naturalstorage.DataItem;
+import com.example.naturalbase.naturalstorage.LogStorageEngine;
+import com.example.naturalbase.naturalstorage.NaturalStorage;
+
+public class NaturalP2PSyncModuleTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void responseSyncIsStreamedInTheNegotiatedEncoding() throws Exception {
+		NaturalStorage storage = new NaturalStorage(new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false));
+		NaturalP2PSyncModule module = new NaturalP2PSyncModule(mock(NaturalCommunicater.class), storage);
+		module.onDeviceOnlineChange(1, ITcpServerHandlerProc.STATUS_ONLINE, 1);
+		DataItem text = new DataItem();
+		text.Key = "text";
+		text.SetStringValue("中文");
+		text.TimeStamp = 1000;
+		assertTrue(storage.SaveData(text));
+		DataItem binary = new DataItem();
+		binary.Key = "binary";
+		binary.Value = new byte[] {(byte)0xff, 0x00, (byte)0xfe};
+		binary.TimeStamp = 1001;
+		assertTrue(storage.SaveData(binary));
+
+		MessageHeader header = new MessageHeader();
+		header.messageType = NaturalP2PSyncModule.MESSAGE_TYPE_REQUEST_SYNC;
+		header.deviceId = 1;
+		NBHttpResponse response = module.IncommingMessageHandlerProc(header, null);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertTrue(response.isStreaming());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonMessageWriter writer = new JsonMessageWriter(out);
+		response.getBodyWriter().write(writer);
+		writer.flush();
+
+		JSONObject body = JSON.parseObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals(NaturalP2PSyncModule.MESSAGE_TYPE_RESPONSE_SYNC,
+				     body.getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER).getString(NaturalCommunicater.JSON_MESSAGE_HEADER_MESSAGE_TYPE));
+		JSONObject message = body.getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE);
+		assertEquals(2, message.getIntValue(NaturalP2PSyncModule.MESSAGE_DATAITEM_SIZE));
+		assertFalse(message.getBooleanValue(NaturalP2PSyncModule.MESSAGE_HAS_MORE));
+		JSONArray dataItemArray = message.getJSONArray(NaturalP2PSyncModule.MESSAGE_DATAITEM);
+		assertEquals(2, dataItemArray.size());
+		assertEquals("text", dataItemArray.getJSONObject(0).getString(NaturalP2PSyncModule.MESSAGE_KEY));
+		assertEquals("中文", dataItemArray.getJSONObject(0).getString(NaturalP2PSyncModule.MESSAGE_VALUE));
+		JSONObject binaryObj = dataItemArray.getJSONObject(1);
+		assertArrayEquals(binary.Value, SyncMessage.DecodeValue(binaryObj.getString(NaturalP2PSyncModule.MESSAGE_VALUE),
+				                                                binaryObj.getString(NaturalP2PSyncModule.MESSAGE_VALUE_ENCODING)));
+		assertEquals(message.getString(NaturalP2PSyncModule.MESSAGE_SEQUENCE) + NaturalP2PSyncModule.CONTINUATION_TOKEN_SEPARATOR + "0",
+				     message.getString(NaturalP2PSyncModule.MESSAGE_CONTINUATION_TOKEN));
+
+		// the same page for a binary client
+		ByteArrayOutputStream binaryOut = new ByteArrayOutputStream();
+		BinaryMessageWriter binaryWriter = new BinaryMessageWriter(binaryOut);
+		module.IncommingMessageHandlerProc(header, null).getBodyWriter().write(binaryWriter);
+		binaryWriter.flush();
+		assertEquals(body, BinaryMessageCodec.Decode(binaryOut.toByteArray(), 0, binaryOut.size()));
+		module.Close();
+		storage.Close();
+	}
+
+	@Test
+	public void fullResyncPagesContinueBelowTheHorizon() throws Exception {
+		NaturalStorage storage = new NaturalStorage(new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false));
+		DataItem horizon = new DataItem();
+		horizon.Key = TombstoneCollector.HORIZON_KEY;
+		horizon.SetStringValue("3");
+		assertTrue(storage.SaveMetaData(horizon));
+		for (int i = 0; i < 3; i++) {
+			DataItem dataItem = new DataItem();
+			dataItem.Key = "key" + i;
+			dataItem.SetStringValue(String.valueOf(i));
+			dataItem.TimeStamp = 1000 + i;
+			assertTrue(storage.SaveData(dataItem));
+		}
+		NaturalP2PSyncModule module = new NaturalP2PSyncModule(mock(NaturalCommunicater.class), storage);
+		module.onDeviceOnlineChange(1, ITcpServerHandlerProc.STATUS_ONLINE, 1);
+		MessageHeader header = new MessageHeader();
+		header.messageType = NaturalP2PSyncModule.MESSAGE_TYPE_REQUEST_SYNC;
+		header.deviceId = 1;
+
+		// pages of a scan from 0 end below the horizon, their tokens are honored
+		JSONObject request = new JSONObject();
+		request.put(NaturalP2PSyncModule.MESSAGE_MAX_ITEMS, 1);
+		for (int i = 0; i < 3; i++) {
+			JSONObject page = RequestSync(module, header, request);
+			assertEquals("key" + i, page.getJSONArray(NaturalP2PSyncModule.MESSAGE_DATAITEM).getJSONObject(0).getString(NaturalP2PSyncModule.MESSAGE_KEY));
+			assertFalse(page.containsKey(NaturalP2PSyncModule.MESSAGE_FULL_RESYNC));
+			assertEquals(i < 2, page.getBooleanValue(NaturalP2PSyncModule.MESSAGE_HAS_MORE));
+			request.put(NaturalP2PSyncModule.MESSAGE_CONTINUATION_TOKEN, page.getString(NaturalP2PSyncModule.MESSAGE_CONTINUATION_TOKEN));
+		}
+
+		// a token from before the horizon moved starts over
+		request.put(NaturalP2PSyncModule.MESSAGE_CONTINUATION_TOKEN, "1" + NaturalP2PSyncModule.CONTINUATION_TOKEN_SEPARATOR + "2");
+		JSONObject page = RequestSync(module, header, request);
+		assertTrue(page.getBooleanValue(NaturalP2PSyncModule.MESSAGE_FULL_RESYNC));
+		assertEquals("key0", page.getJSONArray(NaturalP2PSyncModule.MESSAGE_DATAITEM).getJSONObject(0).getString(NaturalP2PSyncModule.MESSAGE_KEY));
+
+		MessageHeader ackHeader = new MessageHeader();
+		ackHeader.messageType = NaturalP2PSyncModule.MESSAGE_TYPE_REQUEST_SYNC_ACK;
+		ackHeader.deviceId = 1;
+		for (String sequence : new String[] {"abc", null}) {
+			JSONObject ack = new JSONObject();
+			ack.put(NaturalP2PSyncModule.MESSAGE_SEQUENCE, sequence);
+			ack.put(NaturalP2PSyncModule.MESSAGE_TIMESTAMP, "1");
+			assertEquals(HttpStatus.BAD_REQUEST, module.IncommingMessageHandlerProc(ackHeader, ack).getStatusCode());
+		}
+
+		// the device pulled but never acked, the purge has to wait for it
+		WaterMarkStore waterMarkStore = new WaterMarkStore(storage, 0);
+		assertEquals(0, waterMarkStore.MinWaterMark(Long.MAX_VALUE, Collections.singleton(1)));
+		assertEquals(-1, waterMarkStore.MinWaterMark(Long.MAX_VALUE, Collections.<Integer>emptySet()));
+		module.Close();
+		storage.Close();
+	}
+
+	@Test
+	public void fullResyncPagesContinueByAcks() throws Exception {
+		NaturalStorage storage = new NaturalStorage(new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false));
+		DataItem horizon = new DataItem();
+		horizon.Key = TombstoneCollector.HORIZON_KEY;
+		horizon.SetStringValue("4");
+		assertTrue(storage.SaveMetaData(horizon));
+		for (int i = 0; i < 5; i++) {
+			DataItem dataItem = new DataItem();
+			dataItem.Key = "key" + i;
+			dataItem.SetStringValue(String.valueOf(i));
+			dataItem.TimeStamp = 1000 + i;
+			assertTrue(storage.SaveData(dataItem));
+		}
+		NaturalP2PSyncModule module = new NaturalP2PSyncModule(mock(NaturalCommunicater.class), storage);
+		module.onDeviceOnlineChange(1, ITcpServerHandlerProc.STATUS_ONLINE, 1);
+		MessageHeader header = new MessageHeader();
+		header.messageType = NaturalP2PSyncModule.MESSAGE_TYPE_REQUEST_SYNC;
+		header.deviceId = 1;
+		JSONObject request = new JSONObject();
+		request.put(NaturalP2PSyncModule.MESSAGE_MAX_ITEMS, 1);
+
+		// the device acks a page and falls behind the horizon
+		JSONObject page = RequestSync(module, header, request);
+		assertFalse(page.containsKey(NaturalP2PSyncModule.MESSAGE_FULL_RESYNC));
+		Ack(module, page);
+
+		// a legacy device only acks, some pages also name the sequence as a plain token
+		page = RequestSync(module, header, request);
+		assertTrue(page.getBooleanValue(NaturalP2PSyncModule.MESSAGE_FULL_RESYNC));
+		for (int i = 0; i < 5; i++) {
+			assertEquals("key" + i, page.getJSONArray(NaturalP2PSyncModule.MESSAGE_DATAITEM).getJSONObject(0).getString(NaturalP2PSyncModule.MESSAGE_KEY));
+			assertEquals(i < 4, page.getBooleanValue(NaturalP2PSyncModule.MESSAGE_HAS_MORE));
+			Ack(module, page);
+			if (i % 2 == 0) {
+				request.put(NaturalP2PSyncModule.MESSAGE_CONTINUATION_TOKEN, page.getString(NaturalP2PSyncModule.MESSAGE_SEQUENCE));
+			}
+			else {
+				request.remove(NaturalP2PSyncModule.MESSAGE_CONTINUATION_TOKEN);
+			}
+			if (i < 4) {
+				page = RequestSync(module, header, request);
+				assertFalse(page.containsKey(NaturalP2PSyncModule.MESSAGE_FULL_RESYNC));
+			}
+		}
+
+		// once the resync finished a plain token below the horizon starts over
+		request.put(NaturalP2PSyncModule.MESSAGE_CONTINUATION_TOKEN, "1");
+		assertTrue(RequestSync(module, header, request).getBooleanValue(NaturalP2PSyncModule.MESSAGE_FULL_RESYNC));
+		module.Close();
+		storage.Close();
+	}
+
+	@Test
+	public void batchRunsItsMessagesInOrder() throws Exception {
+		NaturalStorage storage = new NaturalStorage(new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false));
+		NaturalP2PSyncModule module = new NaturalP2PSyncModule(mock(NaturalCommunicater.class), storage);
+		module.onDeviceOnlineChange(1, ITcpServerHandlerProc.STATUS_ONLINE, 1);
+		DataItem stored = new DataItem();
+		stored.Key = "b";
+		stored.SetStringValue("newer");
+		stored.TimeStamp = 5000;
+		assertTrue(storage.SaveData(stored));
+
+		JSONArray messages = new JSONArray();
+		messages.add(SubMessage(NaturalP2PSyncModule.MESSAGE_TYPE_SYNC, 1, "{\"DataItemSize\":1,\"DataItem\":[" +
+				                "{\"Key\":\"a\",\"Value\":\"1\",\"TimeStamp\":\"1000\",\"DeleteBit\":false}]}"));
+		messages.add(SubMessage(NaturalP2PSyncModule.MESSAGE_TYPE_SYNC, 1, "{\"DataItemSize\":2,\"DataItem\":[" +
+				                "{\"Key\":\"b\",\"Value\":\"older\",\"TimeStamp\":\"1001\",\"DeleteBit\":false}," +
+				                "{\"Key\":\"c\",\"Value\":\"3\",\"TimeStamp\":\"1002\",\"DeleteBit\":false}]}"));
+		messages.add(SubMessage(NaturalP2PSyncModule.MESSAGE_TYPE_SYNC, 1, "{\"DataItemSize\":0}"));
+		messages.add(SubMessage(NaturalP2PSyncModule.MESSAGE_TYPE_GET_DATA, 1, "{\"Key\":\"c\"}"));
+		messages.add(SubMessage(NaturalP2PSyncModule.MESSAGE_TYPE_REQUEST_SYNC, 1, null));
+		messages.add(SubMessage(NaturalP2PSyncModule.MESSAGE_TYPE_BATCH, 1, "{}"));
+		messages.add(SubMessage(NaturalP2PSyncModule.MESSAGE_TYPE_TIME_REQUEST, 2, null));
+		JSONObject batch = new JSONObject();
+		batch.put(NaturalP2PSyncModule.MESSAGE_MESSAGES, messages);
+
+		MessageHeader header = new MessageHeader();
+		header.messageType = NaturalP2PSyncModule.MESSAGE_TYPE_BATCH;
+		header.deviceId = 1;
+		NBHttpResponse response = module.IncommingMessageHandlerProc(header, batch);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonMessageWriter writer = new JsonMessageWriter(out);
+		response.getBodyWriter().write(writer);
+		writer.flush();
+
+		JSONObject body = JSON.parseObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals(NaturalP2PSyncModule.MESSAGE_TYPE_BATCH_RESPONSE,
+				     body.getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER).getString(NaturalCommunicater.JSON_MESSAGE_HEADER_MESSAGE_TYPE));
+		JSONArray responses = body.getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE).getJSONArray(NaturalP2PSyncModule.MESSAGE_RESPONSES);
+		assertEquals(messages.size(), responses.size());
+		int[] statuses = {200, 200, 400, 200, 200, 400, 400};
+		for (int i = 0; i < statuses.length; i++) {
+			assertEquals(statuses[i], responses.getJSONObject(i).getIntValue(NaturalP2PSyncModule.MESSAGE_STATUS));
+		}
+		// the two Syncs were written together, each gets its own SyncAck
+		JSONObject firstAck = Message(responses, 0);
+		assertEquals("1000", firstAck.getString(NaturalP2PSyncModule.MESSAGE_TIMESTAMP));
+		assertFalse(firstAck.containsKey(NaturalP2PSyncModule.MESSAGE_REJECTED_KEY));
+		JSONObject secondAck = Message(responses, 1);
+		assertEquals("1002", secondAck.getString(NaturalP2PSyncModule.MESSAGE_TIMESTAMP));
+		assertEquals(Collections.singletonList("b"), secondAck.getJSONArray(NaturalP2PSyncModule.MESSAGE_REJECTED_KEY));
+		// later messages see what the earlier ones wrote
+		assertEquals("3", Message(responses, 3).getString(NaturalP2PSyncModule.MESSAGE_VALUE));
+		// the device's own Syncs are not sent back to it
+		JSONObject page = Message(responses, 4);
+		assertEquals(1, page.getIntValue(NaturalP2PSyncModule.MESSAGE_DATAITEM_SIZE));
+		assertEquals("b", page.getJSONArray(NaturalP2PSyncModule.MESSAGE_DATAITEM).getJSONObject(0).getString(NaturalP2PSyncModule.MESSAGE_KEY));
+		assertEquals("newer", page.getJSONArray(NaturalP2PSyncModule.MESSAGE_DATAITEM).getJSONObject(0).getString(NaturalP2PSyncModule.MESSAGE_VALUE));
+
+		// the same response for a binary client
+		ByteArrayOutputStream binaryOut = new ByteArrayOutputStream();
+		BinaryMessageWriter binaryWriter = new BinaryMessageWriter(binaryOut);
+		module.IncommingMessageHandlerProc(header, batch).getBodyWriter().write(binaryWriter);
+		binaryWriter.flush();
+		JSONArray binaryResponses = BinaryMessageCodec.Decode(binaryOut.toByteArray(), 0, binaryOut.size())
+				                    .getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE).getJSONArray(NaturalP2PSyncModule.MESSAGE_RESPONSES);
+		assertEquals(responses.size(), binaryResponses.size());
+
+		JSONObject empty = new JSONObject();
+		empty.put(NaturalP2PSyncModule.MESSAGE_MESSAGES, new JSONArray());
+		assertEquals(HttpStatus.BAD_REQUEST, module.IncommingMessageHandlerProc(header, empty).getStatusCode());
+		module.Close();
+		storage.Close();
+	}
+
+	private static JSONObject RequestSync(NaturalP2PSyncModule module, MessageHeader header, JSONObject request) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonMessageWriter writer = new JsonMessageWriter(out);
+		module.IncommingMessageHandlerProc(header, request).getBodyWriter().write(writer);
+		writer.flush();
+		return JSON.parseObject(new String(out.toByteArray(), StandardCharsets.UTF_8)).getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE);
+	}
+
+	private static void Ack(NaturalP2PSyncModule module, JSONObject page) {
+		MessageHeader ackHeader = new MessageHeader();
+		ackHeader.messageType = NaturalP2PSyncModule.MESSAGE_TYPE_REQUEST_SYNC_ACK;
+		ackHeader.deviceId = 1;
+		JSONObject ack = new JSONObject();
+		ack.put(NaturalP2PSyncModule.MESSAGE_SEQUENCE, page.getString(NaturalP2PSyncModule.MESSAGE_SEQUENCE));
+		assertEquals(HttpStatus.OK, module.IncommingMessageHandlerProc(ackHeader, ack).getStatusCode());
+	}
+
+	private static JSONObject SubMessage(String messageType, int deviceId, String message) {
+		JSONObject subHeader = new JSONObject();
+		subHeader.put(NaturalCommunicater.JSON_MESSAGE_HEADER_MESSAGE_TYPE, messageType);
+		subHeader.put(NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID, NaturalCommunicater.JSON_MESSAGE_HEADER_REQUEST_ID_DEFAULT);
+		subHeader.put(NaturalCommunicater.JSON_MESSAGE_HEADER_DEVICE_ID, deviceId);
+		JSONObject subMessage = new JSONObject();
+		subMessage.put(NaturalCommunicater.JSON_OBJECT_MESSAGE_HEADER, subHeader);
+		if (message != null) {
+			subMessage.put(NaturalCommunicater.JSON_OBJECT_MESSAGE, JSON.parseObject(message));
+		}
+		return subMessage;
+	}
+
+	private static JSONObject Message(JSONArray responses, int index) {
+		return responses.getJSONObject(index).getJSONObject(NaturalP2PSyncModule.MESSAGE_BODY)
+				        .getJSONObject(NaturalCommunicater.JSON_OBJECT_MESSAGE);
+	}
+}
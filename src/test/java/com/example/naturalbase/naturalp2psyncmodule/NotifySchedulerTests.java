@@ -0,0 +1,105 @@
+package com.example.naturalbase.naturalp2psyncmodule;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.example.naturalbase.naturalcommunicater.NaturalCommunicater;
+
+public class NotifySchedulerTests {
+
+	@Test
+	public void burstIsCoalescedIntoOneTrailingNotification() throws Exception {
+		NaturalCommunicater communicater = mock(NaturalCommunicater.class);
+		when(communicater.SendTcpMessage(eq(1), any(byte[].class), eq(true))).thenReturn(true);
+		Map<Integer, DeviceInfo> deviceMap = new ConcurrentHashMap<Integer, DeviceInfo>();
+		deviceMap.put(1, new DeviceInfo());
+		NotifyScheduler scheduler = new NotifyScheduler(communicater, deviceMap, 200);
+
+		for (int i = 0; i < 100; i++) {
+			scheduler.Request(1);
+		}
+		verify(communicater, times(1)).SendTcpMessage(eq(1), any(byte[].class), eq(true));
+		verify(communicater, timeout(1000).times(2)).SendTcpMessage(eq(1), any(byte[].class), eq(true));
+		verify(communicater, after(400).times(2)).SendTcpMessage(eq(1), any(byte[].class), eq(true));
+		scheduler.Close();
+	}
+
+	@Test
+	public void deviceInTheMiddleOfAPullWaits() throws Exception {
+		NaturalCommunicater communicater = mock(NaturalCommunicater.class);
+		when(communicater.SendTcpMessage(eq(1), any(byte[].class), eq(true))).thenReturn(true);
+		Map<Integer, DeviceInfo> deviceMap = new ConcurrentHashMap<Integer, DeviceInfo>();
+		DeviceInfo device = new DeviceInfo();
+		device.isPulling = true;
+		device.lastRequestSyncTime = System.currentTimeMillis();
+		deviceMap.put(1, device);
+		NotifyScheduler scheduler = new NotifyScheduler(communicater, deviceMap, 50);
+
+		scheduler.Request(1);
+		verify(communicater, after(300).never()).SendTcpMessage(eq(1), any(byte[].class), eq(true));
+		device.isPulling = false;
+		verify(communicater, timeout(1000).times(1)).SendTcpMessage(eq(1), any(byte[].class), eq(true));
+		scheduler.Close();
+	}
+
+	@Test
+	public void droppedNotificationIsRetried() throws Exception {
+		NaturalCommunicater communicater = mock(NaturalCommunicater.class);
+		when(communicater.SendTcpMessage(eq(1), any(byte[].class), eq(true))).thenReturn(false, true);
+		Map<Integer, DeviceInfo> deviceMap = new ConcurrentHashMap<Integer, DeviceInfo>();
+		deviceMap.put(1, new DeviceInfo());
+		NotifyScheduler scheduler = new NotifyScheduler(communicater, deviceMap, 50);
+
+		scheduler.Request(1);
+		verify(communicater, timeout(1000).times(2)).SendTcpMessage(eq(1), any(byte[].class), eq(true));
+		verify(communicater, after(300).times(2)).SendTcpMessage(eq(1), any(byte[].class), eq(true));
+		scheduler.Close();
+	}
+
+	@Test
+	public void offlineDevicesLeaveNoState() throws Exception {
+		NaturalCommunicater communicater = mock(NaturalCommunicater.class);
+		when(communicater.SendTcpMessage(any(Integer.class), any(byte[].class), eq(true))).thenReturn(true);
+		Map<Integer, DeviceInfo> deviceMap = new ConcurrentHashMap<Integer, DeviceInfo>();
+		deviceMap.put(1, new DeviceInfo());
+		deviceMap.put(2, new DeviceInfo());
+		NotifyScheduler scheduler = new NotifyScheduler(communicater, deviceMap, 50);
+
+		scheduler.Request(1);
+		scheduler.Request(1);
+		scheduler.Request(2);
+		assertEquals(2, scheduler.getStateCount());
+		// 1 goes offline with a notification scheduled
+		deviceMap.remove(1);
+		scheduler.Remove(1);
+		assertEquals(1, scheduler.getStateCount());
+		verify(communicater, after(300).times(1)).SendTcpMessage(eq(1), any(byte[].class), eq(true));
+
+		// 2 goes offline without Remove(), the scheduled fire drops it
+		scheduler.Request(2);
+		scheduler.Request(2);
+		deviceMap.remove(2);
+		verify(communicater, after(300).times(2)).SendTcpMessage(eq(2), any(byte[].class), eq(true));
+		assertEquals(0, scheduler.getStateCount());
+		scheduler.Close();
+
+		NotifyScheduler immediate = new NotifyScheduler(communicater, deviceMap, 0);
+		deviceMap.put(3, new DeviceInfo());
+		immediate.Request(3);
+		assertEquals(0, immediate.getStateCount());
+		immediate.Close();
+	}
+}
@@ -0,0 +1,75 @@
+package com.example.naturalbase.naturalp2psyncmodule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.JSONReader;
+
+public class SyncMessageTests {
+
+	private static final String MESSAGE = "{\"DataItem\":[" +
+			"{\"Key\":\"a\",\"Value\":\"aGVsbG8=\",\"ValueEncoding\":\"base64\",\"TimeStamp\":\"1001\",\"DeleteBit\":false}," +
+			// encoding after the value, numeric time stamp, unknown field
+			"{\"Extra\":{\"x\":[1,2]},\"Value\":\"d29ybGQ=\",\"TimeStamp\":1002,\"ValueEncoding\":\"base64\",\"Key\":\"b\"}," +
+			"{\"Key\":\"c\",\"Value\":null,\"TimeStamp\":\"1003\",\"DeleteBit\":true}" +
+			"],\"DataItemSize\":\"3\"}";
+
+	@Test
+	public void streamDecodeMatchesTreeDecode() {
+		SyncMessage streamed;
+		try (JSONReader reader = new JSONReader(new StringReader(MESSAGE))) {
+			streamed = SyncMessage.Decode(reader);
+		}
+		SyncMessage parsed = SyncMessage.FromJSONObject(JSONObject.parseObject(MESSAGE));
+
+		for (SyncMessage message : new SyncMessage[]{streamed, parsed}) {
+			assertEquals(3, message.dataItemSize);
+			assertEquals(3, message.dataItemList.size());
+			assertEquals("a", message.dataItemList.get(0).Key);
+			assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), message.dataItemList.get(0).Value);
+			assertEquals(1001, message.dataItemList.get(0).TimeStamp);
+			assertFalse(message.dataItemList.get(0).DeleteBit);
+			assertEquals("b", message.dataItemList.get(1).Key);
+			assertArrayEquals("world".getBytes(StandardCharsets.UTF_8), message.dataItemList.get(1).Value);
+			assertEquals(1002, message.dataItemList.get(1).TimeStamp);
+			assertNull(message.dataItemList.get(2).Value);
+			assertTrue(message.dataItemList.get(2).DeleteBit);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void itemWithoutTimeStampIsRejected() {
+		try (JSONReader reader = new JSONReader(new StringReader("{\"DataItemSize\":1,\"DataItem\":[{\"Key\":\"a\"}]}"))) {
+			SyncMessage.Decode(reader);
+		}
+	}
+
+	@Test
+	public void itemWithoutKeyIsRejected() {
+		String message = "{\"DataItemSize\":2,\"DataItem\":[{\"Key\":\"a\",\"TimeStamp\":\"1\"},{\"Key\":null,\"TimeStamp\":\"2\"}]}";
+		try (JSONReader reader = new JSONReader(new StringReader(message))) {
+			SyncMessage.Decode(reader);
+			fail("streamed item without Key accepted");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			SyncMessage.FromJSONObject(JSONObject.parseObject(message.replace("\"Key\":null,", "")));
+			fail("parsed item without Key accepted");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package com.example.naturalbase.naturalstorage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogStorageEngineTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static DataItem Item(String key, String value, long timeStamp) {
+		DataItem dataItem = new DataItem();
+		dataItem.Key = key;
+		dataItem.SetStringValue(value);
+		dataItem.TimeStamp = timeStamp;
+		return dataItem;
+	}
+
+	private static List<DataItem> Items(DataItem... items) {
+		List<DataItem> list = new ArrayList<DataItem>();
+		for (DataItem item : items) {
+			list.add(item);
+		}
+		return list;
+	}
+
+	@Test
+	public void newerTimeStampWins() throws Exception {
+		LogStorageEngine engine = new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false);
+		engine.SaveDataFromSync(Items(Item("a", "v2", 20)), 1);
+		engine.SaveDataFromSync(Items(Item("a", "v1", 10), Item("b", "v1", 10)), 2);
+
+		List<DataItem> items = engine.GetUnsyncData(0, NaturalStorage.TIMESTAMP_NOW, 3);
+		assertEquals(2, items.size());
+		assertEquals("b", items.get(0).Key);
+		assertEquals("a", items.get(1).Key);
+		assertEquals("v2", items.get(1).GetStringValue());
+		// items written by the requesting device are not returned
+		assertEquals(1, engine.GetUnsyncData(0, NaturalStorage.TIMESTAMP_NOW, 1).size());
+		engine.Close();
+	}
+
+	@Test
+	public void batchReportsRejectedItemsAndKeepsGoing() throws Exception {
+		LogStorageEngine engine = new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false);
+		engine.SaveDataBatchFromSync(Items(Item("a", "new", 50)), 1);
+
+		SyncWriteResult result = engine.SaveDataBatchFromSync(
+				Items(Item("a", "old", 10), Item("b", "b1", 20), Item("b", "b2", 30), Item("c", "c1", 5)), 2);
+		assertTrue(result.success);
+		assertEquals(30, result.maxAcceptedTimeStamp);
+		assertEquals(30, result.maxTimeStamp);
+		assertEquals(2, result.acceptedCount);
+		assertFalse(result.accepted[0]);
+		assertFalse(result.accepted[1]);
+		assertTrue(result.accepted[2]);
+		assertTrue(result.accepted[3]);
+		assertEquals(3, engine.GetUnsyncData(0, NaturalStorage.TIMESTAMP_NOW, 3).size());
+		engine.Close();
+	}
+
+	@Test
+	public void failedBatchIsRolledBack() throws Exception {
+		LogStorageEngine engine = new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false);
+		assertTrue(engine.SaveDataBatchFromSync(Items(Item("a", "old", 10)), 1).success);
+
+		// the null key fails the batch after "a" and "b" were appended
+		SyncWriteResult result = engine.SaveDataBatchFromSync(Items(Item("a", "new", 20), Item("b", "b1", 20), Item(null, "x", 20)), 2);
+		assertFalse(result.success);
+		assertEquals("old", engine.GetData("a").GetStringValue());
+		assertNull(engine.GetData("b"));
+		result = engine.SaveDataBatchFromSync(Items(Item("c", "c1", 30)), 2);
+		assertEquals(2, result.firstSequence);
+		engine.Close();
+
+		engine = new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false);
+		assertEquals("old", engine.GetData("a").GetStringValue());
+		assertNull(engine.GetData("b"));
+		assertEquals(2, engine.GetData("c").Sequence);
+		engine.Close();
+
+		NaturalStorage storage = new NaturalStorage(new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false));
+		assertFalse(storage.SaveDataBatchFromSync(Items(Item("d", "d1", 40), Item(null, "x", 40)), 2).success);
+		assertNull(storage.GetData("d"));
+		storage.Close();
+	}
+
+	@Test
+	public void pagesResumeAfterLastSequence() throws Exception {
+		NaturalStorage storage = new NaturalStorage(new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false));
+		SyncWriteResult result = storage.SaveDataBatchFromSync(Items(Item("a", "1", 10), Item("b", "2", 10), Item("c", "3", 10)), 1);
+		assertEquals(1, result.firstSequence);
+		assertEquals(3, result.lastSequence);
+		// rewriting a key moves it to the end of the change log
+		storage.SaveDataBatchFromSync(Items(Item("a", "4", 15)), 3);
+
+		SyncPage page = storage.GetUnsyncDataPage(0, 2, 2, 1024);
+		assertEquals(2, page.dataItemList.size());
+		assertEquals("b", page.dataItemList.get(0).Key);
+		assertTrue(page.hasMore);
+		assertEquals(3, page.lastSequence);
+
+		page = storage.GetUnsyncDataPage(page.lastSequence, 2, 2, 1024);
+		assertEquals(1, page.dataItemList.size());
+		assertEquals("a", page.dataItemList.get(0).Key);
+		assertEquals(4, page.dataItemList.get(0).Sequence);
+		assertFalse(page.hasMore);
+		storage.Close();
+	}
+
+	@Test
+	public void recoverFromIndexAndLogReplay() throws Exception {
+		String dir = folder.getRoot().getPath();
+		LogStorageEngine engine = new LogStorageEngine(dir, 1024 * 1024, 3, false);
+		engine.SaveDataFromSync(Items(Item("a", "1", 1), Item("b", "2", 2), Item("c", "3", 3)), 1);
+		engine.SaveDataFromSync(Items(Item("d", "4", 4)), 1);
+		engine.SaveMetaData(Item("WaterMark@1", "4", 0));
+		// no Close(): the second batch only lives in the log
+
+		LogStorageEngine reopened = new LogStorageEngine(dir, 1024 * 1024, 3, false);
+		List<DataItem> items = reopened.GetUnsyncData(0, NaturalStorage.TIMESTAMP_NOW, 2);
+		assertEquals(4, items.size());
+		assertEquals("1", items.get(0).GetStringValue());
+		assertEquals("4", items.get(3).GetStringValue());
+		assertEquals("4", reopened.GetMetaData("WaterMark@1").GetStringValue());
+		reopened.Close();
+	}
+
+	@Test
+	public void binaryValueSurvivesRecovery() throws Exception {
+		String dir = folder.getRoot().getPath();
+		byte[] value = new byte[] {0, (byte)0xFF, (byte)0xC3, 0x28, 10};
+		DataItem dataItem = Item("bin", null, 1);
+		dataItem.Value = value;
+		LogStorageEngine engine = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		engine.SaveDataFromSync(Items(dataItem), 1);
+
+		LogStorageEngine reopened = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		assertArrayEquals(value, reopened.GetData("bin").Value);
+		reopened.Close();
+	}
+
+	@Test
+	public void waterMarksRecoverAndNeverMoveBack() throws Exception {
+		String dir = folder.getRoot().getPath();
+		LogStorageEngine engine = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		Map<Integer, Long> waterMarks = new HashMap<Integer, Long>();
+		waterMarks.put(1, 10L);
+		waterMarks.put(2, 20L);
+		assertTrue(engine.SaveWaterMarks(waterMarks));
+		waterMarks.put(1, 5L);
+		waterMarks.put(2, 25L);
+		assertTrue(engine.SaveWaterMarks(waterMarks));
+		// no Close(): replayed from the log
+		LogStorageEngine reopened = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		assertEquals(Long.valueOf(10), reopened.LoadWaterMarks().get(1));
+		assertEquals(Long.valueOf(25), reopened.LoadWaterMarks().get(2));
+		reopened.Close();
+		// after Close(): loaded from the index
+		LogStorageEngine again = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		assertEquals(2, again.LoadWaterMarks().size());
+		assertEquals(Long.valueOf(25), again.LoadWaterMarks().get(2));
+		again.Close();
+	}
+
+	@Test
+	public void purgedTombstonesStayGoneAfterReplay() throws Exception {
+		String dir = folder.getRoot().getPath();
+		LogStorageEngine engine = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		DataItem deleted = Item("a", "", 2);
+		deleted.DeleteBit = true;
+		engine.SaveDataFromSync(Items(Item("a", "1", 1), Item("b", "1", 1), Item("c", "1", 1)), 1);
+		engine.SaveDataFromSync(Items(deleted), 1);
+		DataItem deletedLater = Item("c", "", 2);
+		deletedLater.DeleteBit = true;
+		engine.SaveDataFromSync(Items(deletedLater), 1);
+
+		// c was deleted after the horizon and is kept
+		assertEquals(1, engine.PurgeTombstones(4, 100));
+		assertNull(engine.GetData("a"));
+		assertTrue(engine.GetData("c").DeleteBit);
+
+		LogStorageEngine reopened = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		assertNull(reopened.GetData("a"));
+		assertEquals(2, reopened.GetUnsyncData(0, NaturalStorage.TIMESTAMP_NOW, 2).size());
+		// sequences are not reused
+		assertEquals(6, reopened.SaveDataBatchFromSync(Items(Item("d", "1", 3)), 1).firstSequence);
+		reopened.Close();
+	}
+
+	@Test
+	public void deadSegmentsAreRetired() throws Exception {
+		String dir = folder.getRoot().getPath();
+		LogStorageEngine engine = new LogStorageEngine(dir, 512, 100, false, 50);
+		engine.SaveMetaData(Item("meta", "m", 0));
+		Map<Integer, Long> waterMarks = new HashMap<Integer, Long>();
+		waterMarks.put(1, 7L);
+		assertTrue(engine.SaveWaterMarks(waterMarks));
+		engine.SaveDataFromSync(Items(Item("gone", "1", 1)), 1);
+		DataItem deleted = Item("gone", "", 2);
+		deleted.DeleteBit = true;
+		engine.SaveDataFromSync(Items(deleted), 1);
+		assertEquals(1, engine.PurgeTombstones(2, 100));
+		for (int i = 1; i <= 200; i++) {
+			engine.SaveDataFromSync(Items(Item("k" + (i % 3), String.valueOf(i), 10 + i)), 1);
+		}
+		// about 20 segments without retirement
+		assertTrue(SegmentCount(dir) < 6);
+		AssertRetiredState(engine, 200);
+		engine.Close();
+
+		LogStorageEngine reopened = new LogStorageEngine(dir, 512, 100, false, 50);
+		AssertRetiredState(reopened, 200);
+		reopened.Close();
+
+		// the remaining segments alone give the same state
+		assertTrue(new File(dir, "index.idx").delete());
+		LogStorageEngine replayed = new LogStorageEngine(dir, 512, 100, false, 50);
+		AssertRetiredState(replayed, 200);
+		assertEquals(203, replayed.SaveDataBatchFromSync(Items(Item("new", "1", 1000)), 1).firstSequence);
+		replayed.Close();
+	}
+
+	private static void AssertRetiredState(LogStorageEngine engine, int rounds) {
+		assertNull(engine.GetData("gone"));
+		assertEquals("m", engine.GetMetaData("meta").GetStringValue());
+		assertEquals(Long.valueOf(7), engine.LoadWaterMarks().get(1));
+		for (int i = rounds - 2; i <= rounds; i++) {
+			assertEquals(String.valueOf(i), engine.GetData("k" + (i % 3)).GetStringValue());
+		}
+		assertEquals(3, engine.GetUnsyncData(0, NaturalStorage.TIMESTAMP_NOW, 2).size());
+	}
+
+	private static int SegmentCount(String dir) {
+		int count = 0;
+		for (String name : new File(dir).list()) {
+			if (name.startsWith("segment-")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void truncateTornTail() throws Exception {
+		String dir = folder.getRoot().getPath();
+		LogStorageEngine engine = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		engine.SaveDataFromSync(Items(Item("a", "1", 1)), 1);
+		engine.SaveDataFromSync(Items(Item("b", "2", 2)), 1);
+
+		File segment = new File(dir, "segment-0000000000.log");
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		LogStorageEngine reopened = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		List<DataItem> items = reopened.GetUnsyncData(0, NaturalStorage.TIMESTAMP_NOW, 2);
+		assertEquals(1, items.size());
+		assertEquals("a", items.get(0).Key);
+		assertNull(reopened.GetMetaData("missing"));
+
+		reopened.SaveDataFromSync(Items(Item("c", "3", 3)), 1);
+		LogStorageEngine again = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		assertEquals(2, again.GetUnsyncData(0, NaturalStorage.TIMESTAMP_NOW, 2).size());
+		again.Close();
+	}
+}
@@ -0,0 +1,96 @@
+package com.example.naturalbase.naturalstorage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NaturalStorageTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void getDataIsCachedAndInvalidatedBySync() throws Exception {
+		NaturalStorage storage = new NaturalStorage(new LogStorageEngine(folder.getRoot().getPath(), 1024 * 1024, 100, false));
+		DataCache cache = storage.getDataCache();
+		DataItem dataItem = new DataItem();
+		dataItem.Key = "a";
+		dataItem.SetStringValue("local");
+		dataItem.TimeStamp = 1000;
+		assertTrue(storage.SaveData(dataItem));
+
+		assertEquals("local", storage.GetData("a").GetStringValue());
+		assertEquals("local", storage.GetData("a").GetStringValue());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+
+		DataItem synced = new DataItem();
+		synced.Key = "a";
+		synced.SetStringValue("synced");
+		synced.TimeStamp = dataItem.TimeStamp + 1;
+		List<DataItem> dataItemList = new ArrayList<DataItem>();
+		dataItemList.add(synced);
+		storage.SaveDataBatchFromSync(dataItemList, 1);
+		assertEquals("synced", storage.GetData("a").GetStringValue());
+		assertEquals(2, cache.getMissCount());
+
+		assertTrue(storage.RemoveData("a"));
+		assertNull(storage.GetData("a"));
+		assertNull(storage.GetData("missing"));
+		storage.Close();
+	}
+
+	@Test
+	public void largeValuesAreStoredCompressed() throws Exception {
+		String dir = folder.getRoot().getPath();
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			json.append("{\"name\":\"device\",\"index\":").append(i).append("},");
+		}
+		DataItem dataItem = new DataItem();
+		dataItem.Key = "doc";
+		dataItem.SetStringValue(json.toString());
+		byte[] raw = dataItem.Value;
+		List<DataItem> dataItemList = new ArrayList<DataItem>();
+		dataItemList.add(dataItem);
+		NaturalStorage storage = new NaturalStorage(new LogStorageEngine(dir, 1024 * 1024, 100, false));
+		storage.SaveDataBatchFromSync(dataItemList, 1);
+		storage.Close();
+
+		LogStorageEngine engine = new LogStorageEngine(dir, 1024 * 1024, 100, false);
+		DataItem stored = engine.GetData("doc");
+		assertEquals(ValueCodec.CODEC_DEFLATE, stored.Codec);
+		assertTrue(stored.Value.length * 4 < raw.length);
+
+		storage = new NaturalStorage(engine);
+		assertArrayEquals(raw, storage.GetData("doc").Value);
+		assertArrayEquals(raw, storage.GetUnsyncDataPage(0, 2, 10, 1024 * 1024).dataItemList.get(0).Value);
+		DataItem passThrough = storage.GetUnsyncDataPage(0, 2, 10, 1024 * 1024, true).dataItemList.get(0);
+		assertEquals(ValueCodec.CODEC_DEFLATE, passThrough.Codec);
+		assertArrayEquals(stored.Value, passThrough.Value);
+		storage.Close();
+	}
+
+	@Test
+	public void fillAfterInvalidateIsDropped() {
+		DataCache cache = new DataCache(2);
+		DataItem dataItem = new DataItem();
+		dataItem.Key = "a";
+		long stamp = cache.Stamp();
+		cache.Invalidate("a");
+		cache.PutIfUnchanged(dataItem, stamp);
+		assertNull(cache.Get("a"));
+
+		cache.PutIfUnchanged(dataItem, cache.Stamp());
+		assertEquals(dataItem, cache.Get("a"));
+		assertEquals(1, cache.getHitCount());
+	}
+}